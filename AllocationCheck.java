@@ -0,0 +1,116 @@
+/**
+ * Checks that the Processor filters don't allocate anything for each pixel,
+ * like the int[4] unpackPixel() makes, by counting the bytes the thread
+ * allocates while each filter runs on a short and a tall image.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot:
+ * <pre>java AllocationCheck [filter ...]</pre>
+ * Every filter is run on one thread, so all of its allocation lands on the
+ * thread that is measured. The two images are the same width, so buffers the
+ * size of a row cost the same for both. A filter may allocate those, but if
+ * the taller image costs more than MAX_BYTES_PER_PIXEL for every pixel it has
+ * over the short one, the check fails and exits with 1.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+public class AllocationCheck
+{
+    private static final int WIDTH = 2000, SMALL_HEIGHT = 150, BIG_HEIGHT = 1500;
+    // An int[4] for every pixel would be about 32 bytes, so this is far below it
+    private static final double MAX_BYTES_PER_PIXEL = 0.05;
+    private static final int WARMUP = 5;
+
+    private static final int[] TYPES = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR};
+    private static final Map<String, Consumer<BufferedImage>> FILTERS = new LinkedHashMap<>();
+    static
+    {
+        FILTERS.put ("blueify", Processor::blueify);
+        FILTERS.put ("redify", Processor::redify);
+        FILTERS.put ("invert", Processor::invert);
+        FILTERS.put ("tglNegative", Processor::tglNegative);
+        FILTERS.put ("greyscale", Processor::greyscale);
+        FILTERS.put ("sepia", Processor::sepia);
+        FILTERS.put ("increaseOpacity", Processor::increaseOpacity);
+        FILTERS.put ("decreaseOpacity", Processor::decreaseOpacity);
+        FILTERS.put ("pixalate", bi -> Processor.pixalate (bi, 8));
+    }
+
+    public static void main (String[] args)
+    {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+        {
+            System.err.println ("This Java can't count the bytes a thread allocates");
+            System.exit (2);
+        }
+        ParallelExecutor.setParallelism (1);
+
+        List<String> names = args.length > 0 ? Arrays.asList (args) : List.copyOf (FILTERS.keySet());
+        boolean failed = false;
+        for (String name : names)
+        {
+            Consumer<BufferedImage> filter = FILTERS.get (name);
+            if (filter == null)
+            {
+                System.err.println ("No filter called " + name + ", try one of " + FILTERS.keySet());
+                System.exit (2);
+            }
+            for (int type : TYPES)
+            {
+                long small = allocated (filter, randomImage (WIDTH, SMALL_HEIGHT, type));
+                long big = allocated (filter, randomImage (WIDTH, BIG_HEIGHT, type));
+                double perPixel = (big - small) / ((double)WIDTH * (BIG_HEIGHT - SMALL_HEIGHT));
+                boolean ok = perPixel <= MAX_BYTES_PER_PIXEL;
+                failed |= !ok;
+                System.out.printf ("%-16s type %2d  short %,10d B  tall %,10d B  %.4f B/pixel  %s%n",
+                    name, type, small, big, perPixel, ok ? "ok" : "FAILED");
+            }
+        }
+        if (failed)
+        {
+            System.out.println ("Some filters allocate for every pixel");
+            System.exit (1);
+        }
+        System.out.println ("No filter allocates for every pixel");
+    }
+
+    /**
+     * Returns the fewest bytes one run of the filter allocated, after warming it up
+     */
+    private static long allocated (Consumer<BufferedImage> filter, BufferedImage bi)
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) filter.accept (bi);
+
+        // The fewest, so a one-off like a class being loaded part way through doesn't count
+        long fewest = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++)
+        {
+            long before = threads.getThreadAllocatedBytes (id);
+            filter.accept (bi);
+            fewest = Math.min (fewest, threads.getThreadAllocatedBytes (id) - before);
+        }
+        return fewest;
+    }
+
+    private static BufferedImage randomImage (int width, int height, int type)
+    {
+        int[] data = new int[width * height];
+        Random random = new Random (42);
+        for (int i = 0; i < data.length; i++) data[i] = random.nextInt();
+        BufferedImage bi = new BufferedImage (width, height, type);
+        PixelEngine.setPixels (bi, data);
+        return bi;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Checks that the BatchProcessor can read and write every kind of file it
+ * looks for, and that two inputs with the same name never overwrite each
+ * other's result.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot:
+ * <pre>java BatchCheck</pre>
+ * A small picture with see-through corners is saved once with each extension
+ * in BatchProcessor.EXTENSIONS, and the whole folder is run through a chain of
+ * filters. Every file has to come out with the same extension and the right
+ * size. Then a second folder with a file of the same name is run together with
+ * the first: the run has to report a failure, and the first file's result must
+ * still be the one in the output folder. The check exits with 1 if anything is
+ * wrong.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+public class BatchCheck
+{
+    private static final int WIDTH = 48, HEIGHT = 32;
+    private static final String CHAIN = "greyscale,sepia,pixalate:8,flipH";
+
+    private static boolean failed = false;
+
+    public static void main (String[] args) throws Exception
+    {
+        File root = Files.createTempDirectory ("batchcheck").toFile();
+        File in = new File (root, "in"), in2 = new File (root, "in2");
+        in.mkdirs();
+        in2.mkdirs();
+
+        BufferedImage picture = picture();
+        List<File> inputs = new ArrayList<>();
+        for (String extension : BatchProcessor.EXTENSIONS)
+        {
+            File file = new File (in, extension.substring (1) + extension);
+            ImageExporter.write (picture, new ImageExporter.Target (file, extension.substring (1)));
+            inputs.add (file);
+        }
+        checkFormats (inputs, new File (root, "out"));
+
+        // The same name as the first input, but twice as wide so the results can be told apart
+        File first = inputs.get (0);
+        File clash = new File (in2, first.getName());
+        BufferedImage wide = new BufferedImage (WIDTH * 2, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        ImageExporter.write (wide, new ImageExporter.Target (clash, "png"));
+        checkClash (Arrays.asList (first, clash), new File (root, "clash"));
+
+        if (failed)
+        {
+            System.out.println ("The batch processor lost or overwrote images");
+            System.exit (1);
+        }
+        System.out.println ("Every format is processed and no result is overwritten");
+    }
+
+    private static void checkFormats (List<File> inputs, File out) throws Exception
+    {
+        boolean ok = new BatchProcessor (EditOps.parseChain (CHAIN), out, null, 2, 2, 4).run (inputs);
+        check (ok, "the run reported a failure");
+        for (File input : inputs)
+        {
+            File result = new File (out, input.getName().replace (".jpeg", ".jpg"));
+            BufferedImage bi = result.isFile() ? ImageIO.read (result) : null;
+            boolean written = bi != null && bi.getWidth() == WIDTH && bi.getHeight() == HEIGHT;
+            System.out.printf ("%-5s %s%n", result.getName(), written ? "ok" : "FAILED, not written");
+            failed |= !written;
+        }
+    }
+
+    private static void checkClash (List<File> inputs, File out) throws Exception
+    {
+        boolean ok = new BatchProcessor (EditOps.parseChain (CHAIN), out, null, 2, 2, 4).run (inputs);
+        check (!ok, "the run didn't report the name clash");
+        String[] written = out.list();
+        check (written != null && written.length == 1, "expected one result, found " + Arrays.toString (written));
+        BufferedImage bi = ImageIO.read (new File (out, inputs.get (0).getName()));
+        check (bi != null && bi.getWidth() == WIDTH, "the first input's result was overwritten");
+    }
+
+    private static void check (boolean ok, String message)
+    {
+        if (ok) return;
+        System.out.println ("FAILED, " + message);
+        failed = true;
+    }
+
+    /**
+     * Returns a colourful picture with fully see-through corners
+     */
+    private static BufferedImage picture ()
+    {
+        BufferedImage bi = new BufferedImage (WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++)
+            {
+                boolean corner = (x < 4 || x >= WIDTH - 4) && (y < 4 || y >= HEIGHT - 4);
+                bi.setRGB (x, y, corner ? 0 : 0xFF000000 | x * 5 << 16 | y * 7 << 8 | (x + y) * 3);
+            }
+        }
+        return bi;
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Runs a chain of Processor filters over many image files from the command
+ * line, without opening the Greenfoot world.
+ * <pre>
+ * java BatchProcessor [options] input...
+ *
+ *   input               an image file, a folder of images, or a glob like photos/*.jpg
+ *   --ops chain         filters to run in order, e.g. greyscale,sepia,pixalate:8,flipH
+ *   --out folder        where to write the results (required)
+ *   --format png|jpg    output format, otherwise the format of each input is kept
+ *   --threads n         threads working on pixels (default: one per core)
+ *   --io n              threads reading and writing files (default: 4)
+ *   --queue n           most images held in memory at once (default: twice --threads)
+ *   --metrics           print how long every filter, read and write took at the end
+ * </pre>
+ * Files are read and written on the I/O threads, which are virtual threads when
+ * the Java running it has them, and the filters run on a separate pool of
+ * worker threads, one image per thread. Before an image is read it has to get
+ * one of the --queue places, and it only gives its place back once it has been
+ * written, so reading can never run far ahead of the filters.
+ * <p>
+ * Every result is written straight into --out under the input's name. If two
+ * inputs would end up with the same output file, like a/photo.png and
+ * b/photo.png, only the first is processed and the others fail.
+ * <p>
+ * Starting it with java --add-modules jdk.incubator.vector lets the colour
+ * filters work on a whole vector of pixels at a time (see VectorPixelOps).
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+public class BatchProcessor
+{
+    static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp", ".gif"};
+
+    private final List<EditOp> ops;
+    private final File outDir;
+    private final String format;
+    private final int cpuThreads, ioThreads, queueSize;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+
+    public BatchProcessor (List<EditOp> ops, File outDir, String format, int cpuThreads, int ioThreads, int queueSize)
+    {
+        // Colour filters next to each other are made in one pass over each image
+        this.ops = EditOps.fuse (ops);
+        this.outDir = outDir;
+        this.format = format;
+        this.cpuThreads = cpuThreads;
+        this.ioThreads = ioThreads;
+        this.queueSize = queueSize;
+    }
+
+    public static void main (String[] args) throws Exception
+    {
+        String chain = null, out = null, format = null;
+        boolean metrics = false;
+        int threads = Runtime.getRuntime().availableProcessors(), io = 4, queue = -1;
+        ArrayList<String> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--ops": chain = args[++i]; break;
+                case "--out": out = args[++i]; break;
+                case "--format": format = args[++i].toLowerCase (Locale.ROOT); break;
+                case "--threads": threads = Integer.parseInt (args[++i]); break;
+                case "--io": io = Integer.parseInt (args[++i]); break;
+                case "--queue": queue = Integer.parseInt (args[++i]); break;
+                case "--metrics": metrics = true; break;
+                default: inputs.add (args[i]);
+            }
+        }
+        if (chain == null || out == null || inputs.isEmpty())
+        {
+            System.err.println ("usage: java BatchProcessor --ops greyscale,sepia,pixalate:8,flipH --out folder [--format png|jpg]"
+                + " [--threads n] [--io n] [--queue n] [--metrics] input...");
+            System.exit (2);
+        }
+        if (queue < 1) queue = 2 * threads;
+
+        List<File> files = findFiles (inputs);
+        BatchProcessor batch = new BatchProcessor (EditOps.parseChain (chain), new File (out), format, threads, io, queue);
+        boolean ok = batch.run (files);
+        if (metrics) System.out.print (Metrics.dump());
+        System.exit (ok ? 0 : 1);
+    }
+
+    /**
+     * Processes every file and prints the throughput at the end
+     *
+     * @return boolean  True if every file was processed
+     */
+    public boolean run (List<File> files) throws InterruptedException
+    {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IllegalArgumentException ("can't create " + outDir);
+
+        // Each image runs on one worker, so the workers shouldn't split images between threads as well
+        int parallelism = ParallelExecutor.getParallelism();
+        ParallelExecutor.setParallelism (1);
+
+        ExecutorService cpu = Executors.newFixedThreadPool (cpuThreads);
+        ExecutorService io = newIoExecutor (ioThreads);
+        Semaphore inFlight = new Semaphore (queueSize);
+        long start = System.nanoTime();
+
+        try
+        {
+            ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+            HashMap<File, File> claimed = new HashMap<>();
+            for (File file : files)
+            {
+                // Two inputs with the same name would otherwise silently overwrite each other's result
+                ImageExporter.Target target = target (file);
+                File first = claimed.putIfAbsent (target.getFile().getAbsoluteFile(), file);
+                if (first != null)
+                {
+                    failed.incrementAndGet();
+                    System.err.println (file + ": would overwrite " + target.getFile() + " written from " + first);
+                    continue;
+                }
+
+                // Waiting here keeps decoded images from piling up faster than they are processed
+                inFlight.acquire();
+                futures.add (CompletableFuture.supplyAsync (() -> read (file), io)
+                    .thenApplyAsync (this::process, cpu)
+                    .thenAcceptAsync (bi -> write (target, bi), io)
+                    .whenComplete ((result, error) -> {
+                        inFlight.release();
+                        if (error == null)
+                        {
+                            done.incrementAndGet();
+                        }
+                        else
+                        {
+                            failed.incrementAndGet();
+                            System.err.println (file + ": " + error.getCause());
+                        }
+                    }));
+            }
+            CompletableFuture.allOf (futures.toArray (new CompletableFuture<?>[0])).exceptionally (e -> null).join();
+        }
+        finally
+        {
+            cpu.shutdown();
+            io.shutdown();
+            ParallelExecutor.setParallelism (parallelism);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf ("%d images (%d failed) in %.2f s: %.1f images/s, %.1f MP/s%n",
+            done.get(), failed.get(), seconds, done.get() / seconds, pixels.get() / 1e6 / seconds);
+        return failed.get() == 0;
+    }
+
+    private BufferedImage read (File file)
+    {
+        Metrics.Timer timer = Metrics.start ("read", 0, 0);
+        try
+        {
+            BufferedImage decoded = ImageIO.read (file);
+            if (decoded == null) throw new IOException ("not an image this Java can read");
+
+            // Working on TYPE_INT_ARGB lets every filter use the image's int array directly
+            BufferedImage bi = new BufferedImage (decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            PixelEngine.setPixels (bi, PixelEngine.getPixels (decoded, null));
+            timer.stop (bi.getWidth(), bi.getHeight());
+            return bi;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException (e);
+        }
+        finally
+        {
+            // Only counts if it failed, since a timer only records its first stop
+            timer.stop();
+        }
+    }
+
+    private BufferedImage process (BufferedImage bi)
+    {
+        for (EditOp op : ops) bi = op.apply (bi);
+        pixels.addAndGet ((long)bi.getWidth() * bi.getHeight());
+        return bi;
+    }
+
+    /**
+     * Returns where the result for a file goes: its name in the output folder,
+     * with the --format extension if there is one
+     */
+    private ImageExporter.Target target (File source)
+    {
+        String name = source.getName();
+        int dot = name.lastIndexOf ('.');
+        String base = dot < 0 ? name : name.substring (0, dot);
+        String type = format != null ? format : (dot < 0 ? "png" : name.substring (dot + 1).toLowerCase (Locale.ROOT));
+        if (type.equals ("jpeg")) type = "jpg";
+        return new ImageExporter.Target (new File (outDir, base + "." + type), type);
+    }
+
+    private void write (ImageExporter.Target target, BufferedImage bi)
+    {
+        Metrics.Timer timer = Metrics.start ("write", bi);
+        try
+        {
+            // The exporter drops the alpha layer for formats that don't have one, like jpg and bmp
+            ImageExporter.write (bi, target);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException (e);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Uses a virtual thread for every file task when this Java has them, since
+     * those threads spend their time waiting on the disk. Otherwise it falls
+     * back to a fixed pool of ordinary threads.
+     */
+    private static ExecutorService newIoExecutor (int threads)
+    {
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newFixedThreadPool (threads);
+        }
+    }
+
+    /**
+     * Turns files, folders and glob patterns into a sorted list of image files
+     */
+    static List<File> findFiles (List<String> inputs) throws IOException
+    {
+        ArrayList<File> files = new ArrayList<>();
+        for (String input : inputs)
+        {
+            File file = new File (input);
+            if (file.isFile())
+            {
+                files.add (file);
+            }
+            else if (file.isDirectory())
+            {
+                try (Stream<Path> list = Files.list (file.toPath()))
+                {
+                    files.addAll (list.filter (p -> isImage (p.toString())).map (Path::toFile).sorted().collect (Collectors.toList()));
+                }
+            }
+            else
+            {
+                files.addAll (glob (input));
+            }
+        }
+        return files;
+    }
+
+    private static List<File> glob (String pattern) throws IOException
+    {
+        // Searching from the deepest folder in the pattern that has no wildcards in it
+        String normal = pattern.replace ('\\', '/');
+        int wildcard = normal.length();
+        for (char c : new char[] {'*', '?', '[', '{'})
+        {
+            int i = normal.indexOf (c);
+            if (i >= 0) wildcard = Math.min (wildcard, i);
+        }
+        int slash = normal.lastIndexOf ('/', wildcard);
+        Path base = Paths.get (slash < 0 ? "." : normal.substring (0, Math.max (slash, 1)));
+        if (!Files.isDirectory (base)) return new ArrayList<>();
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher ("glob:" + (slash < 0 ? normal : normal.substring (slash + 1)));
+        try (Stream<Path> walk = Files.walk (base))
+        {
+            return walk.filter (Files::isRegularFile)
+                .filter (p -> matcher.matches (base.relativize (p)))
+                .map (Path::toFile).sorted().collect (Collectors.toList());
+        }
+    }
+
+    private static boolean isImage (String name)
+    {
+        String lower = name.toLowerCase (Locale.ROOT);
+        for (String extension : EXTENSIONS)
+        {
+            if (lower.endsWith (extension)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * A colour filter where each new red, green and blue value is a weighted sum of
+ * the old red, green and blue values, like greyscale and sepia. Alpha is kept.
+ * <p>
+ * Doing three multiplies per channel with doubles is slow, so every weight is
+ * multiplied out ahead of time for all 256 channel values and stored in 16.16
+ * fixed point. A pixel then costs three table reads and two integer adds per
+ * channel. When a sum lands so close to a whole number that the fixed point
+ * rounding could change which way it truncates, the sum is redone with the
+ * stored doubles, in the same order the weights were given. This gives exactly
+ * the same result as the double formula: the sum truncated with (int), then
+ * clamped between 0 and 255. A matrix with a row of weights so big (adding up
+ * to about 128 or more) that a fixed point sum wouldn't fit in an int always
+ * uses the doubles.
+ * <p>
+ * Grey pixels, with the same red, green and blue, are looked up whole in a
+ * table of the double formula's results for each of the 256 greys. When the
+ * weights add up to a whole number, like greyscale's, every grey pixel is one
+ * of those close calls, so a grey or black and white picture would otherwise
+ * take the slow way for every pixel.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+public class ColorMatrixOp implements PixelOp
+{
+    private static final int FRACTION_BITS = 16;
+    private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+    // Three rounded terms are each off by at most half a step, so a sum within
+    // two steps of a whole number has to be checked with doubles
+    private static final int MARGIN = 2;
+
+    // For each output channel, the input channel of each term, in the order given
+    private final int[][] terms;
+    // products[out][in][v] is v times the weight of that input, exactly as a double
+    private final double[][][] products;
+    // The same products in fixed point, all in one array: output channel c and
+    // input channel i start at (c * 3 + i) * 256
+    private final int[] fixed = new int[9 * 256];
+    // The new red, green and blue of each grey, worked out with the doubles
+    private final int[] greys = new int[256];
+    // Set when the weights are so big that a fixed point sum could overflow
+    // an int, so every pixel is worked out with the doubles instead
+    private final boolean doubles;
+
+    /**
+     * Creates a colour matrix from the weights of each output channel. Row 0 is
+     * red, row 1 is green and row 2 is blue, and the columns are the weights
+     * of the old red, green and blue values.
+     */
+    public ColorMatrixOp (double[][] matrix)
+    {
+        this (matrix, new int[][] {{0, 1, 2}, {0, 1, 2}, {0, 1, 2}});
+    }
+
+    /**
+     * Creates a colour matrix that adds up its terms in a set order. order[c]
+     * lists the input channels (0 red, 1 green, 2 blue) in the order they are
+     * added for output channel c, which matters when matching an existing
+     * double formula exactly.
+     */
+    public ColorMatrixOp (double[][] matrix, int[][] order)
+    {
+        if (matrix.length != 3 || order.length != 3) throw new IllegalArgumentException ("a colour matrix needs 3 rows");
+
+        terms = new int[3][];
+        products = new double[3][3][256];
+        boolean tooBig = false;
+        for (int c = 0; c < 3; c++)
+        {
+            if (matrix[c].length != 3 || order[c].length != 3) throw new IllegalArgumentException ("a colour matrix needs 3 columns");
+            terms[c] = order[c].clone();
+            // The biggest sum the row can make, with a step to spare for rounding
+            double largest = (Math.abs (matrix[c][0]) + Math.abs (matrix[c][1]) + Math.abs (matrix[c][2]) + 1.0 / 255)
+                * 255 * (1 << FRACTION_BITS);
+            tooBig |= !(largest < Integer.MAX_VALUE);
+            for (int in = 0; in < 3; in++)
+            {
+                for (int v = 0; v < 256; v++)
+                {
+                    products[c][in][v] = (double)v * matrix[c][in];
+                    fixed[(c * 3 + in) * 256 + v] = (int)Math.round (products[c][in][v] * (1 << FRACTION_BITS));
+                }
+            }
+        }
+        doubles = tooBig;
+        for (int v = 0; v < 256; v++)
+        {
+            greys[v] = exact (0, v, v, v) << 16 | exact (1, v, v, v) << 8 | exact (2, v, v, v);
+        }
+    }
+
+    public int apply (int rgb)
+    {
+        int r = Processor.getRed (rgb);
+        int g = Processor.getGreen (rgb);
+        int b = Processor.getBlue (rgb);
+        if (r == g && g == b) return (rgb & 0xFF000000) | greys[r];
+        if (doubles)
+        {
+            return Processor.packagePixel (exact (0, r, g, b), exact (1, r, g, b), exact (2, r, g, b), Processor.getAlpha (rgb));
+        }
+        int[] f = fixed;
+        int red = channel (0, f[r] + f[256 + g] + f[512 + b], r, g, b);
+        int green = channel (1, f[768 + r] + f[1024 + g] + f[1280 + b], r, g, b);
+        int blue = channel (2, f[1536 + r] + f[1792 + g] + f[2048 + b], r, g, b);
+        return Processor.packagePixel (red, green, blue, Processor.getAlpha (rgb));
+    }
+
+    /**
+     * Turns a fixed point sum into a channel value, redoing it with doubles when
+     * it is too close to a whole number to trust
+     */
+    private int channel (int c, int sum, int r, int g, int b)
+    {
+        int fraction = sum & FRACTION_MASK;
+        if (fraction >= MARGIN && fraction <= FRACTION_MASK - MARGIN)
+        {
+            return Math.max (0, Math.min (255, sum >> FRACTION_BITS));
+        }
+        return exact (c, r, g, b);
+    }
+
+    /**
+     * Works out output channel c with the double formula
+     */
+    private int exact (int c, int r, int g, int b)
+    {
+        int value = (int)(term (c, 0, r, g, b) + term (c, 1, r, g, b) + term (c, 2, r, g, b));
+        return Math.max (0, Math.min (255, value));
+    }
+
+    private double term (int c, int t, int r, int g, int b)
+    {
+        int in = terms[c][t];
+        return products[c][in][in == 0 ? r : (in == 1 ? g : b)];
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * A chain of colour filters that is applied to an image in a single pass.
+ * <p>
+ * Running greyscale, then sepia, then red-ify one after the other reads and
+ * writes every pixel three times. A ColorPipeline instead joins the chain into
+ * one function per pixel and runs it once. Filters that change each channel on
+ * its own (red-ify, blue-ify, negative, inversion and opacity) are merged into
+ * a single lookup table per channel, so a run of them costs four table reads
+ * per pixel no matter how long the run is.
+ * <p>
+ * The pipeline only changes how the steps are run, not what they do, so an
+ * image put through the pipeline is exactly the same as one put through each
+ * Processor method in turn. prefix() gives the pipeline for the first few
+ * steps, which lets undo still go back one step at a time.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+public class ColorPipeline
+{
+    // Channel numbers, in the same order as unpackPixel()
+    private static final int ALPHA = 0, RED = 1, GREEN = 2, BLUE = 3;
+    private static final int[] SHIFTS = {24, 16, 8, 0};
+
+    /**
+     * The Processor colour filters that can be put in a pipeline
+     */
+    public enum Step
+    {
+        BLUEIFY (Processor::blueifyPixel, ALPHA, RED, GREEN, BLUE),
+        REDIFY (Processor::redifyPixel, ALPHA, RED, GREEN, BLUE),
+        // Red comes from green, green from blue and blue from red
+        INVERT (Processor::invertPixel, ALPHA, GREEN, BLUE, RED),
+        NEGATIVE (Processor::negativePixel, ALPHA, RED, GREEN, BLUE),
+        GREYSCALE (Processor::greyscalePixel),
+        SEPIA (Processor::sepiaPixel),
+        INCREASE_OPACITY (Processor::increaseOpacityPixel, ALPHA, RED, GREEN, BLUE),
+        DECREASE_OPACITY (Processor::decreaseOpacityPixel, ALPHA, RED, GREEN, BLUE);
+
+        private final PixelOp op;
+        // For each output channel, the input channel it is worked out from,
+        // or null if an output channel mixes more than one input channel
+        private final int[] sources;
+
+        Step (PixelOp op, int... sources)
+        {
+            this.op = op;
+            this.sources = sources.length == 4 ? sources : null;
+        }
+
+        public PixelOp getOp ()
+        {
+            return op;
+        }
+    }
+
+    private final ArrayList<PixelOp> ops = new ArrayList<>();
+    private final ArrayList<int[]> sources = new ArrayList<>();
+    private PixelOp compiled;
+
+    /**
+     * Creates a pipeline holding the given steps, in order
+     */
+    public static ColorPipeline of (Step... steps)
+    {
+        ColorPipeline pipeline = new ColorPipeline();
+        for (Step step : steps) pipeline.add (step);
+        return pipeline;
+    }
+
+    /**
+     * Adds one of the Processor colour filters to the end of the pipeline
+     */
+    public ColorPipeline add (Step step)
+    {
+        return add (step.op, step.sources);
+    }
+
+    /**
+     * Adds any other per-pixel operation to the end of the pipeline
+     */
+    public ColorPipeline add (PixelOp op)
+    {
+        return add (op, null);
+    }
+
+    /**
+     * Adds every step of another pipeline to the end of this one
+     */
+    public ColorPipeline add (ColorPipeline other)
+    {
+        for (int i = 0; i < other.ops.size(); i++) add (other.ops.get(i), other.sources.get(i));
+        return this;
+    }
+
+    private ColorPipeline add (PixelOp op, int[] channelSources)
+    {
+        ops.add (op);
+        sources.add (channelSources);
+        compiled = null;
+        return this;
+    }
+
+    /**
+     * Returns the number of steps in the pipeline
+     */
+    public int size ()
+    {
+        return ops.size();
+    }
+
+    /**
+     * Returns a new pipeline holding only the first count steps of this one
+     */
+    public ColorPipeline prefix (int count)
+    {
+        ColorPipeline pipeline = new ColorPipeline();
+        for (int i = 0; i < count; i++) pipeline.add (ops.get(i), sources.get(i));
+        return pipeline;
+    }
+
+    /**
+     * Runs every step of the pipeline over the image in one pass
+     */
+    public void apply (BufferedImage bi)
+    {
+        if (ops.isEmpty()) return;
+        Metrics.Timer timer = Metrics.start ("colorPipeline", bi);
+        try
+        {
+            PixelEngine.apply (bi, compile());
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Joins all of the steps into a single per-pixel operation
+     */
+    public PixelOp compile ()
+    {
+        if (compiled != null) return compiled;
+
+        ArrayList<PixelOp> stages = new ArrayList<>();
+        int[] runSources = null;
+        int[][] runTables = null;
+
+        for (int i = 0; i < ops.size(); i++)
+        {
+            int[] stepSources = sources.get(i);
+            if (stepSources == null)
+            {
+                // This step mixes channels, so finish the current table run first
+                if (runSources != null) stages.add (tableOp (runSources, runTables));
+                runSources = null;
+                stages.add (ops.get(i));
+                continue;
+            }
+
+            int[][] stepTables = buildTables (ops.get(i));
+            if (runSources == null)
+            {
+                runSources = stepSources.clone();
+                runTables = stepTables;
+            }
+            else
+            {
+                // Output channel c of this step reads channel stepSources[c] of the run so far
+                int[] joinedSources = new int[4];
+                int[][] joinedTables = new int[4][256];
+                for (int c = 0; c < 4; c++)
+                {
+                    joinedSources[c] = runSources[stepSources[c]];
+                    for (int v = 0; v < 256; v++)
+                    {
+                        joinedTables[c][v] = stepTables[c][runTables[stepSources[c]][v]];
+                    }
+                }
+                runSources = joinedSources;
+                runTables = joinedTables;
+            }
+        }
+        if (runSources != null) stages.add (tableOp (runSources, runTables));
+
+        if (stages.size() == 1)
+        {
+            compiled = stages.get(0);
+        }
+        else
+        {
+            PixelOp[] chain = stages.toArray (new PixelOp[0]);
+            compiled = rgb -> {
+                for (PixelOp stage : chain) rgb = stage.apply (rgb);
+                return rgb;
+            };
+        }
+        return compiled;
+    }
+
+    /**
+     * Makes an operation that looks up each colour channel in its own table of
+     * 256 values, like the ones Histogram works out, and keeps the alpha
+     */
+    public static PixelOp lookup (int[] redTable, int[] greenTable, int[] blueTable)
+    {
+        int[] alphaTable = new int[256];
+        for (int v = 0; v < 256; v++) alphaTable[v] = v;
+        return tableOp (new int[] {ALPHA, RED, GREEN, BLUE}, new int[][] {alphaTable, redTable, greenTable, blueTable});
+    }
+
+    /**
+     * Works out the lookup table of each channel by running the operation on
+     * grey pixels, where every channel holds the same value
+     */
+    private static int[][] buildTables (PixelOp op)
+    {
+        int[][] tables = new int[4][256];
+        for (int v = 0; v < 256; v++)
+        {
+            int rgb = op.apply (Processor.packagePixel (v, v, v, v));
+            tables[ALPHA][v] = Processor.getAlpha (rgb);
+            tables[RED][v] = Processor.getRed (rgb);
+            tables[GREEN][v] = Processor.getGreen (rgb);
+            tables[BLUE][v] = Processor.getBlue (rgb);
+        }
+        return tables;
+    }
+
+    /**
+     * Makes an operation that looks up every output channel in its own table
+     */
+    private static PixelOp tableOp (int[] channelSources, int[][] tables)
+    {
+        // Storing the values already shifted into place, so a pixel is just four
+        // lookups joined together
+        int[] alphaTable = shiftedTable (tables[ALPHA], SHIFTS[ALPHA]);
+        int[] redTable = shiftedTable (tables[RED], SHIFTS[RED]);
+        int[] greenTable = shiftedTable (tables[GREEN], SHIFTS[GREEN]);
+        int[] blueTable = shiftedTable (tables[BLUE], SHIFTS[BLUE]);
+        int alphaShift = SHIFTS[channelSources[ALPHA]];
+        int redShift = SHIFTS[channelSources[RED]];
+        int greenShift = SHIFTS[channelSources[GREEN]];
+        int blueShift = SHIFTS[channelSources[BLUE]];
+
+        return rgb -> alphaTable[(rgb >>> alphaShift) & 0xFF]
+                    | redTable[(rgb >>> redShift) & 0xFF]
+                    | greenTable[(rgb >>> greenShift) & 0xFF]
+                    | blueTable[(rgb >>> blueShift) & 0xFF];
+    }
+
+    private static int[] shiftedTable (int[] table, int shift)
+    {
+        int[] shifted = new int[256];
+        for (int v = 0; v < 256; v++) shifted[v] = table[v] << shift;
+        return shifted;
+    }
+}
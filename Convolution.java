@@ -0,0 +1,542 @@
+/**
+ * Runs filters that look at the pixels around each pixel, like blurs,
+ * sharpening and edge detection, straight on the image's packed pixels.
+ * <p>
+ * Every kernel here is separable, so instead of visiting every pixel of a
+ * square around each pixel it runs one pass along the rows and then one down
+ * the columns. A box blur keeps a running total that adds the pixel coming
+ * into the window and takes away the one leaving it, so it costs the same for
+ * any radius. A Gaussian blur is three box blurs in a row, with box sizes
+ * picked so their spread adds up to the sigma asked for, which looks the same
+ * as a true Gaussian but doesn't get slower as it gets wider.
+ * <p>
+ * The colours are blurred premultiplied by their alpha, so a see-through
+ * pixel doesn't bleed its hidden colour into the pixels next to it. Images
+ * with no see-through pixels skip the alpha, and give the same result.
+ * <p>
+ * Pixels past the edge of the image are made up by the Edge mode. The image is
+ * worked on in bands of rows by the ParallelExecutor, and each band reads a
+ * halo of extra rows above and below it from a copy of the image, so the bands
+ * give exactly the same pixels as one pass over the whole image would.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+public class Convolution
+{
+    /**
+     * How the pixels past the edge of the image are made up
+     */
+    public enum Edge
+    {
+        // Repeats the pixel on the edge
+        CLAMP,
+        // Reflects the image back, so the pixel just past the edge is the one on it
+        MIRROR,
+        // Carries on from the other side of the image
+        WRAP;
+
+        /**
+         * Returns which of size pixels stands in for pixel i
+         */
+        public int map (int i, int size)
+        {
+            if (i >= 0 && i < size) return i;
+            switch (this)
+            {
+                case CLAMP:
+                    return i < 0 ? 0 : size - 1;
+                case MIRROR:
+                    int m = Math.floorMod (i, 2 * size);
+                    return m < size ? m : 2 * size - 1 - m;
+                default:
+                    return Math.floorMod (i, size);
+            }
+        }
+    }
+
+    // The widest box a pass may have, which also keeps the running totals inside an int
+    public static final int MAX_RADIUS = 4096;
+
+    // Bands are kept at least this many times as tall as their halo, so the halo isn't most of the work
+    private static final int BAND_HALOS = 4;
+
+    /**
+     * One filter worked out on the rows from yStart up to, but not including, yEnd
+     */
+    private interface BandFilter
+    {
+        void run (int[] src, int width, int height, int yStart, int yEnd, int[] out);
+    }
+
+    /**
+     * Averages every pixel with the square of pixels radius away from it
+     */
+    public static void boxBlur (BufferedImage bi, int radius, Edge edge)
+    {
+        if (radius == 0) return;
+        blur (bi, new Pass[] { Pass.box (radius) }, edge, false, 0, 0);
+    }
+
+    /**
+     * Blurs the image about as much as a Gaussian blur with the given sigma, in pixels
+     */
+    public static void gaussianBlur (BufferedImage bi, double sigma, Edge edge)
+    {
+        Pass[] passes = gaussianPasses (sigma);
+        if (passes.length == 0) return;
+        blur (bi, passes, edge, false, 0, 0);
+    }
+
+    /**
+     * Sharpens the image by adding back how different each pixel is from a
+     * Gaussian blur of the image.
+     *
+     * @param sigma     How wide the blur is, in pixels
+     * @param amount    How much of the difference is added, where 1 doubles it
+     * @param threshold How different a colour has to be from the blur, out of
+     *                  255, before it is changed, so flat areas and noise are left alone
+     */
+    public static void unsharpMask (BufferedImage bi, double sigma, double amount, int threshold, Edge edge)
+    {
+        if (threshold < 0 || threshold > 255) throw new IllegalArgumentException ("threshold must be from 0 to 255: " + threshold);
+        Pass[] passes = gaussianPasses (sigma);
+        if (passes.length == 0) return;
+        blur (bi, passes, edge, true, (int)Math.round (amount * 256), threshold);
+    }
+
+    /**
+     * Sharpens the image with the usual 3x3 sharpen kernel, which is each pixel
+     * plus how different it is from the average of the 3x3 square around it
+     */
+    public static void sharpen (BufferedImage bi, Edge edge)
+    {
+        blur (bi, new Pass[] { Pass.box (1) }, edge, true, 256, 0);
+    }
+
+    /**
+     * Runs a separable kernel over the image, the same kernel along the rows
+     * and down the columns. Each pass is divided by the divisor and rounded.
+     *
+     * @param kernel    The weights, an odd number of them with the middle one
+     *                  for the pixel itself
+     */
+    public static void convolve (BufferedImage bi, int[] kernel, int divisor, Edge edge)
+    {
+        blur (bi, new Pass[] { Pass.kernel (kernel, divisor) }, edge, false, 0, 0);
+    }
+
+    /**
+     * Turns the image into a grey map of its edges with the Sobel operator,
+     * which is how fast the brightness changes at each pixel. The alpha is kept.
+     */
+    public static void sobel (BufferedImage bi, Edge edge)
+    {
+        run (bi, 1, (src, width, height, yStart, yEnd, out) -> sobelBand (src, width, height, yStart, yEnd, edge, out));
+    }
+
+    /**
+     * Returns the radius of each box pass used for a Gaussian blur with the given sigma
+     */
+    public static int[] gaussianRadii (double sigma)
+    {
+        if (!(sigma > 0)) return new int[0];
+
+        // The box sizes whose variances add up closest to sigma squared, from "Fast Almost-Gaussian Filtering"
+        int n = 3;
+        double ideal = Math.sqrt (12 * sigma * sigma / n + 1);
+        int lower = (int)Math.floor (ideal);
+        if (lower % 2 == 0) lower--;
+        int upper = lower + 2;
+        long lowerCount = Math.round ((12 * sigma * sigma - n * (double)lower * lower - 4.0 * n * lower - 3 * n) / (-4.0 * lower - 4));
+
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            radii[i] = ((i < lowerCount ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    /**
+     * Returns how many pixels past each pixel a Gaussian blur with the given
+     * sigma reads, which is how big a halo it needs
+     */
+    public static int getGaussianHalo (double sigma)
+    {
+        int halo = 0;
+        for (int radius : gaussianRadii (sigma)) halo += radius;
+        return halo;
+    }
+
+    private static Pass[] gaussianPasses (double sigma)
+    {
+        int[] radii = gaussianRadii (sigma);
+        int count = 0;
+        for (int radius : radii)
+        {
+            if (radius > 0) count++;
+        }
+
+        // A box of radius 0 leaves the pixels as they are, so it is left out
+        Pass[] passes = new Pass[count];
+        int i = 0;
+        for (int radius : radii)
+        {
+            if (radius > 0) passes[i++] = Pass.box (radius);
+        }
+        return passes;
+    }
+
+    /**
+     * Runs the passes over the premultiplied colours of the image, then either
+     * keeps the blurred colours or, for unsharp, uses them to sharpen it
+     */
+    private static void blur (BufferedImage bi, Pass[] passes, Edge edge, boolean unsharp, int amount, int threshold)
+    {
+        int halo = 0;
+        for (Pass pass : passes) halo += pass.radius;
+        int reach = halo;
+        run (bi, halo, (src, width, height, yStart, yEnd, out) ->
+            blurBand (src, width, height, yStart, yEnd, passes, reach, edge, unsharp, amount, threshold, out));
+    }
+
+    /**
+     * Runs the filter band by band on a copy of the pixels, so every band can
+     * read its halo before the band next to it is changed
+     */
+    private static void run (BufferedImage bi, int halo, BandFilter filter)
+    {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int[] src = PixelEngine.getPixels (bi, null);
+        int[] out = new int[width * height];
+        ParallelExecutor.forEachRowBand (width, height, halo * BAND_HALOS,
+            (yStart, yEnd) -> filter.run (src, width, height, yStart, yEnd, out));
+        PixelEngine.setPixels (bi, out);
+    }
+
+    private static void blurBand (int[] src, int width, int height, int yStart, int yEnd, Pass[] passes, int halo,
+                                  Edge edge, boolean unsharp, int amount, int threshold, int[] out)
+    {
+        int rows = yEnd - yStart;
+        int tall = rows + 2 * halo;
+        int[] cols = columnMap (width, halo, edge);
+        int[] rowStarts = rowMap (width, height, yStart, tall, halo, edge);
+
+        boolean opaque = true;
+        for (int j = 0; j < tall && opaque; j++)
+        {
+            for (int i = rowStarts[j]; i < rowStarts[j] + width && opaque; i++)
+            {
+                opaque = (src[i] >>> 24) == 255;
+            }
+        }
+
+        int[] line = new int[cols.length], lineSpare = new int[cols.length];
+        int[] plane = new int[tall * width], planeSpare = new int[tall * width];
+        int[] sums = new int[width];
+        int start = yStart * width;
+        int size = rows * width;
+
+        // The alpha goes first, since the colours are divided by it at the end
+        int[] alpha = null;
+        if (!opaque)
+        {
+            alpha = filterChannel (src, width, cols, rowStarts, 24, false, passes, line, lineSpare, plane, planeSpare, sums);
+            plane = alpha == plane ? planeSpare : plane;
+            planeSpare = new int[tall * width];
+        }
+        for (int i = 0; i < size; i++)
+        {
+            int a;
+            if (unsharp) a = src[start + i] >>> 24;
+            else if (opaque) a = 255;
+            else a = clamp ((alpha[i] + 127) / 255);
+            out[start + i] = a << 24;
+        }
+
+        for (int shift = 16; shift >= 0; shift -= 8)
+        {
+            int[] sum = filterChannel (src, width, cols, rowStarts, shift, opaque, passes, line, lineSpare, plane, planeSpare, sums);
+            for (int i = 0; i < size; i++)
+            {
+                // Back to a colour out of 255, undoing the premultiply
+                int c;
+                if (opaque) c = clamp ((sum[i] + 127) / 255);
+                else if (alpha[i] <= 0) c = 0;
+                else c = clamp ((int)(((long)sum[i] * 255 + alpha[i] / 2) / alpha[i]));
+
+                if (unsharp)
+                {
+                    int original = (src[start + i] >> shift) & 255;
+                    int difference = original - c;
+                    c = Math.abs (difference) < threshold ? original : clamp (original + ((difference * amount + 128) >> 8));
+                }
+                out[start + i] |= c << shift;
+            }
+        }
+    }
+
+    /**
+     * Runs the passes over one channel of the band and its halo: along each
+     * row first, into plane, then down the columns.
+     *
+     * @param shift     Which channel, 24 for alpha, 16 for red, 8 for green and 0 for blue
+     * @return int[]    plane or planeSpare, whichever holds the band's rows
+     *                  of the channel, premultiplied and out of 255 * 255
+     */
+    private static int[] filterChannel (int[] src, int width, int[] cols, int[] rowStarts, int shift, boolean opaque,
+                                        Pass[] passes, int[] line, int[] lineSpare, int[] plane, int[] planeSpare, int[] sums)
+    {
+        int wide = cols.length;
+        int tall = rowStarts.length;
+        for (int j = 0; j < tall; j++)
+        {
+            int start = rowStarts[j];
+            if (shift == 24)
+            {
+                for (int k = 0; k < wide; k++) line[k] = (src[start + cols[k]] >>> 24) * 255;
+            }
+            else if (opaque)
+            {
+                for (int k = 0; k < wide; k++) line[k] = ((src[start + cols[k]] >> shift) & 255) * 255;
+            }
+            else
+            {
+                for (int k = 0; k < wide; k++)
+                {
+                    int rgb = src[start + cols[k]];
+                    line[k] = ((rgb >> shift) & 255) * (rgb >>> 24);
+                }
+            }
+
+            // Each pass leaves the row shorter by its radius on both sides, and the last one lands in the plane
+            int[] from = line, spare = lineSpare;
+            int length = wide;
+            for (int p = 0; p < passes.length; p++)
+            {
+                length -= 2 * passes[p].radius;
+                boolean last = p == passes.length - 1;
+                int[] to = last ? plane : spare;
+                passes[p].runLine (from, to, last ? j * width : 0, length);
+                spare = from;
+                from = to;
+            }
+        }
+
+        int[] from = plane, spare = planeSpare;
+        int rows = tall;
+        for (Pass pass : passes)
+        {
+            rows -= 2 * pass.radius;
+            pass.runRows (from, spare, width, rows, sums);
+            int[] done = spare;
+            spare = from;
+            from = done;
+        }
+        return from;
+    }
+
+    private static void sobelBand (int[] src, int width, int height, int yStart, int yEnd, Edge edge, int[] out)
+    {
+        int rows = yEnd - yStart;
+        int tall = rows + 2;
+        int[] cols = columnMap (width, 1, edge);
+        int[] rowStarts = rowMap (width, height, yStart, tall, 1, edge);
+
+        // Each row goes through [-1 0 1] for the x gradient and [1 2 1] to smooth it for the y gradient
+        int[] brightness = new int[width + 2];
+        int[] across = new int[tall * width], smooth = new int[tall * width];
+        for (int j = 0; j < tall; j++)
+        {
+            int start = rowStarts[j];
+            for (int k = 0; k < width + 2; k++)
+            {
+                int rgb = src[start + cols[k]];
+                brightness[k] = (77 * ((rgb >> 16) & 255) + 150 * ((rgb >> 8) & 255) + 29 * (rgb & 255) + 128) >> 8;
+            }
+            int row = j * width;
+            for (int x = 0; x < width; x++)
+            {
+                across[row + x] = brightness[x + 2] - brightness[x];
+                smooth[row + x] = brightness[x] + 2 * brightness[x + 1] + brightness[x + 2];
+            }
+        }
+
+        // Then the columns go through the other one of the two
+        int start = yStart * width;
+        for (int y = 0; y < rows; y++)
+        {
+            int above = y * width, middle = above + width, below = middle + width;
+            for (int x = 0; x < width; x++)
+            {
+                int gx = across[above + x] + 2 * across[middle + x] + across[below + x];
+                int gy = smooth[below + x] - smooth[above + x];
+                int edgeStrength = Math.min (255, (int)Math.sqrt (gx * gx + gy * gy));
+                int i = start + above + x;
+                out[i] = (src[i] & 0xFF000000) | edgeStrength * 0x010101;
+            }
+        }
+    }
+
+    /**
+     * Returns which column of the image each column of a row with halo extra
+     * pixels on both sides stands for
+     */
+    private static int[] columnMap (int width, int halo, Edge edge)
+    {
+        int[] cols = new int[width + 2 * halo];
+        for (int k = 0; k < cols.length; k++)
+        {
+            cols[k] = edge.map (k - halo, width);
+        }
+        return cols;
+    }
+
+    /**
+     * Returns where each row of the band and its halo starts in the packed pixels
+     */
+    private static int[] rowMap (int width, int height, int yStart, int tall, int halo, Edge edge)
+    {
+        int[] rowStarts = new int[tall];
+        for (int j = 0; j < tall; j++)
+        {
+            rowStarts[j] = edge.map (yStart - halo + j, height) * width;
+        }
+        return rowStarts;
+    }
+
+    private static int clamp (int value)
+    {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**
+     * One pass of a separable filter, either a box or a kernel of weights
+     */
+    private static class Pass
+    {
+        final int radius;
+        // Null for a box
+        final int[] weights;
+        final int divisor;
+        // 2^32 / the size of the box, so taking the average is a multiply instead of a divide
+        final long reciprocal;
+
+        private Pass (int radius, int[] weights, int divisor)
+        {
+            this.radius = radius;
+            this.weights = weights;
+            this.divisor = divisor;
+            reciprocal = ((1L << 32) + radius) / (2 * radius + 1);
+        }
+
+        static Pass box (int radius)
+        {
+            if (radius < 0 || radius > MAX_RADIUS)
+            {
+                throw new IllegalArgumentException ("radius must be from 0 to " + MAX_RADIUS + ": " + radius);
+            }
+            return new Pass (radius, null, 1);
+        }
+
+        static Pass kernel (int[] weights, int divisor)
+        {
+            if (weights.length % 2 == 0 || weights.length > 2 * MAX_RADIUS + 1)
+            {
+                throw new IllegalArgumentException ("kernel needs an odd number of weights, at most " + (2 * MAX_RADIUS + 1));
+            }
+            if (divisor < 1) throw new IllegalArgumentException ("divisor must be at least 1: " + divisor);
+            long total = 0;
+            for (int weight : weights) total += Math.abs ((long)weight);
+            // Every value is at most 255 * 255, and the sums have to fit in an int
+            if (total * 255 * 255 > Integer.MAX_VALUE) throw new IllegalArgumentException ("kernel weights are too big");
+            return new Pass (weights.length / 2, weights.clone(), divisor);
+        }
+
+        /**
+         * Filters length values of a row, reading in from index 0 up to
+         * length + 2 * radius, and writes them into out from index offset
+         */
+        void runLine (int[] in, int[] out, int offset, int length)
+        {
+            if (weights == null)
+            {
+                int size = 2 * radius + 1;
+                int sum = 0;
+                for (int i = 0; i < size - 1; i++) sum += in[i];
+                for (int i = 0; i < length; i++)
+                {
+                    sum += in[i + size - 1];
+                    out[offset + i] = average (sum);
+                    sum -= in[i];
+                }
+                return;
+            }
+
+            for (int i = 0; i < length; i++)
+            {
+                int sum = 0;
+                for (int k = 0; k < weights.length; k++) sum += weights[k] * in[i + k];
+                out[offset + i] = divide (sum);
+            }
+        }
+
+        /**
+         * Filters rows rows of width values, reading in from row 0 up to
+         * rows + 2 * radius. The running totals are kept for every column at
+         * once, so the rows are read in order.
+         */
+        void runRows (int[] in, int[] out, int width, int rows, int[] sums)
+        {
+            int size = weights == null ? 2 * radius + 1 : weights.length;
+            if (weights == null)
+            {
+                Arrays.fill (sums, 0, width, 0);
+                for (int j = 0; j < size - 1; j++)
+                {
+                    int row = j * width;
+                    for (int x = 0; x < width; x++) sums[x] += in[row + x];
+                }
+                for (int y = 0; y < rows; y++)
+                {
+                    int row = y * width, entering = (y + size - 1) * width;
+                    for (int x = 0; x < width; x++)
+                    {
+                        int sum = sums[x] + in[entering + x];
+                        out[row + x] = average (sum);
+                        sums[x] = sum - in[row + x];
+                    }
+                }
+                return;
+            }
+
+            for (int y = 0; y < rows; y++)
+            {
+                Arrays.fill (sums, 0, width, 0);
+                for (int k = 0; k < size; k++)
+                {
+                    int weight = weights[k], row = (y + k) * width;
+                    for (int x = 0; x < width; x++) sums[x] += weight * in[row + x];
+                }
+                int row = y * width;
+                for (int x = 0; x < width; x++) out[row + x] = divide (sums[x]);
+            }
+        }
+
+        private int average (int sum)
+        {
+            return (int)((sum * reciprocal + (1L << 31)) >>> 32);
+        }
+
+        private int divide (int sum)
+        {
+            return divisor == 1 ? sum : Math.floorDiv (sum + divisor / 2, divisor);
+        }
+    }
+}
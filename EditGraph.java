@@ -0,0 +1,546 @@
+/**
+ * The image kept as the picture it was opened from plus the list of changes
+ * made to it, instead of one picture that every change is made to for good.
+ * <p>
+ * Nothing is worked out until render() asks for the image at the current
+ * position in the list, when it is shown or saved. A render starts from
+ * whichever image gets there in the fewest passes over the image: the newest
+ * render, the nearest earlier step whose result is still in the cache, or the
+ * original. Going forward from there it replays the changes up to the
+ * position. Going back from the newest render, like after an undo, it makes
+ * the inverse of each change instead, as long as every one of them has one,
+ * so undoing a flip or a rotation is a single pass however long the list is.
+ * A run of colour filters next to each other is replayed as one pass.
+ * <p>
+ * Only the results of changes that lose information, like greyscale or
+ * pixalate, are ever cached, since anything else is an inverse away from the
+ * result before it. Even those are only cached once replaying up to them from
+ * the nearest cached result before would take more than maxReplayCost passes
+ * over the image, so undoing or changing a late step never replays much more
+ * than that. The cached results are kept in an UndoHistory, as compressed
+ * tiles that results which look the same in places share, and the ones used
+ * longest ago are thrown out when they go over the budget.
+ * <p>
+ * Undo, redo and reset only move the position, so reset just goes back to the
+ * original and the changes can still be redone after it. A new change forgets
+ * everything after the position. A step can also be swapped for a different
+ * change, like pixalate with bigger blocks, which only throws out the cached
+ * results from that step on.
+ * <p>
+ * Changes to the list made between begin() and commit() can all be taken back
+ * with rollback(), for when rendering them is cancelled.
+ * <p>
+ * Each render also works out which part of the image can be different from
+ * the one the render before it returned, from the changes the two don't have
+ * in common, so only that part has to be put on screen again.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EditGraph
+{
+    // Roughly what getting the image a render starts from costs, in passes over the image
+    private static final double COPY_COST = 1, RESTORE_COST = 2;
+
+    private final double maxReplayCost;
+
+    private BufferedImage original;
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    // How many of the changes are in effect
+    private int position = 0;
+    // The image the newest render returned, the steps it made, and the part
+    // of it that changed from the render before
+    private BufferedImage rendered;
+    private ArrayList<Node> renderedPath;
+    private Rectangle changed;
+
+    // Results of steps, saved under their Node
+    private final UndoHistory cache;
+
+    // What to go back to on rollback()
+    private ArrayList<Node> savedNodes;
+    private int savedPosition;
+
+    /**
+     * Makes the images that render() draws into, so they can belong to
+     * something else like a GreenfootImage
+     */
+    public interface ImageMaker
+    {
+        BufferedImage make (int width, int height);
+    }
+
+    /**
+     * Creates a list with no changes in it yet
+     *
+     * @param original          The image the changes are made to, which is never changed itself
+     * @param cacheBudget       The most bytes of compressed tiles the cached results may take up
+     * @param maxReplayCost     The most passes over the image replaying up to a
+     *                          change that loses information may take before
+     *                          its result is cached
+     */
+    public EditGraph (BufferedImage original, long cacheBudget, double maxReplayCost)
+    {
+        this (original, new UndoHistory (cacheBudget), maxReplayCost);
+    }
+
+    /**
+     * Creates a list with no changes in it yet, caching results in the given
+     * history, like one that spills to disk
+     *
+     * @param original          The image the changes are made to, which is never changed itself
+     * @param cache             Where to keep the cached results, which is emptied first
+     * @param maxReplayCost     The most passes over the image replaying up to a
+     *                          change that loses information may take before
+     *                          its result is cached
+     */
+    public EditGraph (BufferedImage original, UndoHistory cache, double maxReplayCost)
+    {
+        this.original = original;
+        this.cache = cache;
+        this.maxReplayCost = maxReplayCost;
+        cache.clear();
+    }
+
+    /**
+     * Starts over from a different image, for example after opening a file.
+     * Every change and cached result is forgotten.
+     */
+    public void setOriginal (BufferedImage image)
+    {
+        original = image;
+        nodes.clear();
+        position = 0;
+        rendered = null;
+        renderedPath = null;
+        savedNodes = null;
+        cache.clear();
+    }
+
+    public BufferedImage getOriginal ()
+    {
+        return original;
+    }
+
+    /**
+     * Adds a change after the current position. Anything that could be redone
+     * is forgotten.
+     */
+    public void add (EditOp op)
+    {
+        forget (position);
+        nodes.subList (position, nodes.size()).clear();
+        nodes.add (new Node (op));
+        position++;
+    }
+
+    /**
+     * Swaps the change at the given step for a different one. The steps after
+     * it stay, but have to be worked out again.
+     */
+    public void replace (int index, EditOp op)
+    {
+        checkIndex (index);
+        forget (index);
+        nodes.set (index, new Node (op));
+    }
+
+    /**
+     * Takes the change at the given step out of the list
+     */
+    public void remove (int index)
+    {
+        checkIndex (index);
+        forget (index);
+        nodes.remove (index);
+        if (position > index) position--;
+    }
+
+    /**
+     * Goes back one change. If it can be undone exactly, like a flip, the next
+     * render makes its inverse to the newest render rather than replaying the
+     * changes before it.
+     */
+    public void undo ()
+    {
+        if (position > 0) position--;
+    }
+
+    public void redo ()
+    {
+        if (position < nodes.size()) position++;
+    }
+
+    /**
+     * Goes back to the original image. Every change can still be redone.
+     */
+    public void reset ()
+    {
+        position = 0;
+    }
+
+    public boolean canUndo ()
+    {
+        return position > 0;
+    }
+
+    public boolean canRedo ()
+    {
+        return position < nodes.size();
+    }
+
+    /**
+     * Returns how many changes are in effect
+     */
+    public int getPosition ()
+    {
+        return position;
+    }
+
+    /**
+     * Returns how many changes are in the list, including the ones that can be redone
+     */
+    public int size ()
+    {
+        return nodes.size();
+    }
+
+    public EditOp getOp (int index)
+    {
+        checkIndex (index);
+        return nodes.get(index).op;
+    }
+
+    /**
+     * Checks if the image at the current position is different from the one
+     * the newest render returned
+     */
+    public boolean needsRender ()
+    {
+        return getRenderedSteps() != position;
+    }
+
+    /**
+     * Returns how many changes, or inverses of changes, render() will make to
+     * reach the current position
+     */
+    public int getReplaySteps ()
+    {
+        return Math.abs (position - findStart().steps);
+    }
+
+    /**
+     * Works out the image at the current position
+     *
+     * @param maker             Makes the image that the result is drawn into
+     * @param stepDone          Run after each change or inverse is made, or null
+     * @return BufferedImage    The image, which belongs to the caller. Changes
+     *                          that make a new image, like rotations, return it
+     *                          instead of the one from maker.
+     */
+    public BufferedImage render (ImageMaker maker, Runnable stepDone)
+    {
+        Start start = findStart();
+        BufferedImage bi;
+        if (start.fromRendered)
+        {
+            // The newest render was handed over, so it is copied rather than changed
+            bi = maker.make (rendered.getWidth(), rendered.getHeight());
+            PixelEngine.copy (rendered, bi);
+        }
+        else if (start.steps == 0)
+        {
+            bi = maker.make (original.getWidth(), original.getHeight());
+            PixelEngine.copy (original, bi);
+        }
+        else
+        {
+            Node node = nodes.get (start.steps - 1);
+            Dimension size = cache.getSize (node);
+            bi = maker.make (size.width, size.height);
+            cache.restore (node, bi);
+        }
+
+        // Going back, every change in the way has an inverse, made newest first
+        for (int i = start.steps - 1; i >= position; i--)
+        {
+            bi = nodes.get(i).op.inverse().apply (bi);
+            if (stepDone != null) stepDone.run();
+        }
+
+        int i = start.steps;
+        while (i < position)
+        {
+            // A run of colour filters is made in one pass, and only the end of it can be cached
+            int end = i + 1;
+            if (nodes.get(i).op.getColorPipeline() != null)
+            {
+                while (end < position && nodes.get(end).op.getColorPipeline() != null) end++;
+            }
+            if (end - i == 1)
+            {
+                bi = nodes.get(i).op.apply (bi);
+            }
+            else
+            {
+                ArrayList<EditOp> run = new ArrayList<>();
+                for (int j = i; j < end; j++) run.add (nodes.get(j).op);
+                bi = EditOps.join (run).apply (bi);
+            }
+
+            boolean lossy = false;
+            for (; i < end; i++)
+            {
+                if (stepDone != null) stepDone.run();
+                lossy |= nodes.get(i).op.inverse() == null;
+            }
+            if (lossy && getReplayCost (end) > maxReplayCost) store (nodes.get (end - 1), bi);
+        }
+        ArrayList<Node> path = new ArrayList<>(nodes.subList (0, position));
+        changed = findChanged (renderedPath, path, bi.getWidth(), bi.getHeight());
+        renderedPath = path;
+        rendered = bi;
+        return bi;
+    }
+
+    /**
+     * Returns the part of the image from the newest render that can be
+     * different from the image the render before it returned, or null if all
+     * of it can be, like after a rotation or the first render
+     */
+    public Rectangle getChangedRegion ()
+    {
+        return changed;
+    }
+
+    /**
+     * Returns how many bytes the cached results take up
+     */
+    public long getCachedBytes ()
+    {
+        return cache.getBytes();
+    }
+
+    /**
+     * Starts a group of changes to the list that can be taken back all at once
+     */
+    public void begin ()
+    {
+        savedNodes = new ArrayList<>(nodes);
+        savedPosition = position;
+    }
+
+    /**
+     * Keeps the changes to the list made since begin()
+     */
+    public void commit ()
+    {
+        savedNodes = null;
+    }
+
+    /**
+     * Puts the list back the way it was at begin()
+     */
+    public void rollback ()
+    {
+        if (savedNodes == null) return;
+
+        // Results of steps that are only in the list since begin() can never be used again
+        for (Node node : nodes)
+        {
+            if (!savedNodes.contains (node)) cache.remove (node);
+        }
+        nodes.clear();
+        nodes.addAll (savedNodes);
+        position = savedPosition;
+        commit();
+    }
+
+    /**
+     * Works out which part of an image can differ between two lists of steps
+     * from the same original. The steps they start with in common made the
+     * same image, so only the steps after that on either side count.
+     */
+    private static Rectangle findChanged (ArrayList<Node> before, ArrayList<Node> after, int width, int height)
+    {
+        if (before == null) return null;
+        int common = 0;
+        while (common < before.size() && common < after.size() && before.get (common) == after.get (common))
+        {
+            common++;
+        }
+
+        Rectangle region = new Rectangle();
+        for (ArrayList<Node> path : List.of (before, after))
+        {
+            for (int i = common; i < path.size(); i++)
+            {
+                // Every step here keeps the size, or the loop stops, so they all see the same size
+                Rectangle step = path.get (i).op.getChangedRegion (width, height);
+                if (step == null) return null;
+                if (step.isEmpty()) continue;
+                region = region.isEmpty() ? step : region.union (step);
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Works out the image a render to the current position should start from,
+     * counting every pass over the image it takes. The nearest cached result
+     * before the position, or the original, is restored and the changes after
+     * it are replayed. The newest render is copied, and the changes after it
+     * are replayed, or the ones since undone are taken back by their inverses.
+     */
+    private Start findStart ()
+    {
+        int from = 0;
+        for (int i = position; i > 0; i--)
+        {
+            if (cache.contains (nodes.get (i - 1)))
+            {
+                from = i;
+                break;
+            }
+        }
+        Start best = new Start (from, false, (from == 0 ? COPY_COST : RESTORE_COST) + getForwardCost (from, position));
+
+        int steps = getRenderedSteps();
+        if (steps >= 0)
+        {
+            double cost = COPY_COST + (steps <= position ? getForwardCost (steps, position) : getInverseCost (position, steps));
+            if (cost < best.cost) best = new Start (steps, true, cost);
+        }
+        return best;
+    }
+
+    /**
+     * Returns how many steps the newest render made, or -1 if there is no
+     * render or the list has changed so it is no longer the result of any step
+     */
+    private int getRenderedSteps ()
+    {
+        if (rendered == null || renderedPath.size() > nodes.size()) return -1;
+        for (int i = 0; i < renderedPath.size(); i++)
+        {
+            if (renderedPath.get (i) != nodes.get (i)) return -1;
+        }
+        return renderedPath.size();
+    }
+
+    /**
+     * Returns how many passes over the image making the changes from step
+     * from up to step to takes
+     */
+    private double getForwardCost (int from, int to)
+    {
+        double cost = 0;
+        for (int i = from; i < to; i++) cost += nodes.get(i).op.getCost();
+        return cost;
+    }
+
+    /**
+     * Returns how many passes over the image taking back the changes from
+     * step from up to step to by their inverses takes, or infinity if one of
+     * them has no inverse
+     */
+    private double getInverseCost (int from, int to)
+    {
+        double cost = 0;
+        for (int i = from; i < to; i++)
+        {
+            EditOp inverse = nodes.get(i).op.inverse();
+            if (inverse == null) return Double.POSITIVE_INFINITY;
+            cost += inverse.getCost();
+        }
+        return cost;
+    }
+
+    /**
+     * Returns how many passes over the image replaying up to step end takes,
+     * from the nearest cached result before it or the original
+     */
+    private double getReplayCost (int end)
+    {
+        int from = end;
+        while (from > 0 && !cache.contains (nodes.get (from - 1))) from--;
+        return getForwardCost (from, end);
+    }
+
+    /**
+     * Keeps a copy of the result of a step. The cache makes room by throwing
+     * out the results used longest ago.
+     */
+    private void store (Node node, BufferedImage bi)
+    {
+        if (cache.contains (node)) return;
+        try
+        {
+            cache.put (node, bi);
+        }
+        catch (OutOfMemoryError e)
+        {
+            // Nowhere left to keep it, so the results are worked out again instead
+            cache.clear();
+        }
+    }
+
+    /**
+     * Throws out the cached results of the step at index and every step after it
+     */
+    private void forget (int index)
+    {
+        for (int i = index; i < nodes.size(); i++)
+        {
+            cache.remove (nodes.get (i));
+        }
+    }
+
+    private void checkIndex (int index)
+    {
+        if (index < 0 || index >= nodes.size())
+        {
+            throw new IndexOutOfBoundsException ("no step " + index + " in a list of " + nodes.size());
+        }
+    }
+
+    /**
+     * Where a render starts: the image after the given number of steps, taken
+     * from the newest render or else from the cache or the original, and how
+     * many passes over the image getting from there to the position takes
+     */
+    private static class Start
+    {
+        final int steps;
+        final boolean fromRendered;
+        final double cost;
+
+        Start (int steps, boolean fromRendered, double cost)
+        {
+            this.steps = steps;
+            this.fromRendered = fromRendered;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * One step in the list. Its cached result belongs to this exact object, so
+     * a step swapped for another never picks up the old result.
+     */
+    private static class Node
+    {
+        final EditOp op;
+
+        Node (EditOp op)
+        {
+            this.op = op;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Checks that the EditGraph renders the right image whichever way it gets
+ * there, and that it takes the cheap way when there is one.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot:
+ * <pre>java EditGraphCheck</pre>
+ * Every change with an inverse is made and then undone on a random picture
+ * with see-through pixels, which has to give back exactly the same pixels.
+ * Then random changes, undos, redos, resets and swaps are made to a list,
+ * and after each one the render must match making the changes in effect to
+ * the original one by one. Last, undoing a flip at the end of a long list has
+ * to take one inverse rather than a replay, and only changes that lose
+ * information may have their results cached. The check exits with 1 if
+ * anything is wrong.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class EditGraphCheck
+{
+    private static final int WIDTH = 37, HEIGHT = 23, STEPS = 400;
+    private static final List<EditOp> INVERTIBLE = Arrays.asList (EditOps.FLIP_HORIZONTAL, EditOps.FLIP_VERTICAL,
+        EditOps.ROTATE_180, EditOps.NEGATIVE, EditOps.INVERT, EditOps.ROTATE_CW_90, EditOps.ROTATE_CCW_90);
+    private static final List<EditOp> LOSSY = Arrays.asList (EditOps.GREYSCALE, EditOps.SEPIA, EditOps.BLUEIFY,
+        EditOps.DECREASE_OPACITY, EditOps.pixalate (3), EditOps.SHARPEN);
+
+    private static boolean failed = false;
+
+    public static void main (String[] args)
+    {
+        checkInverses();
+        checkRandomEdits();
+        checkCheapUndo();
+        if (failed)
+        {
+            System.out.println ("The edit list rendered a wrong image or took the long way");
+            System.exit (1);
+        }
+        System.out.println ("Every render matches and undo takes the inverse");
+    }
+
+    private static void checkInverses ()
+    {
+        BufferedImage picture = randomImage (new Random (1));
+        for (EditOp op : INVERTIBLE)
+        {
+            BufferedImage back = op.inverse().apply (op.apply (copyOf (picture)));
+            check (same (picture, back), op.getName() + " then its inverse changed the picture");
+        }
+    }
+
+    /**
+     * Makes random changes to the list and checks every render against making
+     * the changes in effect one at a time
+     */
+    private static void checkRandomEdits ()
+    {
+        Random random = new Random (2);
+        BufferedImage original = randomImage (random);
+        // A small budget, so cached results are thrown out as well
+        EditGraph graph = new EditGraph (original, 8 * 1024, 2);
+        for (int step = 0; step < STEPS; step++)
+        {
+            int action = random.nextInt (10);
+            if (action < 4) graph.add (INVERTIBLE.get (random.nextInt (INVERTIBLE.size())));
+            else if (action < 6) graph.add (LOSSY.get (random.nextInt (LOSSY.size())));
+            else if (action < 8) graph.undo();
+            else if (action == 8) graph.redo();
+            else if (random.nextBoolean()) graph.reset();
+            else if (graph.canUndo()) graph.replace (graph.getPosition() - 1, EditOps.pixalate (2 + random.nextInt (4)));
+
+            if (!graph.needsRender()) continue;
+            BufferedImage rendered = graph.render (EditGraphCheck::newImage, null);
+            BufferedImage expected = copyOf (original);
+            for (int i = 0; i < graph.getPosition(); i++) expected = graph.getOp (i).apply (expected);
+            if (!same (expected, rendered))
+            {
+                check (false, "render " + step + " at position " + graph.getPosition() + " doesn't match replaying the list");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Undoing a flip after a long list must be one inverse, and only the
+     * greyscale in the list may be cached
+     */
+    private static void checkCheapUndo ()
+    {
+        EditGraph graph = new EditGraph (randomImage (new Random (3)), 1L << 20, 4);
+        for (int i = 0; i < 20; i++) graph.add (EditOps.FLIP_HORIZONTAL);
+        graph.render (EditGraphCheck::newImage, null);
+        check (graph.getCachedBytes() == 0, "a result of flips alone was cached");
+
+        graph.add (EditOps.GREYSCALE);
+        for (int i = 0; i < 20; i++) graph.add (i % 2 == 0 ? EditOps.ROTATE_CW_90 : EditOps.FLIP_VERTICAL);
+        BufferedImage before = graph.render (EditGraphCheck::newImage, null);
+        long cached = graph.getCachedBytes();
+        check (cached > 0, "the greyscale after 20 flips wasn't cached");
+
+        graph.undo();
+        check (graph.getReplaySteps() == 1, "undoing a flip replays " + graph.getReplaySteps() + " changes");
+        BufferedImage undone = graph.render (EditGraphCheck::newImage, null);
+        check (same (EditOps.FLIP_VERTICAL.apply (copyOf (before)), undone), "undoing the flip gave the wrong image");
+        check (graph.getCachedBytes() == cached, "undoing a flip cached a result");
+
+        graph.redo();
+        check (graph.getReplaySteps() == 1, "redoing a flip replays " + graph.getReplaySteps() + " changes");
+        check (same (before, graph.render (EditGraphCheck::newImage, null)), "redoing the flip gave the wrong image");
+    }
+
+    private static void check (boolean ok, String message)
+    {
+        if (ok) return;
+        System.out.println ("FAILED, " + message);
+        failed = true;
+    }
+
+    private static boolean same (BufferedImage a, BufferedImage b)
+    {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) return false;
+        return Arrays.equals (PixelEngine.getPixels (a, null), PixelEngine.getPixels (b, null));
+    }
+
+    private static BufferedImage copyOf (BufferedImage bi)
+    {
+        BufferedImage copy = newImage (bi.getWidth(), bi.getHeight());
+        PixelEngine.copy (bi, copy);
+        return copy;
+    }
+
+    /**
+     * Returns a picture of random colours, with a few fully and partly see-through pixels
+     */
+    private static BufferedImage randomImage (Random random)
+    {
+        BufferedImage bi = new BufferedImage (WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        int[] data = PixelEngine.getData (bi);
+        for (int i = 0; i < data.length; i++)
+        {
+            int rgb = random.nextInt();
+            data[i] = i % 7 == 0 ? rgb & 0x00FFFFFF : i % 5 == 0 ? rgb : rgb | 0xFF000000;
+        }
+        return bi;
+    }
+
+    /**
+     * Makes the same kind of image the FilterRunner renders into
+     */
+    private static BufferedImage newImage (int width, int height)
+    {
+        return new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+}
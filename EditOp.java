@@ -0,0 +1,78 @@
+/**
+ * One change made to the image, kept in the EditGraph so that it can be
+ * replayed from the original image whenever it is needed.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+public interface EditOp
+{
+    /**
+     * Returns the name shown for this change
+     */
+    String getName ();
+
+    /**
+     * Makes the change to the image. Running it again on the same pixels must
+     * give the same result, since redo and undo may replay it.
+     *
+     * @param bi                The image to change
+     * @return BufferedImage    The changed image, which is bi itself for changes
+     *                          made in place
+     */
+    BufferedImage apply (BufferedImage bi);
+
+    /**
+     * Returns the change that exactly undoes this one, or null if this change
+     * loses information and needs a saved copy of the image to be undone
+     */
+    EditOp inverse ();
+
+    /**
+     * Returns roughly how long this change takes, counted in passes over the image
+     */
+    double getCost ();
+
+    /**
+     * Returns how many rows of the image this change needs to see together.
+     * A colour filter only needs one row at a time and pixalate needs one row
+     * of blocks, so those can be run on a band of rows whose height is a
+     * multiple of this. Changes that move pixels between distant rows, like
+     * rotations, or look at the whole image first, return 0.
+     */
+    int getBandHeight ();
+
+    /**
+     * Returns how many pixels past the edge of a piece of the image this change
+     * reads to work out that piece, like the radius of a blur. Changes that
+     * only read the pixels they change, or that move whole rows around, return 0.
+     */
+    int getHalo ();
+
+    /**
+     * Returns the part of an image of the given size that this change can
+     * alter, so only that part has to be put on screen again. Changes that can
+     * make an image of a different size, like a 90 degree rotation or a
+     * resize, return null.
+     */
+    Rectangle getChangedRegion (int width, int height);
+
+    /**
+     * Returns the ColorPipeline that makes exactly the same change, or null if
+     * this isn't a plain colour filter. A run of changes that all have one can
+     * be made in a single pass over the image.
+     */
+    ColorPipeline getColorPipeline ();
+
+    /**
+     * Returns this change as it should be made to a copy of the image shrunk
+     * to the given scale, like 0.25 for a quarter of the width and height. Only
+     * changes measured in pixels, like the block size of pixalate, are any
+     * different, so most changes return themselves.
+     */
+    EditOp scaled (double scale);
+}
@@ -0,0 +1,382 @@
+/**
+ * The Processor methods wrapped up as EditOps, so that the EditGraph can
+ * replay them and the FilterRunner knows which changes cancel each other out.
+ * <p>
+ * Flips, rotate 180 and the negative undo themselves, the two 90 degree
+ * rotations undo each other and the colour cycle is undone by cycling twice
+ * more. Everything else rounds or clamps colours and can't be undone exactly.
+ * <p>
+ * The plain colour filters also know the ColorPipeline they are the same as,
+ * so fuse() can join a run of them into one change that makes them all in a
+ * single pass over the image.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.DoubleFunction;
+import java.util.function.UnaryOperator;
+
+public class EditOps
+{
+    public static final EditOp BLUEIFY = colour ("Blue-ify", ColorPipeline.Step.BLUEIFY, Processor::blueify);
+    public static final EditOp REDIFY = colour ("Red-ify", ColorPipeline.Step.REDIFY, Processor::redify);
+    public static final EditOp GREYSCALE = colour ("Greyscale", ColorPipeline.Step.GREYSCALE, Processor::greyscale);
+    public static final EditOp SEPIA = colour ("Sepia", ColorPipeline.Step.SEPIA, Processor::sepia);
+    public static final EditOp INCREASE_OPACITY = colour ("Increase Opacity", ColorPipeline.Step.INCREASE_OPACITY, Processor::increaseOpacity);
+    public static final EditOp DECREASE_OPACITY = colour ("Decrease Opacity", ColorPipeline.Step.DECREASE_OPACITY, Processor::decreaseOpacity);
+
+    public static final EditOp FLIP_HORIZONTAL = rowByRow (selfInverse ("Flip Horizontal", 1, Processor::flipHorizontal));
+    public static final EditOp FLIP_VERTICAL = selfInverse ("Flip Vertical", 1, Processor::flipVertical);
+    public static final EditOp NEGATIVE = selfInverse (colour ("Toggle Negative", ColorPipeline.Step.NEGATIVE, Processor::tglNegative));
+    public static final EditOp ROTATE_180 = selfInverse ("Rotate 180", 1, Processor::rotate180);
+
+    public static final EditOp SHARPEN = neighbourhood ("Sharpen", 2, 1, Processor::sharpen);
+    public static final EditOp FIND_EDGES = neighbourhood ("Find Edges", 2, 1, Processor::findEdges);
+    // These look at the whole image before changing any of it, so they can't be run in bands
+    public static final EditOp AUTO_LEVELS = inPlace ("Auto Levels", 2, Processor::autoLevels);
+    public static final EditOp EQUALIZE = inPlace ("Equalize", 2, Processor::equalize);
+
+    public static final EditOp INVERT;
+    public static final EditOp ROTATE_CW_90;
+    public static final EditOp ROTATE_CCW_90;
+
+    static
+    {
+        // Cycling the colours twice more brings them back, and the pipeline does both cycles in one pass
+        ColorPipeline uncycle = ColorPipeline.of (ColorPipeline.Step.INVERT, ColorPipeline.Step.INVERT);
+        SimpleOp invert = colour ("Cycle Inversion", ColorPipeline.Step.INVERT, Processor::invert);
+        SimpleOp uninvert = new SimpleOp ("Undo Cycle Inversion", 1, image (uncycle::apply));
+        uninvert.colors = uncycle;
+        uninvert.bandHeight = 1;
+        pair (invert, uninvert);
+        INVERT = invert;
+
+        SimpleOp cw = new SimpleOp ("CW 90 Rotate", 2, bi -> {
+            BufferedImage rotated = new BufferedImage (bi.getHeight(), bi.getWidth(), BufferedImage.TYPE_INT_ARGB);
+            Processor.rotateCw90 (bi, rotated);
+            return rotated;
+        });
+        SimpleOp ccw = new SimpleOp ("CCW 90 Rotate", 2, bi -> {
+            BufferedImage rotated = new BufferedImage (bi.getHeight(), bi.getWidth(), BufferedImage.TYPE_INT_ARGB);
+            Processor.rotateCcw90 (bi, rotated);
+            return rotated;
+        });
+        cw.resizes = true;
+        ccw.resizes = true;
+        pair (cw, ccw);
+        ROTATE_CW_90 = cw;
+        ROTATE_CCW_90 = ccw;
+    }
+
+    /**
+     * Returns a pixalate change with blocks of the given size
+     */
+    public static EditOp pixalate (int factor)
+    {
+        SimpleOp op = new SimpleOp ("Pixalate " + factor, 2, image (bi -> Processor.pixalate (bi, factor)));
+        // On a shrunk copy the blocks shrink too, so they cover the same part of the picture
+        op.scaler = scale -> pixalate (Math.max (1, (int)Math.round (factor * scale)));
+        // The blocks start at the top, so a band of whole rows of blocks comes out the same
+        op.bandHeight = factor;
+        return op;
+    }
+
+    /**
+     * Returns a Gaussian blur change spreading sigma pixels
+     */
+    public static EditOp blur (double sigma)
+    {
+        SimpleOp op = new SimpleOp ("Blur " + number (sigma), 3, image (bi -> Processor.blur (bi, sigma)));
+        op.halo = Convolution.getGaussianHalo (sigma);
+        // A shrunk copy needs a narrower blur to look the same
+        op.scaler = scale -> blur (sigma * scale);
+        return op;
+    }
+
+    /**
+     * Returns an unsharp mask change, see Processor.unsharpMask()
+     */
+    public static EditOp unsharpMask (double sigma, double amount, int threshold)
+    {
+        SimpleOp op = new SimpleOp ("Unsharp Mask " + number (sigma), 3,
+            image (bi -> Processor.unsharpMask (bi, sigma, amount, threshold)));
+        op.halo = Convolution.getGaussianHalo (sigma);
+        op.scaler = scale -> unsharpMask (sigma * scale, amount, threshold);
+        return op;
+    }
+
+    /**
+     * Returns a change that resizes the image to width by height
+     */
+    public static EditOp resize (int width, int height)
+    {
+        SimpleOp op = new SimpleOp ("Resize " + width + "x" + height, 3, bi -> Processor.resize (bi, width, height));
+        // A shrunk copy is resized by the same fraction, so it stays a shrunk copy of the result
+        op.scaler = scale -> resize (Math.max (1, (int)Math.round (width * scale)), Math.max (1, (int)Math.round (height * scale)));
+        op.resizes = true;
+        return op;
+    }
+
+    /**
+     * Returns a change that rotates the image clockwise by any number of degrees
+     */
+    public static EditOp rotate (double degrees)
+    {
+        SimpleOp op = new SimpleOp ("Rotate " + number (degrees), 3, bi -> Processor.rotate (bi, degrees));
+        // The corners stick out past the old edges, so the image grows
+        op.resizes = true;
+        return op;
+    }
+
+    /**
+     * Returns the change with the given name, like "sepia", "flipH" or "pixalate:8".
+     * A number after a colon is the block size for pixalate, the sigma for
+     * blur and unsharp, or the degrees for rotate. Resize takes a size, like
+     * "resize:640x480".
+     */
+    public static EditOp parse (String name)
+    {
+        String[] parts = name.trim().split (":", 2);
+        switch (parts[0].toLowerCase())
+        {
+            case "blueify": return BLUEIFY;
+            case "redify": return REDIFY;
+            case "greyscale": case "grayscale": return GREYSCALE;
+            case "sepia": return SEPIA;
+            case "invert": return INVERT;
+            case "negative": case "tglnegative": return NEGATIVE;
+            case "opacity+": case "increaseopacity": return INCREASE_OPACITY;
+            case "opacity-": case "decreaseopacity": return DECREASE_OPACITY;
+            case "fliph": case "fliphorizontal": return FLIP_HORIZONTAL;
+            case "flipv": case "flipvertical": return FLIP_VERTICAL;
+            case "rotate180": return ROTATE_180;
+            case "cw90": case "rotatecw90": return ROTATE_CW_90;
+            case "ccw90": case "rotateccw90": return ROTATE_CCW_90;
+            case "pixalate": case "pixelate":
+                return pixalate (parts.length > 1 ? Integer.parseInt (parts[1].trim()) : 2);
+            case "blur":
+                return blur (parts.length > 1 ? Double.parseDouble (parts[1].trim()) : 2);
+            case "unsharp": case "unsharpmask":
+                return unsharpMask (parts.length > 1 ? Double.parseDouble (parts[1].trim()) : 2, 1, 0);
+            case "resize":
+                if (parts.length < 2) throw new IllegalArgumentException ("resize needs a size, like resize:640x480");
+                String[] size = parts[1].trim().toLowerCase().split ("x", 2);
+                if (size.length < 2) throw new IllegalArgumentException ("resize needs a size, like resize:640x480");
+                return resize (Integer.parseInt (size[0].trim()), Integer.parseInt (size[1].trim()));
+            case "rotate":
+                if (parts.length < 2) throw new IllegalArgumentException ("rotate needs an angle, like rotate:7");
+                return rotate (Double.parseDouble (parts[1].trim()));
+            case "autolevels": case "levels": return AUTO_LEVELS;
+            case "equalize": case "equalise": return EQUALIZE;
+            case "sharpen": return SHARPEN;
+            case "edges": case "findedges": case "sobel": return FIND_EDGES;
+            default:
+                throw new IllegalArgumentException ("unknown filter: " + name);
+        }
+    }
+
+    /**
+     * Joins every run of two or more colour filters in the chain into one
+     * change that makes them all in a single pass. The image comes out exactly
+     * the same as making them one at a time.
+     */
+    public static List<EditOp> fuse (List<EditOp> ops)
+    {
+        ArrayList<EditOp> fused = new ArrayList<>();
+        int start = 0;
+        while (start < ops.size())
+        {
+            int end = start + 1;
+            if (ops.get (start).getColorPipeline() != null)
+            {
+                while (end < ops.size() && ops.get (end).getColorPipeline() != null) end++;
+            }
+            fused.add (end - start == 1 ? ops.get (start) : join (ops.subList (start, end)));
+            start = end;
+        }
+        return fused;
+    }
+
+    /**
+     * Returns one change that makes every one of the colour filters, in order,
+     * in a single pass over the image
+     */
+    public static EditOp join (List<EditOp> ops)
+    {
+        ColorPipeline pipeline = ColorPipeline.of();
+        StringBuilder name = new StringBuilder();
+        for (EditOp op : ops)
+        {
+            if (op.getColorPipeline() == null) throw new IllegalArgumentException (op.getName() + " isn't a colour filter");
+            pipeline.add (op.getColorPipeline());
+            if (name.length() > 0) name.append (" + ");
+            name.append (op.getName());
+        }
+        SimpleOp joined = new SimpleOp (name.toString(), 1, image (pipeline::apply));
+        joined.colors = pipeline;
+        joined.bandHeight = 1;
+        return joined;
+    }
+
+    /**
+     * Returns the changes in a comma separated list, like "greyscale,sepia,pixalate:8,flipH"
+     */
+    public static List<EditOp> parseChain (String chain)
+    {
+        ArrayList<EditOp> ops = new ArrayList<>();
+        for (String name : chain.split (","))
+        {
+            if (!name.trim().isEmpty()) ops.add (parse (name));
+        }
+        return ops;
+    }
+
+    private static UnaryOperator<BufferedImage> image (Consumer<BufferedImage> change)
+    {
+        return bi -> {
+            change.accept (bi);
+            return bi;
+        };
+    }
+
+    private static EditOp inPlace (String name, double cost, Consumer<BufferedImage> change)
+    {
+        return new SimpleOp (name, cost, image (change));
+    }
+
+    /**
+     * Returns one of the Processor colour filters, which fuse() can join with
+     * the ones next to it
+     */
+    private static SimpleOp colour (String name, ColorPipeline.Step step, Consumer<BufferedImage> change)
+    {
+        SimpleOp op = new SimpleOp (name, 1, image (change));
+        op.colors = ColorPipeline.of (step);
+        op.bandHeight = 1;
+        return op;
+    }
+
+    /**
+     * Returns a change that reads the pixels up to halo away from each pixel,
+     * so it needs the whole image rather than bands of rows
+     */
+    private static EditOp neighbourhood (String name, double cost, int halo, Consumer<BufferedImage> change)
+    {
+        SimpleOp op = new SimpleOp (name, cost, image (change));
+        op.halo = halo;
+        return op;
+    }
+
+    private static SimpleOp selfInverse (String name, double cost, Consumer<BufferedImage> change)
+    {
+        return selfInverse (new SimpleOp (name, cost, image (change)));
+    }
+
+    private static SimpleOp selfInverse (SimpleOp op)
+    {
+        op.inverse = op;
+        return op;
+    }
+
+    /**
+     * Marks a change that only moves pixels within each row, so it can be run
+     * on any band of rows
+     */
+    private static SimpleOp rowByRow (SimpleOp op)
+    {
+        op.bandHeight = 1;
+        return op;
+    }
+
+    private static void pair (SimpleOp a, SimpleOp b)
+    {
+        a.inverse = b;
+        b.inverse = a;
+    }
+
+    /**
+     * Writes a number like 2.0 as "2" and 1.5 as "1.5"
+     */
+    private static String number (double value)
+    {
+        return value == Math.rint (value) ? String.valueOf ((long)value) : String.valueOf (value);
+    }
+
+    /**
+     * An EditOp made from a function, with an optional inverse
+     */
+    private static class SimpleOp implements EditOp
+    {
+        private final String name;
+        private final double cost;
+        private final UnaryOperator<BufferedImage> change;
+        private EditOp inverse;
+        private DoubleFunction<EditOp> scaler;
+        private int halo;
+        // How many rows it needs together, 0 for the whole image
+        private int bandHeight;
+        // True if the result can be a different size from the image it was made from
+        private boolean resizes;
+        // The pipeline this change is the same as, for plain colour filters
+        private ColorPipeline colors;
+
+        SimpleOp (String name, double cost, UnaryOperator<BufferedImage> change)
+        {
+            this.name = name;
+            this.cost = cost;
+            this.change = change;
+        }
+
+        public String getName ()
+        {
+            return name;
+        }
+
+        public BufferedImage apply (BufferedImage bi)
+        {
+            return change.apply (bi);
+        }
+
+        public EditOp inverse ()
+        {
+            return inverse;
+        }
+
+        public double getCost ()
+        {
+            return cost;
+        }
+
+        public int getBandHeight ()
+        {
+            return bandHeight;
+        }
+
+        public int getHalo ()
+        {
+            return halo;
+        }
+
+        public Rectangle getChangedRegion (int width, int height)
+        {
+            // Every filter so far goes over the whole image
+            return resizes ? null : new Rectangle (0, 0, width, height);
+        }
+
+        public ColorPipeline getColorPipeline ()
+        {
+            return colors;
+        }
+
+        public EditOp scaled (double scale)
+        {
+            return scaler == null ? this : scaler.apply (scale);
+        }
+    }
+}
@@ -0,0 +1,684 @@
+/**
+ * Runs the filters, undo and redo on a background thread, so a slow filter
+ * on a big photo doesn't freeze the world while it works.
+ * <p>
+ * Changes are queued in the order they are clicked. When the background
+ * thread is free it takes everything queued so far as one batch and makes it
+ * to the EditGraph. A change followed straight away by its own inverse, like
+ * two horizontal flips in a row, cancels out and is never added. The image is
+ * then rendered once for the whole batch into a new image, so an image that
+ * was handed over is never touched again. The finished image is handed over
+ * in one piece, along with the part of it that is different from the image
+ * handed over before, and the world copies that part onto the screen the next
+ * time it acts.
+ * <p>
+ * A batch can be cancelled part way through rendering. The list of changes is
+ * then put back the way it was before the batch, so only changes that finished
+ * can be undone. A batch that fails, even by running out of memory, is put back
+ * the same way, and the reason is kept for the world to show with takeFailure().
+ * <p>
+ * When the image is bigger than the preview size, usually the part of the
+ * world the image is shown in, a small copy of it is kept too, shrunk by a
+ * whole number until it fits. A filter is made to the small copy straight
+ * away, and the copy is stretched back to the full size to be shown as a
+ * preview while the real change runs. A finished image only replaces the
+ * preview once it has caught up with every change previewed so far, so the
+ * screen never goes back to an older picture. After each batch the small copy
+ * is made again from the finished image, which costs about one pass over it,
+ * so previews never drift away from the real result.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import greenfoot.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FilterRunner
+{
+    private final EditGraph graph;
+    // One thread at most, which goes away after it has been idle for a while
+    private final ThreadPoolExecutor worker = new ThreadPoolExecutor (0, 1, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread (runnable, "filter runner");
+            thread.setDaemon (true);
+            return thread;
+        });
+
+    // Changes waiting to run, guarded by the list itself
+    private final ArrayList<Request> pending = new ArrayList<>();
+    private boolean running = false;
+    // Goes up on every cancel, so a batch taken before it knows not to run
+    private int cancels = 0;
+    // Every request is numbered in the order it was queued
+    private long submitted = 0;
+
+    // The image with every finished change made to it, and the newest image
+    // handed over, only used by the background thread
+    private BufferedImage current;
+    private BufferedImage sent;
+    private final AtomicReference<Result> finished = new AtomicReference<>();
+    // Why the newest failed batch failed, until the world takes it
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private volatile ParallelExecutor.Progress progress;
+    private volatile int batchSize, batchDone;
+
+    // Previews are made when the image is bigger than this, 0 for never
+    private final int previewWidth, previewHeight;
+    // The shrunk copy with every queued change made to it, null when there isn't
+    // one, and the size of the full image it stands for. Only used by the world.
+    private BufferedImage proxy;
+    private int proxyFactor, fullWidth, fullHeight;
+    // The shrunk copy from before the newest filter, so that filter can be swapped for another
+    private BufferedImage proxyParent;
+    private GreenfootImage canvas;
+    // The newest request shown as a preview, and the newest one put on screen for real
+    private long previewed = 0, shown = 0;
+
+    /**
+     * Creates a runner that makes its changes to the given list, without previews
+     */
+    public FilterRunner (EditGraph graph)
+    {
+        this (graph, 0, 0);
+    }
+
+    /**
+     * Creates a runner that makes its changes to the given list. Filters on an
+     * image bigger than the preview size are shown as a quick preview first.
+     */
+    public FilterRunner (EditGraph graph, int previewWidth, int previewHeight)
+    {
+        this.graph = graph;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        current = graph.getOriginal();
+        sent = current;
+        setProxy (current);
+    }
+
+    /**
+     * Queues a filter to be made to the image
+     *
+     * @return GreenfootImage   A preview of the image with the filter made to
+     *                          it, or null if there is no preview to show
+     */
+    public GreenfootImage apply (EditOp op)
+    {
+        GreenfootImage preview = null;
+        if (proxy != null)
+        {
+            proxyParent = copyOf (proxy);
+            preview = preview (op);
+        }
+        return submit (Request.FILTER, op, preview);
+    }
+
+    /**
+     * Queues swapping the newest change for a different one, like pixalate
+     * with bigger blocks, instead of making both. With nothing to swap it is
+     * the same as apply().
+     *
+     * @return GreenfootImage   A preview of the image with the swapped change,
+     *                          or null if there is no preview to show
+     */
+    public GreenfootImage replaceNewest (EditOp op)
+    {
+        GreenfootImage preview = null;
+        if (proxyParent != null)
+        {
+            proxy = copyOf (proxyParent);
+            preview = preview (op);
+        }
+        else
+        {
+            proxy = null;
+        }
+        return submit (Request.REPLACE, op, preview);
+    }
+
+    /**
+     * Makes the filter to the shrunk copy and returns it stretched back to full size
+     */
+    private GreenfootImage preview (EditOp op)
+    {
+        Metrics.Timer timer = Metrics.start ("preview", proxy);
+        try
+        {
+            int proxyWidth = proxy.getWidth(), proxyHeight = proxy.getHeight();
+            proxy = op.scaled (1.0 / proxyFactor).apply (proxy);
+            if (op == EditOps.ROTATE_CW_90 || op == EditOps.ROTATE_CCW_90)
+            {
+                int width = fullWidth;
+                fullWidth = fullHeight;
+                fullHeight = width;
+            }
+            else if (proxy.getWidth() != proxyWidth || proxy.getHeight() != proxyHeight)
+            {
+                // A resize or rotation by any angle, where the full size is only known once the real change is done
+                fullWidth = proxy.getWidth() * proxyFactor;
+                fullHeight = proxy.getHeight() * proxyFactor;
+            }
+            return stretch();
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Queues an undo of the newest change
+     */
+    public void undo ()
+    {
+        // The preview can't know what the undone image looks like, so it waits for the real one
+        proxy = null;
+        proxyParent = null;
+        submit (new Request (Request.UNDO, null));
+    }
+
+    /**
+     * Queues a redo of the newest undone change
+     */
+    public void redo ()
+    {
+        proxy = null;
+        proxyParent = null;
+        submit (new Request (Request.REDO, null));
+    }
+
+    /**
+     * Queues going back to the original image. Every change can still be
+     * redone afterwards.
+     */
+    public void resetChanges ()
+    {
+        proxy = null;
+        proxyParent = null;
+        submit (new Request (Request.RESET, null));
+    }
+
+    private GreenfootImage submit (int kind, EditOp op, GreenfootImage preview)
+    {
+        Request request = new Request (kind, op);
+        request.previewed = preview != null;
+        long number = submit (request);
+        if (preview != null) previewed = number;
+        return preview;
+    }
+
+    private long submit (Request request)
+    {
+        synchronized (pending)
+        {
+            request.number = ++submitted;
+            pending.add (request);
+            if (!running)
+            {
+                running = true;
+                worker.execute (this::drain);
+            }
+            return request.number;
+        }
+    }
+
+    /**
+     * Returns the image with the newest finished batch of changes made to it,
+     * or null if nothing has finished since the last call. An image that is
+     * older than the preview on screen is held back until a newer one finishes.
+     */
+    public Result takeFinished ()
+    {
+        Result done = finished.get();
+        if (done == null || done.number < previewed || !finished.compareAndSet (done, null)) return null;
+
+        shown = done.number;
+        synchronized (pending)
+        {
+            // Only once nothing else is queued does the shrunk copy match the real image
+            if (done.number == submitted)
+            {
+                proxy = done.proxy;
+                proxyFactor = done.proxyFactor;
+                fullWidth = done.image.getWidth();
+                fullHeight = done.image.getHeight();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Returns why the newest batch of changes failed, or null if none has
+     * failed since the last call. The image is left as it was before it.
+     */
+    public Throwable takeFailure ()
+    {
+        return failure.getAndSet (null);
+    }
+
+    /**
+     * Checks if anything is running or waiting to run
+     */
+    public boolean isBusy ()
+    {
+        synchronized (pending)
+        {
+            return running;
+        }
+    }
+
+    /**
+     * Returns how far the running batch of filters has got, from 0 to 1
+     */
+    public double getProgress ()
+    {
+        ParallelExecutor.Progress running = progress;
+        int size = batchSize;
+        if (running == null || size == 0) return 0;
+        return Math.min (1, (batchDone + running.getPassFraction()) / size);
+    }
+
+    /**
+     * Throws away everything waiting to run and stops the running batch of filters
+     */
+    public void cancel ()
+    {
+        synchronized (pending)
+        {
+            pending.clear();
+            cancels++;
+            ParallelExecutor.Progress running = progress;
+            if (running != null) running.cancel();
+        }
+
+        // A preview of a cancelled change is wrong now, so the real image is sent again
+        proxy = null;
+        proxyParent = null;
+        if (previewed > shown)
+        {
+            previewed = 0;
+            submit (new Request (Request.SHOW, null));
+        }
+    }
+
+    /**
+     * Waits until everything queued has run
+     */
+    public void waitUntilIdle ()
+    {
+        synchronized (pending)
+        {
+            while (running)
+            {
+                try
+                {
+                    pending.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts over from a different image, for example after opening a file.
+     * Anything still queued is thrown away and every change is forgotten.
+     */
+    public void reset (BufferedImage image)
+    {
+        cancel();
+        waitUntilIdle();
+        graph.setOriginal (image);
+        current = image;
+        sent = image;
+        finished.set (null);
+        previewed = 0;
+        setProxy (image);
+    }
+
+    /**
+     * Makes the shrunk copy of the image, if it is big enough to need one
+     */
+    private void setProxy (BufferedImage image)
+    {
+        proxyFactor = getProxyFactor (image.getWidth(), image.getHeight());
+        proxy = proxyFactor > 1 ? Processor.shrink (image, proxyFactor) : null;
+        fullWidth = image.getWidth();
+        fullHeight = image.getHeight();
+    }
+
+    /**
+     * Returns the smallest whole number the image can be shrunk by to fit the
+     * preview size, or 1 if it fits already or previews are off
+     */
+    private int getProxyFactor (int width, int height)
+    {
+        if (previewWidth <= 0 || previewHeight <= 0) return 1;
+        return Math.max (1, Math.max ((width + previewWidth - 1) / previewWidth,
+                                      (height + previewHeight - 1) / previewHeight));
+    }
+
+    /**
+     * Stretches the shrunk copy back to the size of the full image. The same
+     * GreenfootImage is drawn over each time while the size stays the same.
+     */
+    private GreenfootImage stretch ()
+    {
+        if (canvas == null || canvas.getWidth() != fullWidth || canvas.getHeight() != fullHeight)
+        {
+            canvas = new GreenfootImage (fullWidth, fullHeight);
+        }
+        Processor.enlarge (proxy, proxyFactor, canvas.getAwtImage());
+        return canvas;
+    }
+
+    /**
+     * Runs batches on the background thread until nothing is left
+     */
+    private void drain ()
+    {
+        boolean idle = false;
+        try
+        {
+            while (true)
+            {
+                ArrayList<Request> batch;
+                int generation;
+                synchronized (pending)
+                {
+                    if (pending.isEmpty())
+                    {
+                        running = false;
+                        pending.notifyAll();
+                        idle = true;
+                        return;
+                    }
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                    generation = cancels;
+                }
+                runBatchAndSend (batch, generation);
+            }
+        }
+        finally
+        {
+            // Something got out anyway, so nobody is left waiting for a thread that has stopped
+            if (!idle)
+            {
+                synchronized (pending)
+                {
+                    running = false;
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one batch and hands the image over if it changed or has to be sent back
+     */
+    private void runBatchAndSend (ArrayList<Request> batch, int generation)
+    {
+        // Anything previewed has to be sent back, even if it turned out to change nothing
+        boolean send = false;
+        for (Request request : batch)
+        {
+            send |= request.kind == Request.SHOW || request.previewed;
+        }
+
+        try
+        {
+            boolean rendered = runBatch (batch, generation);
+            if (rendered || send)
+            {
+                int factor = getProxyFactor (current.getWidth(), current.getHeight());
+                BufferedImage small = factor > 1 ? Processor.shrink (current, factor) : null;
+                // Sent again without rendering, nothing changed
+                Rectangle changed = rendered ? findChanged (graph.getChangedRegion()) : new Rectangle();
+                handOver (current, small, factor, batch.get (batch.size() - 1).number, changed);
+            }
+        }
+        catch (Throwable e)
+        {
+            // A failed batch leaves the image as it was, and the world keeps going.
+            // Even after running out of memory, the images from the batch are garbage now.
+            failure.set (e);
+        }
+    }
+
+    /**
+     * Narrows the part of the newest render that the changes say can be
+     * different down to the pixels that really are, like nothing at all after
+     * flipping a symmetric picture. Comparing is cheaper than copying and runs
+     * here instead of while the world acts, and a smaller part is also quicker
+     * for the histogram to count again.
+     */
+    private Rectangle findChanged (Rectangle changed)
+    {
+        if (sent.getWidth() != current.getWidth() || sent.getHeight() != current.getHeight()) return changed;
+        if (changed == null) changed = new Rectangle (0, 0, current.getWidth(), current.getHeight());
+        return PixelEngine.findChanged (sent, current, changed);
+    }
+
+    /**
+     * Hands a finished image over to the world. If the world hasn't taken the
+     * one before it yet, that one is replaced, and the changed part grows to
+     * cover what changed in both.
+     */
+    private void handOver (BufferedImage image, BufferedImage small, int factor, long number, Rectangle changed)
+    {
+        while (true)
+        {
+            Result waiting = finished.get();
+            Result done = waiting == null ? new Result (image, small, factor, number, sent, changed)
+                : new Result (image, small, factor, number, waiting.previous, union (waiting.changed, changed));
+            if (finished.compareAndSet (waiting, done)) break;
+        }
+        sent = image;
+    }
+
+    /**
+     * Returns the smallest rectangle around both regions, or null if either
+     * is the whole image
+     */
+    private static Rectangle union (Rectangle a, Rectangle b)
+    {
+        if (a == null || b == null) return null;
+        if (a.isEmpty()) return b;
+        if (b.isEmpty()) return a;
+        return a.union (b);
+    }
+
+    /**
+     * Makes one batch of changes to the list and renders the image once for
+     * all of them. If the render is cancelled the list is put back as it was.
+     *
+     * @return boolean  True if the image changed
+     */
+    private boolean runBatch (ArrayList<Request> batch, int generation)
+    {
+        graph.begin();
+        // How many changes at the end of the list were added by this batch
+        int added = 0;
+        for (Request request : batch)
+        {
+            switch (request.kind)
+            {
+                case Request.FILTER:
+                    // A change and then its inverse leave the image as it was
+                    int newest = graph.getPosition() - 1;
+                    if (added > 0 && graph.getOp (newest).inverse() == request.op)
+                    {
+                        graph.remove (newest);
+                        added--;
+                    }
+                    else
+                    {
+                        graph.add (request.op);
+                        added++;
+                    }
+                    break;
+                case Request.REPLACE:
+                    if (graph.canUndo()) graph.replace (graph.getPosition() - 1, request.op);
+                    else graph.add (request.op);
+                    break;
+                case Request.UNDO:
+                    graph.undo();
+                    added = 0;
+                    break;
+                case Request.REDO:
+                    graph.redo();
+                    added = 0;
+                    break;
+                case Request.RESET:
+                    graph.reset();
+                    added = 0;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!graph.needsRender())
+        {
+            graph.commit();
+            return false;
+        }
+
+        ParallelExecutor.Progress running = new ParallelExecutor.Progress();
+        synchronized (pending)
+        {
+            // Checking under the lock, so a cancel either sees this progress or came before it
+            if (cancels != generation)
+            {
+                graph.rollback();
+                return false;
+            }
+            progress = running;
+        }
+        batchSize = Math.max (1, graph.getReplaySteps());
+        batchDone = 0;
+
+        ParallelExecutor.setProgress (running);
+        try
+        {
+            current = graph.render (this::makeImage, () -> batchDone++);
+            graph.commit();
+            return true;
+        }
+        catch (CancellationException e)
+        {
+            graph.rollback();
+            return false;
+        }
+        catch (Throwable e)
+        {
+            graph.rollback();
+            throw e;
+        }
+        finally
+        {
+            ParallelExecutor.setProgress (null);
+            progress = null;
+            batchSize = 0;
+        }
+    }
+
+    /**
+     * Makes a new image to render into. The world only copies the changed
+     * part of it onto the screen, so it doesn't need to be a GreenfootImage.
+     */
+    private BufferedImage makeImage (int width, int height)
+    {
+        return new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private static BufferedImage copyOf (BufferedImage bi)
+    {
+        BufferedImage copy = new BufferedImage (bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        PixelEngine.copy (bi, copy);
+        return copy;
+    }
+
+    /**
+     * A change to make to the list of changes, or a request to send the image
+     * back as it is
+     */
+    private static class Request
+    {
+        static final int FILTER = 0, REPLACE = 1, UNDO = 2, REDO = 3, RESET = 4, SHOW = 5;
+
+        final int kind;
+        final EditOp op;
+        long number;
+        boolean previewed;
+
+        Request (int kind, EditOp op)
+        {
+            this.kind = kind;
+            this.op = op;
+        }
+    }
+
+    /**
+     * A finished image, with the part of it that can be different from the
+     * image handed over before it. The shrunk copy made from it and the number
+     * of the newest request it includes are only used by the runner.
+     */
+    public static class Result
+    {
+        private final BufferedImage image;
+        private final BufferedImage proxy;
+        private final int proxyFactor;
+        private final long number;
+        private final BufferedImage previous;
+        private final Rectangle changed;
+
+        Result (BufferedImage image, BufferedImage proxy, int proxyFactor, long number, BufferedImage previous, Rectangle changed)
+        {
+            this.image = image;
+            this.proxy = proxy;
+            this.proxyFactor = proxyFactor;
+            this.number = number;
+            this.previous = previous;
+            this.changed = changed;
+        }
+
+        /**
+         * Returns the finished image. Nothing changes it after it is handed
+         * over, so it can be read from any thread.
+         */
+        public BufferedImage getImage ()
+        {
+            return image;
+        }
+
+        /**
+         * Returns the image handed over before this one, which getChangedRegion() is measured from
+         */
+        public BufferedImage getPrevious ()
+        {
+            return previous;
+        }
+
+        /**
+         * Returns the part of the image that is different from getPrevious(),
+         * which is empty if nothing is, or null if the size changed
+         */
+        public Rectangle getChangedRegion ()
+        {
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Counts how many pixels of an image have each value, 0 to 255, of alpha,
+ * red, green, blue and brightness (luminance).
+ * <p>
+ * Counting is split into bands of rows by the ParallelExecutor. Each thread
+ * counts into its own arrays, so no two threads ever add to the same count,
+ * and the arrays are added together once every band is done. The counts are
+ * whole numbers, so the result is the same however many threads there are.
+ * <p>
+ * A change that only touches part of the image doesn't need everything
+ * counted again: remove() takes away the counts of that part before the
+ * change and add() puts back the counts of the changed part afterwards.
+ * <p>
+ * Fully see-through pixels are counted in alpha only, since their colour
+ * can't be seen. The tables from levelsTable() and equalizeTable() drive the
+ * auto levels and equalize filters.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+public class Histogram
+{
+    // Channel numbers, in the same order as Processor.unpackPixel(), then brightness
+    public static final int ALPHA = 0, RED = 1, GREEN = 2, BLUE = 3, LUMINANCE = 4;
+    private static final int CHANNELS = 5;
+
+    private final long[][] counts = new long[CHANNELS][256];
+    // Every pixel counted, and the ones that aren't fully see-through
+    private long pixels = 0;
+    private long visible = 0;
+
+    /**
+     * Counts every pixel of the image
+     */
+    public static Histogram of (BufferedImage bi)
+    {
+        Histogram histogram = new Histogram();
+        histogram.add (bi, new Rectangle (0, 0, bi.getWidth(), bi.getHeight()));
+        return histogram;
+    }
+
+    /**
+     * Returns how bright a colour looks, from 0 to 255, weighting green the
+     * most and blue the least like the eye does
+     */
+    public static int luminance (int red, int green, int blue)
+    {
+        return (77 * red + 150 * green + 29 * blue + 128) >> 8;
+    }
+
+    /**
+     * Adds the pixels of the image inside region to the counts
+     */
+    public void add (BufferedImage bi, Rectangle region)
+    {
+        count (bi, region, 1);
+    }
+
+    /**
+     * Takes the pixels of the image inside region away from the counts. They
+     * must have been added before, or the counts go wrong.
+     */
+    public void remove (BufferedImage bi, Rectangle region)
+    {
+        count (bi, region, -1);
+    }
+
+    /**
+     * Swaps the counts of region in the image before a change for the counts
+     * of it afterwards. Both images must be the same size.
+     */
+    public void update (BufferedImage before, BufferedImage after, Rectangle region)
+    {
+        remove (before, region);
+        add (after, region);
+    }
+
+    public Histogram copy ()
+    {
+        Histogram histogram = new Histogram();
+        for (int c = 0; c < CHANNELS; c++)
+        {
+            System.arraycopy (counts[c], 0, histogram.counts[c], 0, 256);
+        }
+        histogram.pixels = pixels;
+        histogram.visible = visible;
+        return histogram;
+    }
+
+    /**
+     * Returns how many pixels have the given value in the channel
+     */
+    public long getCount (int channel, int value)
+    {
+        return counts[channel][value];
+    }
+
+    /**
+     * Returns the count of the value the most pixels have in the channel
+     */
+    public long getMaxCount (int channel)
+    {
+        long max = 0;
+        for (long count : counts[channel]) max = Math.max (max, count);
+        return max;
+    }
+
+    /**
+     * Returns how many pixels were counted
+     */
+    public long getPixels ()
+    {
+        return pixels;
+    }
+
+    /**
+     * Returns how many of the pixels counted aren't fully see-through, which
+     * are the only ones counted in the colour and brightness channels
+     */
+    public long getVisiblePixels ()
+    {
+        return visible;
+    }
+
+    /**
+     * Returns the average value of the channel, or 0 if nothing was counted
+     */
+    public double getMean (int channel)
+    {
+        long total = getTotal (channel);
+        if (total == 0) return 0;
+        double sum = 0;
+        for (int v = 0; v < 256; v++) sum += (double)v * counts[channel][v];
+        return sum / total;
+    }
+
+    /**
+     * Returns the smallest value that at least the given fraction of the
+     * pixels are at or below, like 0.5 for the median
+     */
+    public int getPercentile (int channel, double fraction)
+    {
+        long total = getTotal (channel);
+        if (total == 0) return 0;
+        long target = Math.max (1, (long)Math.ceil (fraction * total));
+        long seen = 0;
+        for (int v = 0; v < 256; v++)
+        {
+            seen += counts[channel][v];
+            if (seen >= target) return v;
+        }
+        return 255;
+    }
+
+    /**
+     * Returns a table that stretches the values of the channel so the darkest
+     * ones become 0 and the brightest 255, ignoring the clip fraction of the
+     * pixels at each end so a few stray pixels don't stop the stretch
+     */
+    public int[] levelsTable (int channel, double clip)
+    {
+        int[] table = new int[256];
+        int low = getPercentile (channel, clip);
+        int high = getPercentile (channel, 1 - clip);
+        for (int v = 0; v < 256; v++)
+        {
+            if (high <= low) table[v] = v;
+            else table[v] = (int)Math.max (0, Math.min (255, Math.round ((v - low) * 255.0 / (high - low))));
+        }
+        return table;
+    }
+
+    /**
+     * Returns a table that spreads the values of the channel out so that each
+     * value is used by about the same number of pixels
+     */
+    public int[] equalizeTable (int channel)
+    {
+        int[] table = new int[256];
+        long total = getTotal (channel);
+        // The pixels at the darkest value used go to 0, so the whole range gets used
+        long lowest = 0;
+        for (int v = 0; v < 256 && lowest == 0; v++) lowest = counts[channel][v];
+
+        long seen = 0;
+        for (int v = 0; v < 256; v++)
+        {
+            seen += counts[channel][v];
+            if (total == lowest) table[v] = v;
+            else table[v] = (int)Math.max (0, Math.round ((seen - lowest) * 255.0 / (total - lowest)));
+        }
+        return table;
+    }
+
+    /**
+     * Returns how many pixels are counted in the channel
+     */
+    private long getTotal (int channel)
+    {
+        return channel == ALPHA ? pixels : visible;
+    }
+
+    /**
+     * Adds sign times the counts of region to the totals
+     */
+    private void count (BufferedImage bi, Rectangle region, int sign)
+    {
+        Rectangle r = region.intersection (new Rectangle (0, 0, bi.getWidth(), bi.getHeight()));
+        if (r.isEmpty()) return;
+
+        // Every thread gets its own arrays the first time it runs a band
+        ArrayList<int[][]> partials = new ArrayList<>();
+        ThreadLocal<int[][]> mine = ThreadLocal.withInitial (() -> {
+            int[][] partial = new int[CHANNELS][256];
+            synchronized (partials)
+            {
+                partials.add (partial);
+            }
+            return partial;
+        });
+
+        boolean direct = PixelEngine.isDirect (bi);
+        boolean hasAlpha = bi.getType() != BufferedImage.TYPE_INT_RGB;
+        ParallelExecutor.forEachRowBand (r.width, r.height, (yStart, yEnd) -> {
+            int[][] partial = mine.get();
+            int[] alpha = partial[ALPHA], red = partial[RED], green = partial[GREEN], blue = partial[BLUE];
+            int[] brightness = partial[LUMINANCE];
+            int[] row = direct ? PixelEngine.getData (bi) : new int[r.width];
+            for (int y = r.y + yStart; y < r.y + yEnd; y++)
+            {
+                int start = 0;
+                if (direct) start = PixelEngine.getOffset (bi, r.x, y);
+                else bi.getRGB (r.x, y, r.width, 1, row, 0, r.width);
+
+                for (int i = start; i < start + r.width; i++)
+                {
+                    int rgb = hasAlpha ? row[i] : row[i] | 0xFF000000;
+                    int a = rgb >>> 24;
+                    alpha[a]++;
+                    if (a == 0) continue;
+                    int rr = (rgb >> 16) & 255, gg = (rgb >> 8) & 255, bb = rgb & 255;
+                    red[rr]++;
+                    green[gg]++;
+                    blue[bb]++;
+                    brightness[luminance (rr, gg, bb)]++;
+                }
+            }
+        });
+
+        for (int[][] partial : partials)
+        {
+            for (int c = 0; c < CHANNELS; c++)
+            {
+                for (int v = 0; v < 256; v++) counts[c][v] += sign * (long)partial[c][v];
+            }
+            // Everything but alpha 0 was counted in the colours too
+            for (int v = 1; v < 256; v++) visible += sign * (long)partial[ALPHA][v];
+        }
+        pixels += sign * (long)r.width * r.height;
+    }
+}
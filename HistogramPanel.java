@@ -0,0 +1,89 @@
+/**
+ * Shows the histogram of the image on screen: how many pixels have each
+ * amount of red, green and blue, drawn on top of each other, with the
+ * brightness as a white line over them and a few numbers underneath.
+ * <p>
+ * The bars are scaled to the tallest count apart from pure black and pure
+ * white, which are often far more common than anything else and would
+ * flatten the rest of the graph.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import greenfoot.*;
+
+public class HistogramPanel extends Actor
+{
+    private static final int MARGIN = 8, GRAPH_HEIGHT = 100, TEXT_HEIGHT = 40;
+    public static final int WIDTH = 256 + 2 * MARGIN;
+    public static final int HEIGHT = GRAPH_HEIGHT + TEXT_HEIGHT + 2 * MARGIN;
+
+    public HistogramPanel ()
+    {
+        setImage (new GreenfootImage (WIDTH, HEIGHT));
+        show (null);
+    }
+
+    /**
+     * Draws the counts, or a note that they are still being counted if histogram is null
+     */
+    public void show (Histogram histogram)
+    {
+        GreenfootImage panel = getImage();
+        panel.clear();
+        panel.setColor (new Color (0, 0, 0, 190));
+        panel.fill();
+        panel.setColor (Color.WHITE);
+        if (histogram == null)
+        {
+            panel.drawString ("Counting pixels...", MARGIN, MARGIN + 14);
+            return;
+        }
+
+        long tallest = 1;
+        for (int channel = Histogram.RED; channel <= Histogram.LUMINANCE; channel++)
+        {
+            for (int v = 1; v < 255; v++) tallest = Math.max (tallest, histogram.getCount (channel, v));
+        }
+
+        // See-through bars, so where two channels overlap their colours mix
+        drawBars (panel, histogram, Histogram.RED, new Color (255, 60, 60, 150), tallest);
+        drawBars (panel, histogram, Histogram.GREEN, new Color (60, 255, 60, 150), tallest);
+        drawBars (panel, histogram, Histogram.BLUE, new Color (60, 60, 255, 150), tallest);
+
+        panel.setColor (Color.WHITE);
+        int bottom = MARGIN + GRAPH_HEIGHT;
+        int lastY = bottom - barHeight (histogram.getCount (Histogram.LUMINANCE, 0), tallest);
+        for (int v = 1; v < 256; v++)
+        {
+            int y = bottom - barHeight (histogram.getCount (Histogram.LUMINANCE, v), tallest);
+            panel.drawLine (MARGIN + v - 1, lastY, MARGIN + v, y);
+            lastY = y;
+        }
+
+        panel.drawString (String.format ("Mean  R %.0f  G %.0f  B %.0f  Brightness %.0f",
+                                         histogram.getMean (Histogram.RED), histogram.getMean (Histogram.GREEN),
+                                         histogram.getMean (Histogram.BLUE), histogram.getMean (Histogram.LUMINANCE)),
+                          MARGIN, bottom + 18);
+        panel.drawString (String.format ("Median brightness %d   %,d pixels",
+                                         histogram.getPercentile (Histogram.LUMINANCE, 0.5), histogram.getPixels()),
+                          MARGIN, bottom + 36);
+    }
+
+    private static void drawBars (GreenfootImage panel, Histogram histogram, int channel, Color color, long tallest)
+    {
+        panel.setColor (color);
+        int bottom = MARGIN + GRAPH_HEIGHT;
+        for (int v = 0; v < 256; v++)
+        {
+            int height = barHeight (histogram.getCount (channel, v), tallest);
+            if (height > 0) panel.drawLine (MARGIN + v, bottom, MARGIN + v, bottom - height);
+        }
+    }
+
+    private static int barHeight (long count, long tallest)
+    {
+        return (int)Math.min (GRAPH_HEIGHT, count * GRAPH_HEIGHT / tallest);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Puts finished images on screen through the ImageHolder without making a new
+ * GreenfootImage for each one.
+ * <p>
+ * The holder is given one GreenfootImage, the screen, and every finished
+ * image is copied into it. When a finished image comes with the part of it
+ * that changed since the image the screen already holds, only that part is
+ * copied. An image the same size as the screen, like after an undo, is copied
+ * across in one go straight between the int arrays. A new screen is only made
+ * when the size changes.
+ * <p>
+ * Previews are shown by handing the holder a different GreenfootImage for a
+ * while, which leaves the screen as it was, so the next finished image can
+ * still copy only its changed part.
+ * <p>
+ * The finished images themselves are never changed by anyone, so getImage()
+ * can be saved or counted on another thread while the screen is drawn over.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import greenfoot.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+public class ImageDisplay
+{
+    private final ImageHolder holder;
+    // The GreenfootImage finished images are copied into, and the image it is a copy of
+    private GreenfootImage screen;
+    private BufferedImage copied;
+    // The newest finished image
+    private BufferedImage shown;
+
+    /**
+     * Creates a display for the holder, starting with the image the holder
+     * loaded itself
+     */
+    public ImageDisplay (ImageHolder holder)
+    {
+        this.holder = holder;
+        shown = holder.getBufferedImage();
+    }
+
+    /**
+     * Puts a finished image from the FilterRunner on screen, copying only the
+     * part of it that changed if the screen holds the image it changed from
+     */
+    public void show (FilterRunner.Result result)
+    {
+        show (result.getImage(), result.getPrevious(), result.getChangedRegion());
+    }
+
+    /**
+     * Puts a whole new image on screen, like a file that was just opened.
+     * Nothing may change the image afterwards.
+     */
+    public void show (BufferedImage image)
+    {
+        show (image, null, null);
+    }
+
+    private void show (BufferedImage image, BufferedImage previous, Rectangle changed)
+    {
+        Metrics.Timer timer = Metrics.start ("show on screen", image);
+        try
+        {
+            if (screen == null || screen.getWidth() != image.getWidth() || screen.getHeight() != image.getHeight())
+            {
+                screen = new GreenfootImage (image.getWidth(), image.getHeight());
+                copied = null;
+            }
+
+            if (changed != null && previous != null && previous == copied)
+            {
+                PixelEngine.copy (image, screen.getAwtImage(), changed);
+            }
+            else
+            {
+                PixelEngine.copy (image, screen.getAwtImage());
+            }
+            copied = image;
+            shown = image;
+
+            if (holder.getImage() != screen)
+            {
+                holder.setImage (screen);
+            }
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Shows an image that isn't a finished one, like a preview, until the next
+     * finished image is shown. The screen is left as it was.
+     */
+    public void showImage (GreenfootImage image)
+    {
+        holder.setImage (image);
+    }
+
+    /**
+     * Starts showing the image the holder loaded itself with openFile()
+     */
+    public void showLoaded ()
+    {
+        shown = holder.getBufferedImage();
+    }
+
+    /**
+     * Returns the newest finished image, even while a preview is showing
+     */
+    public BufferedImage getImage ()
+    {
+        return shown;
+    }
+
+    /**
+     * Returns the GreenfootImage the holder is showing right now
+     */
+    public GreenfootImage getShownImage ()
+    {
+        return holder.getImage();
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * Writes images to files on a background thread, with the settings of each
+ * format's ImageWriteParam instead of the ImageIO defaults.
+ * <p>
+ * Each file to write is a Target: PNG with a compression level from 0 (none)
+ * to 9 (smallest), or JPEG with a quality from 0 to 1, progressive or not,
+ * and with the colour stored at half resolution (4:2:0 chroma subsampling,
+ * the usual) or at full resolution (4:4:4). A target can also be a smaller
+ * copy, like a thumbnail. Files are streamed to disk next to where they
+ * belong and only moved into place once they are complete, so a failed export
+ * never leaves half a file behind or destroys the file it was replacing.
+ * <p>
+ * JPEG and BMP have no alpha layer, so they are written from an RGB image. For a
+ * TYPE_INT_ARGB image that is a view of the same int array that just ignores
+ * the alpha bits, so nothing is copied. Other images are converted in one
+ * bulk pass. Every target in one export shares the same conversions, so a PNG,
+ * a JPEG and a thumbnail of one image only convert each size once.
+ * <p>
+ * The image must not change while it is being written. The FilterRunner never
+ * changes an image once it is finished, so a finished image can be handed
+ * over as it is.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.Node;
+
+public class ImageExporter
+{
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor (runnable -> {
+        Thread thread = new Thread (runnable, "image exporter");
+        thread.setDaemon (true);
+        return thread;
+    });
+
+    /**
+     * Starts writing the image to every target on the background thread
+     *
+     * @return CompletableFuture    Finishes with one Result per target, in the
+     *                              same order, once they have all been tried
+     */
+    public CompletableFuture<List<Result>> export (BufferedImage image, List<Target> targets)
+    {
+        List<Target> copies = new ArrayList<>(targets);
+        return CompletableFuture.supplyAsync (() -> writeAll (image, copies), worker);
+    }
+
+    /**
+     * Writes the image to every target on this thread, sharing the smaller
+     * copies and RGB conversions between them. A target that fails doesn't
+     * stop the others.
+     */
+    public static List<Result> writeAll (BufferedImage image, List<Target> targets)
+    {
+        Map<Integer, BufferedImage> sized = new HashMap<>();
+        Map<Integer, BufferedImage> rgb = new HashMap<>();
+        List<Result> results = new ArrayList<>();
+        for (Target target : targets)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                int factor = target.getShrinkFactor (image);
+                BufferedImage bi = sized.computeIfAbsent (factor, f -> f == 1 ? image : Processor.shrink (image, f));
+                if (!target.hasAlpha()) bi = rgb.computeIfAbsent (factor, f -> toRgb (sized.get (f)));
+                results.add (encode (bi, target, start));
+            }
+            catch (IOException | RuntimeException e)
+            {
+                results.add (new Result (target.file, -1, System.nanoTime() - start, e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Writes the image to one target on this thread
+     *
+     * @throws IOException  If the file couldn't be written
+     */
+    public static Result write (BufferedImage image, Target target) throws IOException
+    {
+        long start = System.nanoTime();
+        int factor = target.getShrinkFactor (image);
+        BufferedImage bi = factor == 1 ? image : Processor.shrink (image, factor);
+        if (!target.hasAlpha()) bi = toRgb (bi);
+        return encode (bi, target, start);
+    }
+
+    /**
+     * Returns the image without its alpha layer. A TYPE_INT_ARGB image is
+     * viewed through an RGB colour model that shares its int array, so the
+     * pixels aren't copied; anything else is copied into a TYPE_INT_RGB image
+     * in one pass.
+     */
+    public static BufferedImage toRgb (BufferedImage bi)
+    {
+        int type = bi.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_3BYTE_BGR) return bi;
+
+        Metrics.Timer timer = Metrics.start ("toRgb", bi);
+        try
+        {
+            WritableRaster raster = bi.getRaster();
+            BufferedImage rgb;
+            if (type == BufferedImage.TYPE_INT_ARGB && PixelEngine.isDirect (bi)
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0)
+            {
+                // Same ints, but only the red, green and blue bits are read
+                DataBufferInt data = (DataBufferInt)raster.getDataBuffer();
+                WritableRaster view = Raster.createPackedRaster (data, bi.getWidth(), bi.getHeight(),
+                    PixelEngine.getScanlineStride (bi), new int[] {0xFF0000, 0xFF00, 0xFF}, null);
+                rgb = new BufferedImage (new DirectColorModel (24, 0xFF0000, 0xFF00, 0xFF), view, false, null);
+            }
+            else
+            {
+                rgb = new BufferedImage (bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_RGB);
+                PixelEngine.setPixels (rgb, PixelEngine.getPixels (bi, null));
+            }
+            return rgb;
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    private static Result encode (BufferedImage bi, Target target, long start) throws IOException
+    {
+        Metrics.Timer timer = Metrics.start ("export " + target.format, bi);
+        try
+        {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName (target.format);
+            if (!writers.hasNext()) throw new IOException ("no writer for " + target.format);
+            ImageWriter writer = writers.next();
+
+            File parent = target.file.getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException ("can't create " + parent);
+            // Written next to the real file first, so a failed export never leaves half a file behind
+            File part = File.createTempFile (target.file.getName(), ".part", parent);
+            try
+            {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                IIOMetadata metadata = null;
+                if (target.isJpeg())
+                {
+                    param.setCompressionMode (ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality (target.quality);
+                    metadata = jpegMetadata (writer, bi, param, target.chromaSubsampling);
+                }
+                else if (param.canWriteCompressed() && target.compressionLevel >= 0)
+                {
+                    // The PNG writer turns quality into a deflate level of 9 * (1 - quality), rounded down
+                    param.setCompressionMode (ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality (Math.max (0, 1 - (target.compressionLevel + 0.5f) / 9));
+                }
+                if (param.canWriteProgressive())
+                {
+                    param.setProgressiveMode (target.progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+                }
+
+                try (ImageOutputStream out = ImageIO.createImageOutputStream (part))
+                {
+                    if (out == null) throw new IOException ("can't write to " + part);
+                    writer.setOutput (out);
+                    writer.write (null, new IIOImage (bi, null, metadata), param);
+                }
+                Files.move (part.toPath(), target.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                writer.dispose();
+                part.delete();
+            }
+        }
+        finally
+        {
+            timer.stop();
+        }
+        return new Result (target.file, target.file.length(), System.nanoTime() - start, null);
+    }
+
+    /**
+     * Returns JPEG metadata with the colour stored at half or full resolution.
+     * Only the brightness component's sampling factors are changed, since the
+     * colour components are always sampled once per block.
+     */
+    private static IIOMetadata jpegMetadata (ImageWriter writer, BufferedImage bi, ImageWriteParam param,
+                                             boolean subsample) throws IIOInvalidTreeException
+    {
+        IIOMetadata metadata = writer.getDefaultImageMetadata (ImageTypeSpecifier.createFromRenderedImage (bi), param);
+        Node tree = metadata.getAsTree (JPEG_METADATA);
+        Node sof = find (find (tree, "markerSequence"), "sof");
+        Node component = sof == null ? null : sof.getFirstChild();
+        if (component == null) return metadata;
+
+        String factor = subsample ? "2" : "1";
+        Node h = component.getAttributes().getNamedItem ("HsamplingFactor");
+        Node v = component.getAttributes().getNamedItem ("VsamplingFactor");
+        if (h != null) h.setNodeValue (factor);
+        if (v != null) v.setNodeValue (factor);
+        metadata.setFromTree (JPEG_METADATA, tree);
+        return metadata;
+    }
+
+    private static Node find (Node parent, String name)
+    {
+        if (parent == null) return null;
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            if (child.getNodeName().equals (name)) return child;
+        }
+        return null;
+    }
+
+    /**
+     * One file to write, and how to write it
+     */
+    public static class Target
+    {
+        private final File file;
+        private final String format;
+        private float quality = 0.75f;
+        private boolean progressive = false;
+        private boolean chromaSubsampling = true;
+        private int compressionLevel = -1;
+        private int maxSize = 0;
+
+        /**
+         * Creates a target with the default settings for its format
+         *
+         * @param format    "png", "jpg", or any other format ImageIO can
+         *                  write, which is written with that format's defaults
+         */
+        public Target (File file, String format)
+        {
+            String name = format.toLowerCase (Locale.ROOT);
+            this.file = file;
+            this.format = name.equals ("jpeg") ? "jpg" : name;
+        }
+
+        /**
+         * Sets the JPEG quality, from 0 for the smallest file to 1 for the best
+         * picture. The default is 0.75, the same as ImageIO uses.
+         */
+        public void setQuality (float quality)
+        {
+            if (quality < 0 || quality > 1) throw new IllegalArgumentException ("quality must be from 0 to 1: " + quality);
+            this.quality = quality;
+        }
+
+        /**
+         * Sets whether the file is written so it can be shown roughly first and
+         * sharpened as it loads: progressive for JPEG, interlaced for PNG
+         */
+        public void setProgressive (boolean progressive)
+        {
+            this.progressive = progressive;
+        }
+
+        /**
+         * Sets whether a JPEG stores its colour at half the resolution of its
+         * brightness, which is smaller and usually looks the same. The default is true.
+         */
+        public void setChromaSubsampling (boolean subsample)
+        {
+            chromaSubsampling = subsample;
+        }
+
+        /**
+         * Sets the PNG compression level from 0 (fastest) to 9 (smallest), or
+         * -1 for the writer's default
+         */
+        public void setCompressionLevel (int level)
+        {
+            if (level < -1 || level > 9) throw new IllegalArgumentException ("level must be from -1 to 9: " + level);
+            compressionLevel = level;
+        }
+
+        /**
+         * Writes a smaller copy, shrunk by a whole number until neither side is
+         * longer than maxSize, or the full image if it is 0
+         */
+        public void setMaxSize (int maxSize)
+        {
+            if (maxSize < 0) throw new IllegalArgumentException ("size must not be negative: " + maxSize);
+            this.maxSize = maxSize;
+        }
+
+        public File getFile ()
+        {
+            return file;
+        }
+
+        boolean isJpeg ()
+        {
+            return format.equals ("jpg");
+        }
+
+        /**
+         * Returns whether the format keeps the alpha layer. The JPEG and BMP
+         * writers refuse an image that has one, so those get an RGB copy.
+         */
+        boolean hasAlpha ()
+        {
+            return !isJpeg() && !format.equals ("bmp");
+        }
+
+        int getShrinkFactor (BufferedImage bi)
+        {
+            if (maxSize == 0) return 1;
+            int longest = Math.max (bi.getWidth(), bi.getHeight());
+            return Math.max (1, (longest + maxSize - 1) / maxSize);
+        }
+    }
+
+    /**
+     * How writing one target went
+     */
+    public static class Result
+    {
+        private final File file;
+        private final long bytes, nanos;
+        private final Exception error;
+
+        Result (File file, long bytes, long nanos, Exception error)
+        {
+            this.file = file;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        public File getFile ()
+        {
+            return file;
+        }
+
+        /**
+         * Returns the size of the written file, or -1 if it failed
+         */
+        public long getBytes ()
+        {
+            return bytes;
+        }
+
+        /**
+         * Returns how long the conversion and encoding took, in milliseconds
+         */
+        public double getMillis ()
+        {
+            return nanos / 1e6;
+        }
+
+        /**
+         * Returns why the file couldn't be written, or null if it was
+         */
+        public Exception getError ()
+        {
+            return error;
+        }
+
+        public String toString ()
+        {
+            if (error != null) return "Couldn't save " + file + ": " + error.getMessage();
+            return String.format ("Saved %s: %.1f KB in %.0f ms", file, bytes / 1024.0, getMillis());
+        }
+    }
+}
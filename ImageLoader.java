@@ -0,0 +1,311 @@
+/**
+ * Reads image files on background threads, and keeps the decoded images so
+ * opening the same file again doesn't decode it again.
+ * <p>
+ * A decoded image is remembered by the file's full path, its size and when it
+ * was last changed, so a file that was saved over since is read again. The
+ * images are TYPE_INT_ARGB, 4 bytes a pixel, and the ones used longest ago
+ * are thrown out when they go over the budget. The cached images are never
+ * changed, so whoever gets one has to copy it before drawing on it.
+ * <p>
+ * A big image takes a while to decode, so readPreview() can read it with
+ * ImageReadParam.setSourceSubsampling, which only keeps every few pixels of
+ * every few rows, to get a copy about the size of the screen quickly. That
+ * copy can be shown stretched to the full size while load() decodes the rest.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class ImageLoader
+{
+    private final long cacheBudget;
+
+    // Decoded images, the one used longest ago first
+    private final LinkedHashMap<String, BufferedImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    // Two threads, so a preview is read at the same time as the full image
+    private final ExecutorService workers = Executors.newFixedThreadPool (2, runnable -> {
+        Thread thread = new Thread (runnable, "image loader");
+        thread.setDaemon (true);
+        return thread;
+    });
+
+    /**
+     * @param cacheBudget   The most bytes the decoded images may take up
+     */
+    public ImageLoader (long cacheBudget)
+    {
+        this.cacheBudget = cacheBudget;
+    }
+
+    /**
+     * Finds a file the way Greenfoot does, either at the path given or in the
+     * project's images folder
+     *
+     * @return File     The file, or null if it isn't in either place
+     */
+    public static File find (String fileName)
+    {
+        if (fileName == null || fileName.isEmpty()) return null;
+        File file = new File (fileName);
+        if (file.isFile()) return file;
+        file = new File ("images", fileName);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Returns the decoded image of the file if it is cached, or null
+     */
+    public synchronized BufferedImage getCached (File file)
+    {
+        return cache.get (key (file));
+    }
+
+    /**
+     * Starts decoding the file on a background thread, unless it is already
+     * cached. The decoded image is cached once it is done.
+     *
+     * @return CompletableFuture    Finishes with the decoded image, which must
+     *                              not be changed, or with the IOException
+     *                              if the file couldn't be read
+     */
+    public CompletableFuture<BufferedImage> load (File file)
+    {
+        BufferedImage cached = getCached (file);
+        if (cached != null) return CompletableFuture.completedFuture (cached);
+
+        return CompletableFuture.supplyAsync (() -> {
+            String key = key (file);
+            try
+            {
+                BufferedImage bi = read (file);
+                store (key, bi);
+                return bi;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException (e);
+            }
+        }, workers);
+    }
+
+    /**
+     * Starts reading a smaller copy of the file on a background thread, at
+     * most maxWidth by maxHeight
+     *
+     * @return CompletableFuture    Finishes with the Preview, or with null if
+     *                              the whole image already fits or the file
+     *                              couldn't be read that way
+     */
+    public CompletableFuture<Preview> loadPreview (File file, int maxWidth, int maxHeight)
+    {
+        return CompletableFuture.supplyAsync (() -> {
+            try
+            {
+                return readPreview (file, maxWidth, maxHeight);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Only a preview, the full load tells the user what went wrong
+                return null;
+            }
+        }, workers);
+    }
+
+    /**
+     * Returns how many bytes the cached images take up
+     */
+    public synchronized long getCachedBytes ()
+    {
+        return cachedBytes;
+    }
+
+    /**
+     * Throws out every cached image
+     */
+    public synchronized void clearCache ()
+    {
+        cache.clear();
+        cachedBytes = 0;
+    }
+
+    /**
+     * Decodes the whole file into a new TYPE_INT_ARGB image on this thread
+     *
+     * @throws IOException  If the file couldn't be read or isn't an image
+     */
+    public static BufferedImage read (File file) throws IOException
+    {
+        Metrics.Timer timer = Metrics.start ("decode", 0, 0);
+        try
+        {
+            BufferedImage decoded = ImageIO.read (file);
+            if (decoded == null) throw new IOException ("not an image this Java can read: " + file);
+
+            // Working on TYPE_INT_ARGB lets every filter use the image's int array directly
+            BufferedImage bi = decoded;
+            if (decoded.getType() != BufferedImage.TYPE_INT_ARGB)
+            {
+                bi = new BufferedImage (decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                PixelEngine.copy (decoded, bi);
+            }
+            timer.stop (bi.getWidth(), bi.getHeight());
+            return bi;
+        }
+        finally
+        {
+            // Only counts if it failed, since a timer only records its first stop
+            timer.stop();
+        }
+    }
+
+    /**
+     * Decodes every few pixels of every few rows of the file on this thread,
+     * skipping the same number both ways so the copy is at most maxWidth by
+     * maxHeight
+     *
+     * @return Preview      The smaller copy, or null if the whole image fits
+     * @throws IOException  If the file couldn't be read or isn't an image
+     */
+    public static Preview readPreview (File file, int maxWidth, int maxHeight) throws IOException
+    {
+        Metrics.Timer timer = Metrics.start ("decode preview", 0, 0);
+        try (ImageInputStream in = ImageIO.createImageInputStream (file))
+        {
+            if (in == null) throw new IOException ("couldn't open " + file);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders (in);
+            if (!readers.hasNext()) throw new IOException ("not an image this Java can read: " + file);
+            ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput (in, true, true);
+                int width = reader.getWidth (0);
+                int height = reader.getHeight (0);
+                int factor = Math.max (ceilDiv (width, maxWidth), ceilDiv (height, maxHeight));
+                if (factor <= 1) return null;
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling (factor, factor, 0, 0);
+                BufferedImage small = reader.read (0, param);
+                timer.stop (small.getWidth(), small.getHeight());
+                return new Preview (small, factor, width, height);
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Keeps a decoded image, making room by throwing out the ones used longest ago
+     */
+    private synchronized void store (String key, BufferedImage bi)
+    {
+        long bytes = 4L * bi.getWidth() * bi.getHeight();
+        if (bytes > cacheBudget) return;
+
+        BufferedImage old = cache.remove (key);
+        if (old != null) cachedBytes -= 4L * old.getWidth() * old.getHeight();
+
+        Iterator<Map.Entry<String, BufferedImage>> oldest = cache.entrySet().iterator();
+        while (cachedBytes + bytes > cacheBudget && oldest.hasNext())
+        {
+            BufferedImage image = oldest.next().getValue();
+            oldest.remove();
+            cachedBytes -= 4L * image.getWidth() * image.getHeight();
+        }
+        cache.put (key, bi);
+        cachedBytes += bytes;
+    }
+
+    /**
+     * Returns what the file's decoded image is remembered by, which changes
+     * when the file is saved over
+     */
+    private static String key (File file)
+    {
+        String path;
+        try
+        {
+            path = file.getCanonicalPath();
+        }
+        catch (IOException e)
+        {
+            path = file.getAbsolutePath();
+        }
+        return path + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private static int ceilDiv (int a, int b)
+    {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * A smaller copy of an image read by readPreview(), with the size of the
+     * whole image. Each of its pixels stands for a factor by factor block.
+     */
+    public static class Preview
+    {
+        private final BufferedImage image;
+        private final int factor;
+        private final int width;
+        private final int height;
+
+        Preview (BufferedImage image, int factor, int width, int height)
+        {
+            this.image = image;
+            this.factor = factor;
+            this.width = width;
+            this.height = height;
+        }
+
+        public BufferedImage getImage ()
+        {
+            return image;
+        }
+
+        public int getFactor ()
+        {
+            return factor;
+        }
+
+        /**
+         * Returns the width of the whole image
+         */
+        public int getWidth ()
+        {
+            return width;
+        }
+
+        /**
+         * Returns the height of the whole image
+         */
+        public int getHeight ()
+        {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Keeps count of how often each filter and file operation ran and how long
+ * it took, so that when the editor seems to freeze there is a record of what
+ * it was doing.
+ * <p>
+ * Every operation is timed by wrapping it in a Timer:
+ * <pre>
+ * Metrics.Timer timer = Metrics.start ("sepia", bi);
+ * try
+ * {
+ *     ...
+ * }
+ * finally
+ * {
+ *     timer.stop();
+ * }
+ * </pre>
+ * Stopping it in a finally block means operations that are cancelled or throw
+ * are counted too, and their Flight Recorder event is always ended. When the
+ * size is only known at the end, like when opening a file, stop(width, height)
+ * can be called at the end of the try block; a timer only records its first stop.
+ * Stopping the timer adds the run to the counts kept for that operation and,
+ * while Flight Recorder is recording, commits an OperationEvent with the same
+ * numbers. dump() prints a table of everything so far: how many runs, the
+ * median, 90th and 99th percentile and longest times, the megapixels per
+ * second and the bytes allocated.
+ * <p>
+ * Times are counted in buckets that double in size, so the percentiles are the
+ * top of the bucket they land in and can be up to twice the real time. Bytes
+ * allocated only count the thread that started the operation, not the worker
+ * threads it handed bands to. With metrics turned off and no recording running,
+ * start() hands back a timer that does nothing.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.EventType;
+
+public class Metrics
+{
+    // Bucket i holds times from 2^i up to 2^(i+1) nanoseconds, so 40 buckets reach about 18 minutes
+    private static final int BUCKETS = 40;
+
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+    private static final EventType EVENT_TYPE = EventType.getEventType (OperationEvent.class);
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final Timer NOTHING = new Timer (null, 0, 0, null);
+
+    private static volatile boolean enabled = true;
+
+    /**
+     * Turns the counts on or off. Flight Recorder events are still sent while
+     * a recording is running.
+     */
+    public static void setEnabled (boolean on)
+    {
+        enabled = on;
+    }
+
+    public static boolean isEnabled ()
+    {
+        return enabled;
+    }
+
+    /**
+     * Starts timing an operation on an image
+     */
+    public static Timer start (String op, BufferedImage bi)
+    {
+        return start (op, bi.getWidth(), bi.getHeight());
+    }
+
+    /**
+     * Starts timing an operation on an image of the given size. The size can be
+     * left as 0 and given to stop() instead, for example when opening a file.
+     */
+    public static Timer start (String op, int width, int height)
+    {
+        boolean recording = EVENT_TYPE.isEnabled();
+        if (!enabled && !recording) return NOTHING;
+
+        OperationEvent event = null;
+        if (recording)
+        {
+            event = new OperationEvent();
+            event.begin();
+        }
+        return new Timer (op, width, height, event);
+    }
+
+    /**
+     * Forgets every count so far
+     */
+    public static void reset ()
+    {
+        STATS.clear();
+    }
+
+    /**
+     * Returns a table of every operation timed so far, slowest in total first
+     */
+    public static String dump ()
+    {
+        ArrayList<Map.Entry<String, Stats>> entries = new ArrayList<>(STATS.entrySet());
+        entries.sort ((a, b) -> Long.compare (b.getValue().nanos.sum(), a.getValue().nanos.sum()));
+
+        StringBuilder table = new StringBuilder();
+        table.append (String.format ("%-28s %7s %10s %9s %9s %9s %9s %9s %12s%n",
+            "operation", "count", "total ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "MP/s", "MB alloc"));
+        for (Map.Entry<String, Stats> entry : entries)
+        {
+            Stats stats = entry.getValue();
+            long count = stats.count.sum();
+            double seconds = stats.nanos.sum() / 1e9;
+            table.append (String.format ("%-28s %7d %10.1f %9.2f %9.2f %9.2f %9.2f %9.1f %12.1f%n",
+                entry.getKey(), count, seconds * 1000,
+                stats.percentile (0.5) / 1e6, stats.percentile (0.9) / 1e6, stats.percentile (0.99) / 1e6,
+                stats.max.get() / 1e6, seconds > 0 ? stats.pixels.sum() / 1e6 / seconds : 0,
+                stats.allocated.sum() / 1e6));
+        }
+        return table.toString();
+    }
+
+    /**
+     * Returns the bytes allocated so far by this thread, or 0 if this Java can't tell
+     */
+    private static long allocatedBytes ()
+    {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes (Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean ()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        if (!threads.isThreadAllocatedMemorySupported()) return null;
+        threads.setThreadAllocatedMemoryEnabled (true);
+        return threads;
+    }
+
+    /**
+     * One operation being timed
+     */
+    public static class Timer
+    {
+        private final String op;
+        private final int width, height;
+        private final OperationEvent event;
+        private final long start, startAllocated;
+        private boolean stopped;
+
+        private Timer (String op, int width, int height, OperationEvent event)
+        {
+            this.op = op;
+            this.width = width;
+            this.height = height;
+            this.event = event;
+            start = op == null ? 0 : System.nanoTime();
+            startAllocated = op == null ? 0 : allocatedBytes();
+        }
+
+        /**
+         * Stops timing and records the run
+         */
+        public void stop ()
+        {
+            stop (width, height);
+        }
+
+        /**
+         * Stops timing and records the run as being on an image of the given size
+         */
+        public void stop (int width, int height)
+        {
+            if (op == null || stopped) return;
+            stopped = true;
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedBytes() - startAllocated;
+            long pixels = (long)width * height;
+
+            if (enabled)
+            {
+                STATS.computeIfAbsent (op, k -> new Stats()).add (nanos, pixels, allocated);
+            }
+            if (event != null)
+            {
+                event.end();
+                if (event.shouldCommit())
+                {
+                    event.op = op;
+                    event.width = width;
+                    event.height = height;
+                    event.pixels = pixels;
+                    event.allocated = allocated;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * The counts for one operation, which many threads may add to at once
+     */
+    private static class Stats
+    {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder pixels = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray (BUCKETS);
+
+        void add (long time, long pixelCount, long bytes)
+        {
+            count.increment();
+            nanos.add (time);
+            pixels.add (pixelCount);
+            allocated.add (bytes);
+            max.accumulateAndGet (time, Math::max);
+
+            int bucket = Math.min (BUCKETS - 1, 63 - Long.numberOfLeadingZeros (Math.max (1, time)));
+            buckets.incrementAndGet (bucket);
+        }
+
+        /**
+         * Returns the top of the bucket holding the given fraction of runs, in nanoseconds
+         */
+        double percentile (double fraction)
+        {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += buckets.get (i);
+            if (total == 0) return 0;
+
+            long rank = (long)Math.ceil (fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                seen += buckets.get (i);
+                if (seen >= rank) return Math.min (2.0 * (1L << i), max.get());
+            }
+            return max.get();
+        }
+    }
+}
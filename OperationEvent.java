@@ -0,0 +1,45 @@
+/**
+ * A Flight Recorder event for one run of a filter or one file read or write,
+ * so a recording shows which change on which size of image took so long.
+ * <p>
+ * Flight Recorder only records these while a recording with the event turned
+ * on is running, for example with
+ * <pre>java -XX:StartFlightRecording=filename=editor.jfr ...</pre>
+ * The rest of the time an event is never started or committed.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name ("imageeditor.Operation")
+@Label ("Image Operation")
+@Category ("Image Editor")
+@Description ("A filter run on an image, or an image read or written")
+@StackTrace (false)
+public class OperationEvent extends Event
+{
+    @Label ("Operation")
+    String op;
+
+    @Label ("Width")
+    int width;
+
+    @Label ("Height")
+    int height;
+
+    @Label ("Pixels")
+    long pixels;
+
+    @Label ("Bytes Allocated")
+    @Description ("Bytes allocated by the thread that ran the operation, not counting worker threads")
+    @DataAmount
+    long allocated;
+}
@@ -0,0 +1,259 @@
+/**
+ * Splits an image into bands of rows and runs a task on each band using a
+ * ForkJoinPool, so that every core can work on a different part of the image.
+ * <p>
+ * Small images are not worth splitting, so anything with fewer pixels than the
+ * serial threshold is run on the calling thread. Because each band is worked
+ * on by exactly one thread, the result is the same as running the whole image
+ * on one thread.
+ * <p>
+ * A thread can also be given a Progress to work under. Every band run on its
+ * behalf then counts towards the progress, and once the progress is cancelled
+ * the next band throws a CancellationException instead of running, so a long
+ * filter can be stopped part way through.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ParallelExecutor
+{
+    /**
+     * A piece of work done on the rows from yStart up to, but not including, yEnd
+     */
+    public interface RowTask
+    {
+        void run (int yStart, int yEnd);
+    }
+
+    // Roughly how many pixels a band should hold, so one band fits in the cache
+    private static final int BAND_PIXELS = 1 << 16;
+
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static long serialThreshold = 1 << 18;
+    private static ForkJoinPool pool;
+    // How many calls are running bands on each pool, so a pool that
+    // setParallelism() replaced is only shut down once they have finished
+    private static final Map<ForkJoinPool, Integer> USERS = new HashMap<>();
+
+    // The progress the calling thread's bands count towards, if any
+    private static final ThreadLocal<Progress> PROGRESS = new ThreadLocal<>();
+
+    /**
+     * Sets how many threads the executor may use. A value of 1 runs everything
+     * on the calling thread. Calls already running keep the threads they
+     * started with until they finish.
+     */
+    public static synchronized void setParallelism (int threads)
+    {
+        if (threads < 1) throw new IllegalArgumentException ("threads must be at least 1: " + threads);
+        if (threads == parallelism) return;
+
+        parallelism = threads;
+        if (pool != null)
+        {
+            // Otherwise the last call running on it shuts it down when it is done
+            if (!USERS.containsKey (pool)) pool.shutdown();
+            pool = null;
+        }
+    }
+
+    public static synchronized int getParallelism ()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of pixels an image needs before it is split between threads
+     */
+    public static synchronized void setSerialThreshold (long pixels)
+    {
+        serialThreshold = Math.max (0, pixels);
+    }
+
+    public static synchronized long getSerialThreshold ()
+    {
+        return serialThreshold;
+    }
+
+    /**
+     * Runs the task over every row of an image of the given size, splitting the
+     * rows into bands that are worked on in parallel when the image is big enough
+     */
+    public static void forEachRowBand (int width, int height, RowTask task)
+    {
+        forEachRowBand (width, height, 1, task);
+    }
+
+    /**
+     * Runs the task over every row of an image of the given size, like the
+     * method above, but with bands of roughly minRows rows or more. A filter
+     * that has to read rows above and below its band uses this to keep those
+     * extra rows small next to the band.
+     */
+    public static void forEachRowBand (int width, int height, int minRows, RowTask task)
+    {
+        Progress progress = PROGRESS.get();
+        int bandRows = Math.max (Math.max (1, minRows), BAND_PIXELS / Math.max (1, width));
+        if (progress != null)
+        {
+            progress.checkCancelled();
+            progress.startPass (height);
+        }
+
+        ForkJoinPool workers = acquirePool ((long)width * height);
+        if (workers == null)
+        {
+            if (progress == null)
+            {
+                task.run (0, height);
+                return;
+            }
+            // Still going a band at a time, so a cancel doesn't have to wait for the whole image
+            for (int y = 0; y < height; y += bandRows)
+            {
+                progress.checkCancelled();
+                int yEnd = Math.min (y + bandRows, height);
+                task.run (y, yEnd);
+                progress.addRows (yEnd - y);
+            }
+            return;
+        }
+        try
+        {
+            workers.invoke (new BandAction (task, 0, height, bandRows, progress));
+        }
+        finally
+        {
+            releasePool (workers);
+        }
+    }
+
+    /**
+     * Makes every band the calling thread runs from now on count towards the
+     * progress, or stops that if progress is null
+     */
+    public static void setProgress (Progress progress)
+    {
+        if (progress == null) PROGRESS.remove();
+        else PROGRESS.set (progress);
+    }
+
+    /**
+     * Returns the pool to run an image of this many pixels on, or null if it
+     * should stay on the calling thread. A pool that is returned has to be
+     * handed back with releasePool() once the bands are done.
+     */
+    private static synchronized ForkJoinPool acquirePool (long pixels)
+    {
+        if (parallelism <= 1 || pixels < serialThreshold) return null;
+
+        if (pool == null) pool = new ForkJoinPool (parallelism);
+        USERS.merge (pool, 1, Integer::sum);
+        return pool;
+    }
+
+    /**
+     * Hands back a pool from acquirePool(), shutting it down if it has been
+     * replaced and nothing else is running on it
+     */
+    private static synchronized void releasePool (ForkJoinPool workers)
+    {
+        if (USERS.merge (workers, -1, Integer::sum) > 0) return;
+
+        USERS.remove (workers);
+        if (workers != pool) workers.shutdown();
+    }
+
+    /**
+     * Keeps halving its rows until they fit in one band, then runs the task
+     */
+    private static class BandAction extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final RowTask task;
+        private final int yStart, yEnd, bandRows;
+        private final Progress progress;
+
+        BandAction (RowTask task, int yStart, int yEnd, int bandRows, Progress progress)
+        {
+            this.task = task;
+            this.yStart = yStart;
+            this.yEnd = yEnd;
+            this.bandRows = bandRows;
+            this.progress = progress;
+        }
+
+        protected void compute ()
+        {
+            if (yEnd - yStart <= bandRows)
+            {
+                if (progress != null) progress.checkCancelled();
+                task.run (yStart, yEnd);
+                if (progress != null) progress.addRows (yEnd - yStart);
+                return;
+            }
+
+            int mid = (yStart + yEnd) >>> 1;
+            invokeAll (new BandAction (task, yStart, mid, bandRows, progress),
+                       new BandAction (task, mid, yEnd, bandRows, progress));
+        }
+    }
+
+    /**
+     * How far a job has got through the pass over the image it is on, and
+     * whether it has been asked to stop
+     */
+    public static class Progress
+    {
+        private volatile boolean cancelled;
+        private volatile long rowsTotal;
+        private final AtomicLong rowsDone = new AtomicLong();
+
+        /**
+         * Asks the job to stop. The next band it starts throws a CancellationException.
+         */
+        public void cancel ()
+        {
+            cancelled = true;
+        }
+
+        public boolean isCancelled ()
+        {
+            return cancelled;
+        }
+
+        /**
+         * Returns how much of the current pass over the image is done, from 0 to 1
+         */
+        public double getPassFraction ()
+        {
+            long total = rowsTotal;
+            return total == 0 ? 0 : Math.min (1, rowsDone.get() / (double)total);
+        }
+
+        void startPass (long rows)
+        {
+            rowsDone.set (0);
+            rowsTotal = rows;
+        }
+
+        void addRows (long rows)
+        {
+            rowsDone.addAndGet (rows);
+        }
+
+        void checkCancelled ()
+        {
+            if (cancelled) throw new CancellationException ("cancelled");
+        }
+    }
+}
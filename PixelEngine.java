@@ -0,0 +1,452 @@
+/**
+ * Runs pixel operations directly on the raster behind a BufferedImage instead
+ * of calling getRGB() and setRGB() once per pixel.
+ * <p>
+ * Images backed by an int array (TYPE_INT_ARGB and TYPE_INT_RGB) are changed
+ * straight through that array. Any other image type is changed one row at a
+ * time through a row buffer, which still gives exactly the same values as
+ * getRGB() and setRGB() would. Byte images in the normal sRGB colours, like
+ * TYPE_3BYTE_BGR, fill that buffer from the samples of their raster, since
+ * getRGB() and setRGB() make an object for every pixel of them.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+public class PixelEngine
+{
+    /**
+     * Checks if the pixels of the image can be read and written straight
+     * through its int array
+     */
+    public static boolean isDirect (BufferedImage bi)
+    {
+        int type = bi.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB) return false;
+
+        WritableRaster raster = bi.getRaster();
+        return raster.getDataBuffer() instanceof DataBufferInt
+            && raster.getDataBuffer().getNumBanks() == 1
+            && raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    /**
+     * Returns the int array behind the image. Only call this when isDirect() is true.
+     */
+    public static int[] getData (BufferedImage bi)
+    {
+        return ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the distance in the int array between two rows of the image
+     */
+    public static int getScanlineStride (BufferedImage bi)
+    {
+        return ((SinglePixelPackedSampleModel)bi.getRaster().getSampleModel()).getScanlineStride();
+    }
+
+    /**
+     * Returns the index of pixel (x, y) in the int array behind the image
+     */
+    public static int getOffset (BufferedImage bi, int x, int y)
+    {
+        WritableRaster raster = bi.getRaster();
+        return raster.getDataBuffer().getOffset()
+            + (y - raster.getSampleModelTranslateY()) * getScanlineStride (bi)
+            + (x - raster.getSampleModelTranslateX());
+    }
+
+    /**
+     * Applies the operation to every pixel of the image. Large images are split
+     * into bands of rows that are worked on in parallel by the ParallelExecutor.
+     */
+    public static void apply (BufferedImage bi, PixelOp op)
+    {
+        ParallelExecutor.forEachRowBand (bi.getWidth(), bi.getHeight(),
+            (yStart, yEnd) -> applyRows (bi, op, yStart, yEnd));
+    }
+
+    /**
+     * Applies the operation to every pixel of the image, a whole vector of
+     * pixels at a time with vectorOp when the image is a TYPE_INT_ARGB image
+     * and VectorPixelOps is turned on. vectorOp must give exactly the same
+     * pixels as op.
+     */
+    public static void apply (BufferedImage bi, PixelOp op, VectorPixelOps.RowOp vectorOp)
+    {
+        if (!VectorPixelOps.isEnabled() || bi.getType() != BufferedImage.TYPE_INT_ARGB || !isDirect (bi))
+        {
+            apply (bi, op);
+            return;
+        }
+
+        int xSize = bi.getWidth();
+        int[] data = getData (bi);
+        boolean packed = getScanlineStride (bi) == xSize;
+        ParallelExecutor.forEachRowBand (xSize, bi.getHeight(), (yStart, yEnd) -> {
+            if (packed)
+            {
+                // No gaps between the rows, so the whole band is one run of pixels
+                vectorOp.apply (data, getOffset (bi, 0, yStart), getOffset (bi, 0, yEnd - 1) + xSize);
+                return;
+            }
+            for (int y = yStart; y < yEnd; y++)
+            {
+                int start = getOffset (bi, 0, y);
+                vectorOp.apply (data, start, start + xSize);
+            }
+        });
+    }
+
+    /**
+     * Applies the operation to every pixel in the rows from yStart up to, but
+     * not including, yEnd
+     */
+    public static void applyRows (BufferedImage bi, PixelOp op, int yStart, int yEnd)
+    {
+        int xSize = bi.getWidth();
+
+        if (isDirect (bi))
+        {
+            int[] data = getData (bi);
+            boolean hasAlpha = bi.getType() == BufferedImage.TYPE_INT_ARGB;
+
+            for (int y = yStart; y < yEnd; y++)
+            {
+                int start = getOffset (bi, 0, y);
+                int end = start + xSize;
+                if (hasAlpha)
+                {
+                    for (int i = start; i < end; i++)
+                    {
+                        data[i] = op.apply (data[i]);
+                    }
+                }
+                else
+                {
+                    // An RGB image reads back as fully opaque and drops the alpha on the way in
+                    for (int i = start; i < end; i++)
+                    {
+                        data[i] = op.apply (data[i] | 0xFF000000) & 0x00FFFFFF;
+                    }
+                }
+            }
+        }
+        else
+        {
+            int[] row = new int[xSize];
+            int[] samples = newRowSamples (bi, xSize);
+            for (int y = yStart; y < yEnd; y++)
+            {
+                getRow (bi, 0, y, xSize, row, samples);
+                for (int x = 0; x < xSize; x++)
+                {
+                    row[x] = op.apply (row[x]);
+                }
+                setRow (bi, 0, y, xSize, row, samples);
+            }
+        }
+    }
+
+    /**
+     * Returns room for the samples of width pixels of the image, for getRow()
+     * and setRow() to use, or null if the image is read with getRGB() anyway
+     */
+    public static int[] newRowSamples (BufferedImage bi, int width)
+    {
+        return hasSrgbBytes (bi) ? new int[width * bi.getRaster().getNumBands()] : null;
+    }
+
+    /**
+     * Reads width pixels of row y, starting at x, into row as packed pixels,
+     * exactly like getRGB() would
+     *
+     * @param samples   Room from newRowSamples() for at least width pixels
+     */
+    public static void getRow (BufferedImage bi, int x, int y, int width, int[] row, int[] samples)
+    {
+        if (isDirect (bi))
+        {
+            System.arraycopy (getData (bi), getOffset (bi, x, y), row, 0, width);
+            if (bi.getType() != BufferedImage.TYPE_INT_ARGB)
+            {
+                for (int i = 0; i < width; i++) row[i] |= 0xFF000000;
+            }
+            return;
+        }
+        if (samples == null)
+        {
+            bi.getRGB (x, y, width, 1, row, 0, width);
+            return;
+        }
+        WritableRaster raster = bi.getRaster();
+        raster.getPixels (x, y, width, 1, samples);
+        if (raster.getNumBands() == 4)
+        {
+            for (int i = 0, s = 0; i < width; i++, s += 4)
+            {
+                row[i] = (samples[s + 3] << 24) | (samples[s] << 16) | (samples[s + 1] << 8) | samples[s + 2];
+            }
+        }
+        else
+        {
+            for (int i = 0, s = 0; i < width; i++, s += 3)
+            {
+                row[i] = 0xFF000000 | (samples[s] << 16) | (samples[s + 1] << 8) | samples[s + 2];
+            }
+        }
+    }
+
+    /**
+     * Writes width packed pixels from row into row y of the image, starting
+     * at x, exactly like setRGB() would
+     *
+     * @param samples   Room from newRowSamples() for at least width pixels
+     */
+    public static void setRow (BufferedImage bi, int x, int y, int width, int[] row, int[] samples)
+    {
+        if (isDirect (bi))
+        {
+            int[] data = getData (bi);
+            int start = getOffset (bi, x, y);
+            System.arraycopy (row, 0, data, start, width);
+            if (bi.getType() != BufferedImage.TYPE_INT_ARGB)
+            {
+                for (int i = start; i < start + width; i++) data[i] &= 0x00FFFFFF;
+            }
+            return;
+        }
+        if (samples == null)
+        {
+            bi.setRGB (x, y, width, 1, row, 0, width);
+            return;
+        }
+        WritableRaster raster = bi.getRaster();
+        int bands = raster.getNumBands();
+        for (int i = 0, s = 0; i < width; i++, s += bands)
+        {
+            int rgb = row[i];
+            samples[s] = (rgb >> 16) & 0xFF;
+            samples[s + 1] = (rgb >> 8) & 0xFF;
+            samples[s + 2] = rgb & 0xFF;
+            if (bands == 4) samples[s + 3] = rgb >>> 24;
+        }
+        raster.setPixels (x, y, width, 1, samples);
+    }
+
+    /**
+     * Checks if the image keeps red, green, blue and maybe alpha as one byte
+     * each, in sRGB and not premultiplied, so its samples are the same as the
+     * channels getRGB() gives
+     */
+    private static boolean hasSrgbBytes (BufferedImage bi)
+    {
+        ColorModel model = bi.getColorModel();
+        if (!(model instanceof ComponentColorModel) || model.getTransferType() != DataBuffer.TYPE_BYTE
+            || !model.getColorSpace().isCS_sRGB() || model.isAlphaPremultiplied())
+        {
+            return false;
+        }
+        int components = model.getNumComponents();
+        if (components != 3 && !(components == 4 && model.hasAlpha())) return false;
+        if (bi.getRaster().getNumBands() != components) return false;
+        for (int i = 0; i < components; i++)
+        {
+            if (model.getComponentSize (i) != 8) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies every pixel of the image, row by row, into an array of packed pixels.
+     *
+     * @param pixels    The array to fill, or null to allocate a new one
+     * @return int[]    The array holding the pixels
+     */
+    public static int[] getPixels (BufferedImage bi, int[] pixels)
+    {
+        int xSize = bi.getWidth();
+        int ySize = bi.getHeight();
+        if (pixels == null || pixels.length < xSize * ySize) pixels = new int[xSize * ySize];
+
+        if (isDirect (bi))
+        {
+            int[] data = getData (bi);
+            boolean hasAlpha = bi.getType() == BufferedImage.TYPE_INT_ARGB;
+            for (int y = 0; y < ySize; y++)
+            {
+                int start = y * xSize;
+                System.arraycopy (data, getOffset (bi, 0, y), pixels, start, xSize);
+                if (!hasAlpha)
+                {
+                    for (int i = start; i < start + xSize; i++) pixels[i] |= 0xFF000000;
+                }
+            }
+        }
+        else
+        {
+            int[] row = new int[xSize];
+            int[] samples = newRowSamples (bi, xSize);
+            for (int y = 0; y < ySize; y++)
+            {
+                getRow (bi, 0, y, xSize, row, samples);
+                System.arraycopy (row, 0, pixels, y * xSize, xSize);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Copies an array of packed pixels, row by row, back into the image
+     */
+    public static void setPixels (BufferedImage bi, int[] pixels)
+    {
+        int xSize = bi.getWidth();
+        int ySize = bi.getHeight();
+
+        if (isDirect (bi))
+        {
+            int[] data = getData (bi);
+            boolean hasAlpha = bi.getType() == BufferedImage.TYPE_INT_ARGB;
+            for (int y = 0; y < ySize; y++)
+            {
+                int start = getOffset (bi, 0, y);
+                System.arraycopy (pixels, y * xSize, data, start, xSize);
+                if (!hasAlpha)
+                {
+                    for (int i = start; i < start + xSize; i++) data[i] &= 0x00FFFFFF;
+                }
+            }
+        }
+        else
+        {
+            int[] row = new int[xSize];
+            int[] samples = newRowSamples (bi, xSize);
+            for (int y = 0; y < ySize; y++)
+            {
+                System.arraycopy (pixels, y * xSize, row, 0, xSize);
+                setRow (bi, 0, y, xSize, row, samples);
+            }
+        }
+    }
+
+    /**
+     * Copies every pixel of one image into another of the same size. Two
+     * TYPE_INT_ARGB images are copied row by row straight between their arrays.
+     */
+    public static void copy (BufferedImage from, BufferedImage to)
+    {
+        copy (from, to, new Rectangle (0, 0, from.getWidth(), from.getHeight()));
+    }
+
+    /**
+     * Copies the pixels inside region from one image into the same place in
+     * another of the same size, leaving the rest of it as it was
+     */
+    public static void copy (BufferedImage from, BufferedImage to, Rectangle region)
+    {
+        int xSize = from.getWidth();
+        int ySize = from.getHeight();
+        if (to.getWidth() != xSize || to.getHeight() != ySize)
+        {
+            throw new IllegalArgumentException ("images must be the same size");
+        }
+        Rectangle r = region.intersection (new Rectangle (0, 0, xSize, ySize));
+        if (r.isEmpty()) return;
+
+        if (from.getType() == BufferedImage.TYPE_INT_ARGB && to.getType() == BufferedImage.TYPE_INT_ARGB
+            && isDirect (from) && isDirect (to))
+        {
+            int[] fromData = getData (from);
+            int[] toData = getData (to);
+            ParallelExecutor.forEachRowBand (r.width, r.height, (yStart, yEnd) -> {
+                for (int y = r.y + yStart; y < r.y + yEnd; y++)
+                {
+                    System.arraycopy (fromData, getOffset (from, r.x, y), toData, getOffset (to, r.x, y), r.width);
+                }
+            });
+            return;
+        }
+        if (r.width == xSize && r.height == ySize)
+        {
+            setPixels (to, getPixels (from, null));
+            return;
+        }
+        int[] pixels = from.getRGB (r.x, r.y, r.width, r.height, null, 0, r.width);
+        to.setRGB (r.x, r.y, r.width, r.height, pixels, 0, r.width);
+    }
+
+    /**
+     * Returns the smallest rectangle inside region that holds every pixel that
+     * is different between two images of the same size, or an empty rectangle
+     * if none of them are. Rows that are the same are skipped quickly, and so
+     * are rows that differ near both ends, so this usually costs much less
+     * than a pass over the image.
+     */
+    public static Rectangle findChanged (BufferedImage a, BufferedImage b, Rectangle region)
+    {
+        int xSize = a.getWidth();
+        int ySize = a.getHeight();
+        if (b.getWidth() != xSize || b.getHeight() != ySize)
+        {
+            throw new IllegalArgumentException ("images must be the same size");
+        }
+        Rectangle r = region.intersection (new Rectangle (0, 0, xSize, ySize));
+        if (r.isEmpty()) return new Rectangle();
+
+        Metrics.Timer timer = Metrics.start ("findChanged", r.width, r.height);
+        try
+        {
+            boolean direct = a.getType() == BufferedImage.TYPE_INT_ARGB && b.getType() == BufferedImage.TYPE_INT_ARGB
+                && isDirect (a) && isDirect (b);
+            int[] rowA = direct ? null : new int[r.width], rowB = direct ? null : new int[r.width];
+            int[] samplesA = direct ? null : newRowSamples (a, r.width), samplesB = direct ? null : newRowSamples (b, r.width);
+            int top = -1, bottom = -1, left = r.width, right = -1;
+            for (int y = r.y; y < r.y + r.height; y++)
+            {
+                int[] dataA = rowA, dataB = rowB;
+                int startA = 0, startB = 0;
+                if (direct)
+                {
+                    dataA = getData (a);
+                    dataB = getData (b);
+                    startA = getOffset (a, r.x, y);
+                    startB = getOffset (b, r.x, y);
+                }
+                else
+                {
+                    getRow (a, r.x, y, r.width, rowA, samplesA);
+                    getRow (b, r.x, y, r.width, rowB, samplesB);
+                }
+
+                int first = Arrays.mismatch (dataA, startA, startA + r.width, dataB, startB, startB + r.width);
+                if (first < 0) continue;
+                // Only the end of the row past the rightmost difference so far still matters
+                int last = r.width - 1;
+                while (last > Math.max (first, right) && dataA[startA + last] == dataB[startB + last]) last--;
+
+                if (top < 0) top = y;
+                bottom = y;
+                left = Math.min (left, first);
+                right = Math.max (right, last);
+            }
+            if (top < 0) return new Rectangle();
+            return new Rectangle (r.x + left, top, right - left + 1, bottom - top + 1);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * A colour operation that works on one packed pixel at a time. The pixel is
+ * the same kind of integer that BufferedImage's getRGB() method returns:
+ * <pre>alpha   red     green   blue</pre>
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+public interface PixelOp
+{
+    /**
+     * Takes in a packed pixel and returns the new packed pixel
+     *
+     * @param rgb   The pixel to change
+     * @return int  The changed pixel
+     */
+    int apply (int rgb);
+}
@@ -0,0 +1,451 @@
+/**
+ * Holds the pixels of an image outside the Java heap, either in a direct
+ * buffer or in a scratch file mapped into memory, so that a huge image doesn't
+ * fill up the heap or make the garbage collector copy it around.
+ * <p>
+ * The pixels are packed ARGB ints in rows from the top left, the same as a
+ * TYPE_INT_ARGB BufferedImage. A mapped store is paged in and out by the
+ * operating system, so it can be bigger than the memory the machine has free.
+ * The filters run straight on the store: colour filters and pixalate are run on
+ * bands of rows copied into a small image, while flips and rotations move the
+ * rows around inside the buffer. A BufferedImage is only made when the image
+ * has to be shown or written with ImageIO.
+ * <p>
+ * Java can't unmap a file on demand, so closing a mapped store only lets go
+ * of the mapping. Its scratch file is deleted once the garbage collector has
+ * unmapped it, which is also when the disk space comes back, and any still
+ * left when the program ends are deleted then.
+ * <p>
+ * A single buffer holds at most 2 GB, so a store can have up to 512 million pixels.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class PixelStore
+{
+    // Roughly how many pixels to copy into a band image at a time
+    private static final int BAND_PIXELS = 1 << 20;
+    // Rows moved at a time by the 90 degree rotations
+    private static final int ROTATE_ROWS = 64;
+
+    // Deletes each scratch file once its mapping is gone
+    private static final Cleaner CLEANER = Cleaner.create();
+    // Scratch files that aren't deleted yet, which one hook deletes when the program ends
+    private static final Set<File> SCRATCH_FILES = ConcurrentHashMap.newKeySet();
+
+    static
+    {
+        Runtime.getRuntime().addShutdownHook (new Thread (() -> {
+            for (File file : SCRATCH_FILES) file.delete();
+        }, "pixel store cleanup"));
+    }
+
+    private final int width, height;
+    // Null once the store is closed
+    private IntBuffer pixels;
+    private final File file;
+
+    private PixelStore (int width, int height, IntBuffer pixels, File file)
+    {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.file = file;
+    }
+
+    /**
+     * Creates a store of transparent pixels in a direct buffer
+     */
+    public static PixelStore allocate (int width, int height)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect (byteSize (width, height));
+        return new PixelStore (width, height, buffer.order (ByteOrder.nativeOrder()).asIntBuffer(), null);
+    }
+
+    /**
+     * Creates a store of transparent pixels in a scratch file in the given
+     * folder, or the temporary folder if it is null. The file is deleted once
+     * the store is closed and unmapped, or when the program ends.
+     */
+    public static PixelStore map (int width, int height, File folder) throws IOException
+    {
+        int bytes = byteSize (width, height);
+        File file = File.createTempFile ("pixels", ".raw", folder);
+        SCRATCH_FILES.add (file);
+        try (RandomAccessFile raf = new RandomAccessFile (file, "rw"); FileChannel channel = raf.getChannel())
+        {
+            // The mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map (FileChannel.MapMode.READ_WRITE, 0, bytes);
+            // The buffer keeps the mapping alive, and views of it keep the buffer
+            CLEANER.register (buffer, new Delete (file));
+            return new PixelStore (width, height, buffer.order (ByteOrder.nativeOrder()).asIntBuffer(), file);
+        }
+        catch (IOException e)
+        {
+            if (file.delete()) SCRATCH_FILES.remove (file);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies an image into a new store, mapped to a scratch file if mapped is true
+     */
+    public static PixelStore of (BufferedImage bi, boolean mapped) throws IOException
+    {
+        PixelStore store = mapped ? map (bi.getWidth(), bi.getHeight(), null) : allocate (bi.getWidth(), bi.getHeight());
+        store.copyFrom (bi);
+        return store;
+    }
+
+    private static int byteSize (int width, int height)
+    {
+        if (width < 1 || height < 1) throw new IllegalArgumentException ("size must be positive: " + width + "x" + height);
+        long bytes = 4L * width * height;
+        if (bytes > Integer.MAX_VALUE) throw new IllegalArgumentException ("too many pixels for one store: " + width + "x" + height);
+        return (int)bytes;
+    }
+
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    /**
+     * Checks if the pixels are kept in a scratch file rather than in memory
+     */
+    public boolean isMapped ()
+    {
+        return file != null;
+    }
+
+    /**
+     * Returns a view of the pixels with its own position, so threads can each
+     * use one
+     */
+    private IntBuffer view ()
+    {
+        IntBuffer open = pixels;
+        if (open == null) throw new IllegalStateException ("pixel store is closed");
+        return open.duplicate();
+    }
+
+    /**
+     * Copies rows yStart up to, but not including, yEnd into the array
+     */
+    private void getRows (int yStart, int yEnd, int[] rows)
+    {
+        IntBuffer view = view();
+        view.position (yStart * width);
+        view.get (rows, 0, (yEnd - yStart) * width);
+    }
+
+    /**
+     * Copies the array over rows yStart up to, but not including, yEnd
+     */
+    private void setRows (int yStart, int yEnd, int[] rows)
+    {
+        IntBuffer view = view();
+        view.position (yStart * width);
+        view.put (rows, 0, (yEnd - yStart) * width);
+    }
+
+    /**
+     * Copies the pixels of an image of the same size into the store
+     */
+    public void copyFrom (BufferedImage bi)
+    {
+        checkSize (bi);
+        if (bi.getType() == BufferedImage.TYPE_INT_ARGB && PixelEngine.isDirect (bi))
+        {
+            // Straight out of the image's own rows
+            int[] data = PixelEngine.getData (bi);
+            ParallelExecutor.forEachRowBand (width, height, (yStart, yEnd) -> {
+                IntBuffer view = view();
+                for (int y = yStart; y < yEnd; y++)
+                {
+                    view.position (y * width);
+                    view.put (data, PixelEngine.getOffset (bi, 0, y), width);
+                }
+            });
+            return;
+        }
+
+        ParallelExecutor.forEachRowBand (width, height, (yStart, yEnd) -> {
+            int[] row = new int[width];
+            for (int y = yStart; y < yEnd; y++)
+            {
+                bi.getRGB (0, y, width, 1, row, 0, width);
+                setRows (y, y + 1, row);
+            }
+        });
+    }
+
+    /**
+     * Copies the store into an image of the same size, like the one being shown
+     */
+    public void copyTo (BufferedImage bi)
+    {
+        checkSize (bi);
+        if (bi.getType() == BufferedImage.TYPE_INT_ARGB && PixelEngine.isDirect (bi))
+        {
+            // Straight into the image's own rows
+            int[] data = PixelEngine.getData (bi);
+            ParallelExecutor.forEachRowBand (width, height, (yStart, yEnd) -> {
+                IntBuffer view = view();
+                for (int y = yStart; y < yEnd; y++)
+                {
+                    view.position (y * width);
+                    view.get (data, PixelEngine.getOffset (bi, 0, y), width);
+                }
+            });
+            return;
+        }
+
+        ParallelExecutor.forEachRowBand (width, height, (yStart, yEnd) -> {
+            int[] row = new int[width];
+            for (int y = yStart; y < yEnd; y++)
+            {
+                getRows (y, y + 1, row);
+                bi.setRGB (0, y, width, 1, row, 0, width);
+            }
+        });
+    }
+
+    /**
+     * Returns the pixels as a new TYPE_INT_ARGB image, for showing or saving
+     */
+    public BufferedImage toBufferedImage ()
+    {
+        BufferedImage bi = new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+        copyTo (bi);
+        return bi;
+    }
+
+    private void checkSize (BufferedImage bi)
+    {
+        if (bi.getWidth() != width || bi.getHeight() != height)
+        {
+            throw new IllegalArgumentException ("image must be " + width + "x" + height);
+        }
+    }
+
+    /**
+     * Makes a change to the pixels. Flips and rotations move the pixels inside
+     * the store, and changes that only need a band of rows at a time are run on
+     * each band in turn. Anything else is made on a full copy in the heap.
+     *
+     * @return PixelStore   The changed store, which is a new store for changes
+     *                      that change the size, like the 90 degree rotations,
+     *                      and this one for everything else. The old store is
+     *                      left as it was, to be closed or kept.
+     */
+    public PixelStore apply (EditOp op) throws IOException
+    {
+        if (op == EditOps.FLIP_VERTICAL)
+        {
+            swapRows (false);
+        }
+        else if (op == EditOps.ROTATE_180)
+        {
+            rotate180();
+        }
+        else if (op == EditOps.ROTATE_CW_90)
+        {
+            return rotate90 (true);
+        }
+        else if (op == EditOps.ROTATE_CCW_90)
+        {
+            return rotate90 (false);
+        }
+        else if (op.getBandHeight() > 0)
+        {
+            applyInBands (op);
+        }
+        else
+        {
+            BufferedImage bi = op.apply (toBufferedImage());
+            if (bi.getWidth() == width && bi.getHeight() == height)
+            {
+                copyFrom (bi);
+            }
+            else
+            {
+                PixelStore changed = newStore (bi.getWidth(), bi.getHeight());
+                changed.copyFrom (bi);
+                return changed;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Runs the change on bands of rows copied into a small image, one band at a
+     * time, so only one band is ever in the heap. The change itself can still
+     * split each band between threads.
+     */
+    private void applyInBands (EditOp op)
+    {
+        int unit = op.getBandHeight();
+        int bandRows = Math.max (1, BAND_PIXELS / width / unit) * unit;
+        BufferedImage band = null;
+
+        for (int y = 0; y < height; y += bandRows)
+        {
+            int yEnd = Math.min (y + bandRows, height);
+            if (band == null || band.getHeight() != yEnd - y)
+            {
+                band = new BufferedImage (width, yEnd - y, BufferedImage.TYPE_INT_ARGB);
+            }
+            int[] data = PixelEngine.getData (band);
+            getRows (y, yEnd, data);
+
+            BufferedImage changed = op.apply (band);
+            setRows (y, yEnd, changed == band ? data : PixelEngine.getPixels (changed, null));
+        }
+    }
+
+    /**
+     * Rotates the store 180 degrees, which is a vertical flip with every row reversed
+     */
+    private void rotate180 ()
+    {
+        swapRows (true);
+        if (height % 2 == 1)
+        {
+            int[] row = new int[width];
+            getRows (height / 2, height / 2 + 1, row);
+            reverse (row);
+            setRows (height / 2, height / 2 + 1, row);
+        }
+    }
+
+    /**
+     * Swaps each row in the top half with its mirror in the bottom half,
+     * reversing both on the way if reverseRows is true
+     */
+    private void swapRows (boolean reverseRows)
+    {
+        ParallelExecutor.forEachRowBand (width, height / 2, (yStart, yEnd) -> {
+            int[] top = new int[width], bottom = new int[width];
+            for (int y = yStart; y < yEnd; y++)
+            {
+                int mirror = height - 1 - y;
+                getRows (y, y + 1, top);
+                getRows (mirror, mirror + 1, bottom);
+                if (reverseRows)
+                {
+                    reverse (top);
+                    reverse (bottom);
+                }
+                setRows (y, y + 1, bottom);
+                setRows (mirror, mirror + 1, top);
+            }
+        });
+    }
+
+    private static void reverse (int[] row)
+    {
+        for (int i = 0, j = row.length - 1; i < j; i++, j--)
+        {
+            int temp = row[i];
+            row[i] = row[j];
+            row[j] = temp;
+        }
+    }
+
+    /**
+     * Returns a new store holding this one rotated 90 degrees. A band of rows is
+     * read at a time, and each of its columns is written as a short run of one
+     * new row, so both stores are only ever touched a band at a time.
+     */
+    private PixelStore rotate90 (boolean clockwise) throws IOException
+    {
+        PixelStore rotated = newStore (height, width);
+
+        int bands = (height + ROTATE_ROWS - 1) / ROTATE_ROWS;
+        ParallelExecutor.forEachRowBand (width * ROTATE_ROWS, bands, (bandStart, bandEnd) -> {
+            int[] rows = new int[ROTATE_ROWS * width];
+            int[] run = new int[ROTATE_ROWS];
+            IntBuffer out = rotated.view();
+
+            for (int band = bandStart; band < bandEnd; band++)
+            {
+                int y0 = band * ROTATE_ROWS;
+                int count = Math.min (ROTATE_ROWS, height - y0);
+                getRows (y0, y0 + count, rows);
+
+                for (int x = 0; x < width; x++)
+                {
+                    // Clockwise, old pixel (x, y) moves to (height - 1 - y, x), so the
+                    // band lands backwards in new row x; counter-clockwise it moves to
+                    // (y, width - 1 - x) and lands in order
+                    for (int i = 0; i < count; i++)
+                    {
+                        run[clockwise ? count - 1 - i : i] = rows[i * width + x];
+                    }
+                    int newRow = clockwise ? x : width - 1 - x;
+                    int newColumn = clockwise ? height - y0 - count : y0;
+                    out.position (newRow * height + newColumn);
+                    out.put (run, 0, count);
+                }
+            }
+        });
+        return rotated;
+    }
+
+    /**
+     * Returns an empty store of the given size, kept the same way as this one
+     */
+    private PixelStore newStore (int newWidth, int newHeight) throws IOException
+    {
+        return isMapped() ? map (newWidth, newHeight, file.getParentFile()) : allocate (newWidth, newHeight);
+    }
+
+    /**
+     * Lets go of the pixels. The memory, and the scratch file of a mapped
+     * store, are handed back once the garbage collector finds the buffer
+     * unused, so the store mustn't be used after this.
+     */
+    public void close ()
+    {
+        pixels = null;
+    }
+
+    /**
+     * Deletes a scratch file once its mapping is gone. It mustn't hold on to
+     * the store or the buffer, or they could never be collected.
+     */
+    private static class Delete implements Runnable
+    {
+        private final File file;
+
+        Delete (File file)
+        {
+            this.file = file;
+        }
+
+        public void run ()
+        {
+            // If the mapping still holds it, the file is left for the hook at the end
+            if (file.delete() || !file.exists()) SCRATCH_FILES.remove (file);
+        }
+    }
+}
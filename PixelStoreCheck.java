@@ -0,0 +1,162 @@
+/**
+ * Checks that filters made straight on a PixelStore give the same pixels as
+ * making them on a BufferedImage, that closed stores leave no scratch files
+ * behind, and that undo copies spilled to disk come back the same.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot:
+ * <pre>java PixelStoreCheck</pre>
+ * The picture is a little over a million pixels, so the banded filters run on
+ * more than one band. Every change is made to a store in memory and to one
+ * mapped to a scratch file in an empty folder, which has to be empty again
+ * once the stores are closed and collected. Then copies of the picture with
+ * different changes are saved in an UndoHistory that may only keep a few of
+ * them in the heap, and each one must be restored exactly, before and after
+ * most of them are thrown away. The check exits with 1 if anything is wrong.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class PixelStoreCheck
+{
+    private static final int WIDTH = 1031, HEIGHT = 1029;
+    private static final List<EditOp> OPS = Arrays.asList (EditOps.GREYSCALE, EditOps.SEPIA, EditOps.NEGATIVE,
+        EditOps.INVERT, EditOps.INVERT.inverse(), EditOps.DECREASE_OPACITY, EditOps.join (Arrays.asList (EditOps.REDIFY, EditOps.SEPIA)),
+        EditOps.pixalate (7), EditOps.FLIP_HORIZONTAL, EditOps.FLIP_VERTICAL, EditOps.ROTATE_180,
+        EditOps.ROTATE_CW_90, EditOps.ROTATE_CCW_90, EditOps.SHARPEN, EditOps.resize (300, 200));
+    // How long to keep asking the garbage collector to unmap the closed stores
+    private static final int CLEANUP_MILLIS = 10000;
+
+    private static boolean failed = false;
+
+    public static void main (String[] args) throws Exception
+    {
+        BufferedImage picture = randomImage (new Random (1));
+        File folder = Files.createTempDirectory ("storecheck").toFile();
+        checkOps (picture, folder);
+        checkScratchFiles (folder);
+        checkSpill (picture, folder);
+        if (failed)
+        {
+            System.out.println ("The pixel store or the spilled history is wrong");
+            System.exit (1);
+        }
+        System.out.println ("Every store filter matches and no scratch file is left");
+    }
+
+    private static void checkOps (BufferedImage picture, File folder) throws IOException
+    {
+        for (EditOp op : OPS)
+        {
+            BufferedImage expected = op.apply (copyOf (picture));
+            for (boolean mapped : new boolean[] {false, true})
+            {
+                PixelStore store = mapped ? PixelStore.map (WIDTH, HEIGHT, folder) : PixelStore.allocate (WIDTH, HEIGHT);
+                store.copyFrom (picture);
+                PixelStore changed = store.apply (op);
+                String where = op.getName() + (mapped ? " on a mapped store" : " on a direct store");
+                check (changed.isMapped() == mapped, where + " came back kept the other way");
+                check (same (expected, changed.toBufferedImage()), where + " doesn't match the image");
+                if (changed != store) changed.close();
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Waits for the garbage collector to unmap every closed store, which
+     * should delete all of their scratch files
+     */
+    private static void checkScratchFiles (File folder) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + CLEANUP_MILLIS;
+        while (folder.list().length > 0 && System.currentTimeMillis() < end)
+        {
+            System.gc();
+            Thread.sleep (50);
+        }
+        check (folder.list().length == 0, folder.list().length + " scratch files were left after closing");
+    }
+
+    /**
+     * Saves copies in a history that keeps almost nothing in the heap, and
+     * restores each of them
+     */
+    private static void checkSpill (BufferedImage picture, File folder)
+    {
+        UndoHistory history = new UndoHistory (1L << 30, 1L << 20, folder);
+        BufferedImage[] copies = new BufferedImage[OPS.size()];
+        for (int i = 0; i < copies.length; i++)
+        {
+            copies[i] = OPS.get (i).apply (copyOf (picture));
+            history.put (i, copies[i]);
+        }
+        check (history.getHeapBytes() <= 1L << 20, history.getHeapBytes() + " bytes stayed in the heap");
+        check (history.getHeapBytes() < history.getBytes(), "nothing was spilled");
+        check (folder.list().length == 1, "the history spilled to " + folder.list().length + " files");
+
+        for (int i = copies.length - 1; i >= 0; i--) checkRestore (history, i, copies[i]);
+        // Throwing most copies away leaves the file mostly dead, and spilling more can move the rest
+        for (int i = 2; i < copies.length; i++) history.remove (i);
+        for (int i = 0; i < 8; i++) history.put ("extra " + i, randomImage (new Random (i)));
+        checkRestore (history, 0, copies[0]);
+        checkRestore (history, 1, copies[1]);
+
+        history.clear();
+        check (folder.list().length <= 1, "clearing the history left " + folder.list().length + " files");
+    }
+
+    private static void checkRestore (UndoHistory history, Object key, BufferedImage expected)
+    {
+        BufferedImage restored = new BufferedImage (expected.getWidth(), expected.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        check (history.restore (key, restored) && same (expected, restored), "copy " + key + " didn't come back the same");
+    }
+
+    private static void check (boolean ok, String message)
+    {
+        if (ok) return;
+        System.out.println ("FAILED, " + message);
+        failed = true;
+    }
+
+    private static boolean same (BufferedImage a, BufferedImage b)
+    {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) return false;
+        return Arrays.equals (PixelEngine.getPixels (a, null), PixelEngine.getPixels (b, null));
+    }
+
+    private static BufferedImage copyOf (BufferedImage bi)
+    {
+        BufferedImage copy = new BufferedImage (bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        PixelEngine.copy (bi, copy);
+        return copy;
+    }
+
+    /**
+     * Returns a picture of smooth colours with random noise, so its tiles
+     * compress a little but not to nothing, and some see-through pixels
+     */
+    private static BufferedImage randomImage (Random random)
+    {
+        BufferedImage bi = new BufferedImage (WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        int[] data = PixelEngine.getData (bi);
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++)
+            {
+                int alpha = (x + y) % 11 == 0 ? random.nextInt (256) : 255;
+                int noise = random.nextInt (16);
+                data[y * WIDTH + x] = alpha << 24 | (x / 5 + noise & 0xFF) << 16 | (y / 5 + noise & 0xFF) << 8 | (x + y + noise & 0xFF);
+            }
+        }
+        return bi;
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Times every public Processor filter on images of different sizes and types,
+ * with different numbers of threads, so a change can be checked for whether it
+ * made things faster or slower.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot or a display:
+ * <pre>
+ * java -Xmx3g ProcessorBenchmark [options]
+ *
+ *   --ops a,b,...        filters to time (default: all of them)
+ *   --sizes 0.3,1,12,50  image sizes in megapixels (default: 0.3,1,12,50)
+ *   --types argb,rgb,bgr image types: TYPE_INT_ARGB, TYPE_INT_RGB, TYPE_3BYTE_BGR (default: all)
+ *   --threads 1,8        thread counts to try (default: 1 and one per core)
+ *   --time ms            how long to measure each case (default: 1000)
+ *   --csv                print comma separated values instead of a table
+ *   --scalar             don't use the VectorPixelOps versions of the colour filters
+ * </pre>
+ * Each case is warmed up for half its measuring time, then run over and over.
+ * Most filters change the image they are given, so before every run the image
+ * gets its random pixels back from an untouched copy, outside the timed part.
+ * Otherwise greyscale and sepia, for example, would be timed on their own grey
+ * or sepia output after the first run instead of on random colours.
+ * The table shows the median and fastest time of one run, the megapixels per
+ * second from the median, and how many bytes one run allocated along with the
+ * rate that adds up to. Allocation is added up over every live thread, so the
+ * worker threads are counted too, but threads that end in between aren't. The
+ * 50 megapixel images need about 3 GB of heap.
+ * <p>
+ * The colour filters only use VectorPixelOps on TYPE_INT_ARGB images when Java
+ * is started with --add-modules jdk.incubator.vector, so run it with and
+ * without that, or with --scalar, to compare.
+ * <p>
+ * rotateCw90 and rotateCcw90 are timed into a TYPE_INT_ARGB image made ahead of
+ * time. The filters that make a GreenfootImage need the Greenfoot classes and
+ * a display, so they are skipped when those aren't there.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+public class ProcessorBenchmark
+{
+    private static final Map<String, Integer> TYPES = new LinkedHashMap<>();
+    static
+    {
+        TYPES.put ("argb", BufferedImage.TYPE_INT_ARGB);
+        TYPES.put ("rgb", BufferedImage.TYPE_INT_RGB);
+        TYPES.put ("bgr", BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    private static final String[] ALL_OPS = {"blueify", "redify", "invert", "tglNegative", "greyscale", "sepia",
+        "pixalate", "shrink", "enlarge", "blur", "sharpen", "unsharpMask", "findEdges", "histogram", "autoLevels", "equalize", "resize", "thumbnail", "rotate", "flipHorizontal", "flipVertical", "rotate180", "rotateCw90", "rotateCcw90",
+        "increaseOpacity", "decreaseOpacity", "addToList", "addToHistory", "createGreenfootImageFromBI",
+        "rotateCw90Greenfoot"};
+
+    /**
+     * One filter set up on one image, ready to be run many times
+     */
+    private interface Case
+    {
+        void run ();
+    }
+
+    public static void main (String[] args)
+    {
+        System.setProperty ("java.awt.headless", "true");
+
+        List<String> ops = Arrays.asList (ALL_OPS);
+        double[] sizes = {0.3, 1, 12, 50};
+        List<String> types = new ArrayList<>(TYPES.keySet());
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threads = cores > 1 ? new int[] {1, cores} : new int[] {1};
+        long time = 1000;
+        boolean csv = false;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--ops": ops = Arrays.asList (args[++i].split (",")); break;
+                case "--sizes": sizes = Arrays.stream (args[++i].split (",")).mapToDouble (Double::parseDouble).toArray(); break;
+                case "--types": types = Arrays.asList (args[++i].toLowerCase (Locale.ROOT).split (",")); break;
+                case "--threads": threads = Arrays.stream (args[++i].split (",")).mapToInt (Integer::parseInt).toArray(); break;
+                case "--time": time = Long.parseLong (args[++i]); break;
+                case "--csv": csv = true; break;
+                case "--scalar": VectorPixelOps.setEnabled (false); break;
+                default:
+                    System.err.println ("unknown option: " + args[i]);
+                    System.exit (2);
+            }
+        }
+        for (String type : types)
+        {
+            if (!TYPES.containsKey (type)) throw new IllegalArgumentException ("unknown image type: " + type);
+        }
+
+        if (csv) System.out.println ("op,megapixels,type,threads,median_ms,best_ms,mp_per_s,bytes_per_op,mb_per_s");
+        else System.out.printf ("%-27s %7s %5s %7s %10s %10s %9s %13s %10s%n",
+            "op", "MP", "type", "threads", "median ms", "best ms", "MP/s", "bytes/op", "alloc MB/s");
+
+        int oldThreads = ParallelExecutor.getParallelism();
+        for (double megapixels : sizes)
+        {
+            // Keeping roughly the 4:3 shape of a photo
+            int width = (int)Math.round (Math.sqrt (megapixels * 1e6 * 4 / 3));
+            int height = (int)Math.round (megapixels * 1e6 / width);
+
+            for (String type : types)
+            {
+                BufferedImage pristine = randomImage (width, height, TYPES.get (type));
+                BufferedImage bi = new BufferedImage (width, height, pristine.getType());
+                Runnable reset = () -> copyPixels (pristine, bi);
+                for (String op : ops)
+                {
+                    Case c;
+                    try
+                    {
+                        reset.run();
+                        c = setUp (op, bi);
+                        c.run();
+                    }
+                    catch (NoClassDefFoundError | java.awt.HeadlessException e)
+                    {
+                        System.out.println (op + ": skipped, it needs Greenfoot and a display (" + e + ")");
+                        continue;
+                    }
+
+                    for (int t : threads)
+                    {
+                        ParallelExecutor.setParallelism (t);
+                        report (op, megapixels, type, t, measure (c, reset, time), (double)width * height, csv);
+                    }
+                }
+            }
+        }
+        ParallelExecutor.setParallelism (oldThreads);
+    }
+
+    /**
+     * Gets a filter ready to run on the image
+     */
+    private static Case setUp (String op, BufferedImage bi)
+    {
+        switch (op)
+        {
+            case "blueify": return () -> Processor.blueify (bi);
+            case "redify": return () -> Processor.redify (bi);
+            case "invert": return () -> Processor.invert (bi);
+            case "tglNegative": return () -> Processor.tglNegative (bi);
+            case "greyscale": return () -> Processor.greyscale (bi);
+            case "sepia": return () -> Processor.sepia (bi);
+            case "pixalate": return () -> Processor.pixalate (bi, 8);
+            case "shrink": return () -> Processor.shrink (bi, 4);
+            case "blur": return () -> Processor.blur (bi, 8);
+            case "sharpen": return () -> Processor.sharpen (bi);
+            case "unsharpMask": return () -> Processor.unsharpMask (bi, 2, 1, 0);
+            case "findEdges": return () -> Processor.findEdges (bi);
+            case "histogram": return () -> Histogram.of (bi);
+            case "autoLevels": return () -> Processor.autoLevels (bi);
+            case "equalize": return () -> Processor.equalize (bi);
+            case "resize": return () -> Processor.resize (bi, bi.getWidth() * 2 / 3, bi.getHeight() * 2 / 3);
+            case "thumbnail": return () -> Processor.resize (bi, Math.max (1, bi.getWidth() / 16), Math.max (1, bi.getHeight() / 16));
+            case "rotate": return () -> Processor.rotate (bi, 7);
+            case "flipHorizontal": return () -> Processor.flipHorizontal (bi);
+            case "flipVertical": return () -> Processor.flipVertical (bi);
+            case "rotate180": return () -> Processor.rotate180 (bi);
+            case "increaseOpacity": return () -> Processor.increaseOpacity (bi);
+            case "decreaseOpacity": return () -> Processor.decreaseOpacity (bi);
+            case "enlarge":
+            {
+                BufferedImage small = Processor.shrink (bi, 4);
+                return () -> Processor.enlarge (small, 4, bi);
+            }
+            case "rotateCw90":
+            {
+                BufferedImage newBi = new BufferedImage (bi.getHeight(), bi.getWidth(), BufferedImage.TYPE_INT_ARGB);
+                return () -> Processor.rotateCw90 (bi, newBi);
+            }
+            case "rotateCcw90":
+            {
+                BufferedImage newBi = new BufferedImage (bi.getHeight(), bi.getWidth(), BufferedImage.TYPE_INT_ARGB);
+                return () -> Processor.rotateCcw90 (bi, newBi);
+            }
+            case "addToList":
+            {
+                ArrayList<BufferedImage> list = new ArrayList<>();
+                return () -> {
+                    Processor.addToList (list, bi);
+                    list.clear();
+                };
+            }
+            case "addToHistory":
+            {
+                // Saving two different images in turn, so every tile has changed and
+                // is compressed, while the tiny budget keeps only the newest copy
+                BufferedImage other = randomImage (bi.getWidth(), bi.getHeight(), bi.getType());
+                UndoHistory history = new UndoHistory (1);
+                boolean[] flip = new boolean[1];
+                return () -> {
+                    flip[0] = !flip[0];
+                    history.put (flip[0], flip[0] ? bi : other);
+                };
+            }
+            case "createGreenfootImageFromBI": return () -> Processor.createGreenfootImageFromBI (bi);
+            case "rotateCw90Greenfoot": return () -> Processor.rotateCw90 (bi);
+            default: throw new IllegalArgumentException ("unknown filter: " + op);
+        }
+    }
+
+    /**
+     * Runs the case over and over, with reset before each run, returning the
+     * time in milliseconds of every run followed by the bytes allocated over
+     * all of them. reset isn't timed and mustn't allocate.
+     */
+    private static double[] measure (Case c, Runnable reset, long millis)
+    {
+        long warmEnd = System.nanoTime() + millis * 500_000;
+        while (System.nanoTime() < warmEnd)
+        {
+            reset.run();
+            c.run();
+        }
+
+        ArrayList<Double> times = new ArrayList<>();
+        long before = allocatedBytes();
+        long end = System.nanoTime() + millis * 1_000_000;
+        // At least three runs, however slow they are
+        while (times.size() < 3 || System.nanoTime() < end)
+        {
+            reset.run();
+            long start = System.nanoTime();
+            c.run();
+            times.add ((System.nanoTime() - start) / 1e6);
+        }
+        long allocated = before < 0 ? -1 : allocatedBytes() - before;
+
+        double[] result = new double[times.size() + 1];
+        for (int i = 0; i < times.size(); i++) result[i] = times.get (i);
+        result[times.size()] = allocated;
+        return result;
+    }
+
+    private static void report (String op, double megapixels, String type, int threads, double[] result, double pixels, boolean csv)
+    {
+        int runs = result.length - 1;
+        double[] times = Arrays.copyOf (result, runs);
+        Arrays.sort (times);
+        double median = times[runs / 2], best = times[0];
+        double total = Arrays.stream (times).sum();
+        double bytesPerOp = result[runs] < 0 ? Double.NaN : result[runs] / runs;
+        double mbPerSecond = bytesPerOp / 1e6 / (total / runs / 1000);
+        double mpPerSecond = pixels / 1e6 / (median / 1000);
+
+        if (csv) System.out.printf (Locale.ROOT, "%s,%.1f,%s,%d,%.3f,%.3f,%.1f,%.0f,%.1f%n",
+            op, megapixels, type, threads, median, best, mpPerSecond, bytesPerOp, mbPerSecond);
+        else System.out.printf ("%-27s %7.1f %5s %7d %10.3f %10.3f %9.1f %13.0f %10.1f%n",
+            op, megapixels, type, threads, median, best, mpPerSecond, bytesPerOp, mbPerSecond);
+    }
+
+    /**
+     * Returns the bytes allocated so far by every live thread, or -1 if this
+     * Java can't tell
+     */
+    private static long allocatedBytes ()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes (threads.getAllThreadIds()))
+        {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Copies the pixels of one image into another of the same size and type,
+     * straight between their arrays so nothing is allocated
+     */
+    private static void copyPixels (BufferedImage from, BufferedImage to)
+    {
+        DataBuffer source = from.getRaster().getDataBuffer();
+        DataBuffer target = to.getRaster().getDataBuffer();
+        if (source instanceof DataBufferInt)
+        {
+            System.arraycopy (((DataBufferInt)source).getData(), 0, ((DataBufferInt)target).getData(), 0, source.getSize());
+        }
+        else
+        {
+            System.arraycopy (((DataBufferByte)source).getData(), 0, ((DataBufferByte)target).getData(), 0, source.getSize());
+        }
+    }
+
+    private static BufferedImage randomImage (int width, int height, int type)
+    {
+        BufferedImage argb = new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] data = PixelEngine.getData (argb);
+        Random random = new Random (42);
+        for (int i = 0; i < data.length; i++) data[i] = random.nextInt();
+        if (type == BufferedImage.TYPE_INT_ARGB) return argb;
+
+        BufferedImage bi = new BufferedImage (width, height, type);
+        PixelEngine.setPixels (bi, data);
+        return bi;
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Checks that the part of a finished image the FilterRunner says has changed
+ * really is only the pixels that changed, and that copying just that part
+ * onto the screen gives the same picture as copying all of it.
+ * <p>
+ * This runs on its own from the command line, with the Greenfoot classes on
+ * the class path but no display, since previews are turned off:
+ * <pre>java RegionCheck</pre>
+ * The picture is the same mirrored left to right apart from a small patch, so
+ * flipping it only changes the patch and where the patch ends up. The runner
+ * has to report exactly that part, and nothing at all once the patch is
+ * covered up so the picture is fully symmetric. Every finished image is copied
+ * onto a screen by its changed part only, and the screen must match it each
+ * time, while a copy onto a blank screen must leave everything outside the
+ * part alone. PixelEngine.findChanged() is also checked against looking at
+ * every pixel on random images of each type. The check exits with 1 if
+ * anything is wrong.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+public class RegionCheck
+{
+    private static final int WIDTH = 640, HEIGHT = 480;
+    private static final Rectangle PATCH = new Rectangle (40, 100, 30, 20);
+    private static final int BLANK = 0x12345678;
+
+    private static boolean failed = false;
+
+    public static void main (String[] args)
+    {
+        checkRunner();
+        checkFindChanged();
+        if (failed)
+        {
+            System.out.println ("The changed part isn't right");
+            System.exit (1);
+        }
+        System.out.println ("Only the changed part is reported and copied");
+    }
+
+    /**
+     * Runs flips and undos through a FilterRunner and checks each changed part
+     */
+    private static void checkRunner ()
+    {
+        BufferedImage picture = symmetric();
+        for (int y = PATCH.y; y < PATCH.y + PATCH.height; y++)
+        {
+            for (int x = PATCH.x; x < PATCH.x + PATCH.width; x++) picture.setRGB (x, y, 0xFF00FF00);
+        }
+        // The patch and where a flip puts it
+        Rectangle flipped = new Rectangle (WIDTH - PATCH.x - PATCH.width, PATCH.y, PATCH.width, PATCH.height);
+        Rectangle both = PATCH.union (flipped);
+
+        FilterRunner runner = new FilterRunner (new EditGraph (picture, 1L << 28, 4));
+        BufferedImage screen = copyOf (picture);
+
+        runner.apply (EditOps.FLIP_HORIZONTAL);
+        expect ("flip", takeAndShow (runner, screen), both);
+        runner.undo();
+        expect ("undo the flip", takeAndShow (runner, screen), both);
+        runner.redo();
+        expect ("redo the flip", takeAndShow (runner, screen), both);
+
+        // Pixalate blocks of 640 cover the patch, and every block is symmetric after that
+        runner.apply (EditOps.pixalate (WIDTH));
+        takeAndShow (runner, screen);
+        runner.apply (EditOps.FLIP_HORIZONTAL);
+        expect ("flip a symmetric picture", takeAndShow (runner, screen), new Rectangle());
+        runner.apply (EditOps.ROTATE_180);
+        runner.apply (EditOps.FLIP_VERTICAL);
+        expect ("rotate and flip back to the same picture", takeAndShow (runner, screen), new Rectangle());
+    }
+
+    /**
+     * Waits for the runner, copies only the changed part of the finished image
+     * onto the screen, and checks the screen now matches it
+     */
+    private static Rectangle takeAndShow (FilterRunner runner, BufferedImage screen)
+    {
+        runner.waitUntilIdle();
+        FilterRunner.Result result = runner.takeFinished();
+        if (result == null)
+        {
+            report ("nothing was handed over");
+            return null;
+        }
+        BufferedImage image = result.getImage();
+        Rectangle changed = result.getChangedRegion();
+        if (changed == null)
+        {
+            report ("the whole image was reported as changed");
+            return null;
+        }
+
+        BufferedImage blank = new BufferedImage (WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++) blank.setRGB (x, y, BLANK);
+        }
+        PixelEngine.copy (image, blank, changed);
+        PixelEngine.copy (image, screen, changed);
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++)
+            {
+                int expected = changed.contains (x, y) ? image.getRGB (x, y) : BLANK;
+                if (blank.getRGB (x, y) != expected)
+                {
+                    report ("copying " + changed + " changed pixel " + x + "," + y + " outside it");
+                    return changed;
+                }
+                if (screen.getRGB (x, y) != image.getRGB (x, y))
+                {
+                    report ("the screen is wrong at " + x + "," + y + " after copying only " + changed);
+                    return changed;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Checks findChanged() against every pixel on random images with a few
+     * random pixels changed, for every kind of image
+     */
+    private static void checkFindChanged ()
+    {
+        int[] types = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR};
+        Random random = new Random (25);
+        for (int type : types)
+        {
+            for (int trial = 0; trial < 200; trial++)
+            {
+                int width = 1 + random.nextInt (90), height = 1 + random.nextInt (60);
+                BufferedImage a = new BufferedImage (width, height, type);
+                for (int y = 0; y < height; y++)
+                {
+                    for (int x = 0; x < width; x++) a.setRGB (x, y, random.nextInt());
+                }
+                BufferedImage b = copyOf (a, type);
+                for (int i = random.nextInt (4); i > 0; i--)
+                {
+                    int x = random.nextInt (width), y = random.nextInt (height);
+                    b.setRGB (x, y, ~a.getRGB (x, y));
+                }
+                Rectangle region = new Rectangle (random.nextInt (width), random.nextInt (height), width, height);
+                if (random.nextBoolean()) region = new Rectangle (0, 0, width, height);
+
+                Rectangle expected = null;
+                for (int y = 0; y < height; y++)
+                {
+                    for (int x = 0; x < width; x++)
+                    {
+                        if (region.contains (x, y) && a.getRGB (x, y) != b.getRGB (x, y))
+                        {
+                            Rectangle pixel = new Rectangle (x, y, 1, 1);
+                            expected = expected == null ? pixel : expected.union (pixel);
+                        }
+                    }
+                }
+                expect ("findChanged on type " + type, PixelEngine.findChanged (a, b, region),
+                        expected == null ? new Rectangle() : expected);
+            }
+        }
+    }
+
+    /**
+     * Returns a picture that is the same mirrored left to right
+     */
+    private static BufferedImage symmetric ()
+    {
+        BufferedImage bi = new BufferedImage (WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random (17);
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH / 2; x++)
+            {
+                int argb = random.nextInt();
+                bi.setRGB (x, y, argb);
+                bi.setRGB (WIDTH - 1 - x, y, argb);
+            }
+        }
+        return bi;
+    }
+
+    private static void expect (String what, Rectangle actual, Rectangle expected)
+    {
+        if (actual == null) return;
+        boolean same = actual.isEmpty() ? expected.isEmpty() : actual.equals (expected);
+        if (!same) report (what + " reported " + actual + " instead of " + expected);
+    }
+
+    private static void report (String problem)
+    {
+        System.out.println (problem);
+        failed = true;
+    }
+
+    private static BufferedImage copyOf (BufferedImage bi)
+    {
+        return copyOf (bi, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private static BufferedImage copyOf (BufferedImage bi, int type)
+    {
+        BufferedImage copy = new BufferedImage (bi.getWidth(), bi.getHeight(), type);
+        PixelEngine.copy (bi, copy);
+        return copy;
+    }
+}
@@ -0,0 +1,493 @@
+/**
+ * Resizes and rotates images by any amount, working out each new pixel from
+ * the pixels around where it lands in the old image.
+ * <p>
+ * The Filter decides how much each of those pixels counts: nearest just takes
+ * the closest one, bilinear blends the closest 2 by 2, bicubic 4 by 4 and
+ * Lanczos 6 by 6, which keeps the picture sharpest. The weights only depend
+ * on where a new column or row lands, so a resize works them out once for
+ * every column and every row in a table, and then runs one pass along the
+ * rows and one down the columns. When shrinking, the filter is widened so
+ * every old pixel counts towards some new pixel, instead of being skipped.
+ * <p>
+ * Shrinking a lot means a very wide filter, so big shrinks first halve the
+ * image by averaging 2x2 blocks until it is less than four times the size
+ * asked for, which is much quicker and looks the same. The blocks are averaged
+ * premultiplied too, so see-through pixels don't tint the edges next to them.
+ * <p>
+ * A rotation can't be split into rows and columns, so it looks up the
+ * weights in a table of 256 positions between two pixels instead. The new
+ * image is just big enough to hold the whole rotated picture, and the corners
+ * around it are see-through.
+ * <p>
+ * Colours are mixed premultiplied by their alpha like Convolution does, and
+ * every new pixel is worked out with whole numbers from its own position
+ * only, so the result is the same every time, whichever threads run it.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+public class Resampler
+{
+    /**
+     * How the pixels around a new pixel are mixed together
+     */
+    public enum Filter
+    {
+        NEAREST (0.5),
+        BILINEAR (1),
+        BICUBIC (2),
+        LANCZOS (3);
+
+        // How far from a new pixel, in old pixels, the filter reaches
+        private final double support;
+        // The weights of the pixels around a point at each of the positions between two pixels
+        private int[][] phases;
+
+        Filter (double support)
+        {
+            this.support = support;
+        }
+
+        /**
+         * Returns how much an old pixel distance x away from a new pixel counts
+         */
+        public double weight (double x)
+        {
+            x = Math.abs (x);
+            switch (this)
+            {
+                case NEAREST:
+                    return x < 0.5 ? 1 : 0;
+                case BILINEAR:
+                    return x < 1 ? 1 - x : 0;
+                case BICUBIC:
+                    // Catmull-Rom, which goes through every old pixel exactly
+                    if (x < 1) return (1.5 * x - 2.5) * x * x + 1;
+                    if (x < 2) return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                    return 0;
+                default:
+                    if (x == 0) return 1;
+                    if (x >= 3) return 0;
+                    double px = Math.PI * x;
+                    return 3 * Math.sin (px) * Math.sin (px / 3) / (px * px);
+            }
+        }
+
+        /**
+         * Returns how many old pixels on each side of a point a rotation reads
+         */
+        int getReach ()
+        {
+            return (int)Math.ceil (support);
+        }
+
+        /**
+         * Returns the weights of the 2 * getReach() pixels around a point that is
+         * phase / PHASES of the way from one pixel to the next, for every phase
+         */
+        synchronized int[][] getPhases ()
+        {
+            if (phases == null)
+            {
+                int reach = getReach();
+                phases = new int[PHASES][];
+                double[] weights = new double[2 * reach];
+                for (int phase = 0; phase < PHASES; phase++)
+                {
+                    double fraction = phase / (double)PHASES;
+                    for (int t = 0; t < weights.length; t++)
+                    {
+                        weights[t] = weight (fraction + reach - 1 - t);
+                    }
+                    phases[phase] = toFixed (weights, weights.length);
+                }
+            }
+            return phases;
+        }
+    }
+
+    // Weights are whole numbers out of ONE, so they always add up to exactly 1
+    private static final int WEIGHT_BITS = 14;
+    private static final int ONE = 1 << WEIGHT_BITS;
+
+    // How many positions between two pixels a rotation tells apart
+    private static final int PHASES = 256;
+
+    /**
+     * Returns a new TYPE_INT_ARGB image of the given size with the picture stretched to fit it
+     */
+    public static BufferedImage resize (BufferedImage bi, int width, int height, Filter filter)
+    {
+        if (width < 1 || height < 1) throw new IllegalArgumentException ("size must be at least 1x1: " + width + "x" + height);
+        if (filter == Filter.NEAREST) return resizeNearest (bi, width, height);
+
+        // Halving is a plain average of 2x2 blocks, much cheaper than a wide filter
+        BufferedImage src = bi;
+        while (src.getWidth() >= 4 * width && src.getHeight() >= 4 * height)
+        {
+            src = halve (src);
+        }
+
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int[] pixels = PixelEngine.getPixels (src, null);
+        boolean opaque = isOpaque (pixels);
+        Weights across = new Weights (srcWidth, width, filter);
+        Weights down = new Weights (srcHeight, height, filter);
+
+        BufferedImage newBi = new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] out = PixelEngine.getData (newBi);
+        ParallelExecutor.forEachRowBand (width, height, 4 * down.taps, (yStart, yEnd) -> {
+            // The old rows this band reads, run along the rows first
+            int first = down.starts[yStart];
+            int last = down.starts[yEnd - 1] + down.counts[yEnd - 1];
+            int rows = last - first;
+            int[] alpha = opaque ? null : new int[rows * width];
+            int[] red = new int[rows * width], green = new int[rows * width], blue = new int[rows * width];
+            for (int j = 0; j < rows; j++)
+            {
+                int rowStart = (first + j) * srcWidth;
+                int to = j * width;
+                for (int x = 0; x < width; x++)
+                {
+                    long a = 0, r = 0, g = 0, b = 0;
+                    int start = rowStart + across.starts[x];
+                    int w = x * across.taps;
+                    for (int k = 0; k < across.counts[x]; k++)
+                    {
+                        int rgb = pixels[start + k];
+                        long weight = across.weights[w + k];
+                        int pixelAlpha = opaque ? 255 : rgb >>> 24;
+                        a += weight * pixelAlpha;
+                        r += weight * (((rgb >> 16) & 255) * pixelAlpha);
+                        g += weight * (((rgb >> 8) & 255) * pixelAlpha);
+                        b += weight * ((rgb & 255) * pixelAlpha);
+                    }
+                    if (!opaque) alpha[to + x] = (int)round (a * 255);
+                    red[to + x] = (int)round (r);
+                    green[to + x] = (int)round (g);
+                    blue[to + x] = (int)round (b);
+                }
+            }
+
+            // Then down the columns, adding each old row's share to a whole new row at once
+            long[] a = new long[width], r = new long[width], g = new long[width], b = new long[width];
+            for (int y = yStart; y < yEnd; y++)
+            {
+                Arrays.fill (a, 0);
+                Arrays.fill (r, 0);
+                Arrays.fill (g, 0);
+                Arrays.fill (b, 0);
+                int w = y * down.taps;
+                for (int k = 0; k < down.counts[y]; k++)
+                {
+                    long weight = down.weights[w + k];
+                    int from = (down.starts[y] - first + k) * width;
+                    for (int x = 0; x < width; x++)
+                    {
+                        if (!opaque) a[x] += weight * alpha[from + x];
+                        r[x] += weight * red[from + x];
+                        g[x] += weight * green[from + x];
+                        b[x] += weight * blue[from + x];
+                    }
+                }
+                int to = PixelEngine.getOffset (newBi, 0, y);
+                for (int x = 0; x < width; x++)
+                {
+                    out[to + x] = unpremultiply (opaque ? 255 * 255 : round (a[x]), round (r[x]), round (g[x]), round (b[x]));
+                }
+            }
+        });
+        return newBi;
+    }
+
+    /**
+     * Returns a new TYPE_INT_ARGB image half the size, each pixel the average
+     * of a 2x2 block premultiplied by alpha. An odd last row or column makes
+     * blocks of one or two pixels.
+     */
+    private static BufferedImage halve (BufferedImage bi)
+    {
+        int xSize = bi.getWidth();
+        int ySize = bi.getHeight();
+        int newX = (xSize + 1) / 2;
+        int newY = (ySize + 1) / 2;
+        int[] pixels = PixelEngine.getPixels (bi, null);
+        BufferedImage half = new BufferedImage (newX, newY, BufferedImage.TYPE_INT_ARGB);
+        int[] out = PixelEngine.getData (half);
+        ParallelExecutor.forEachRowBand (2 * xSize, newY, (yStart, yEnd) -> {
+            for (int y = yStart; y < yEnd; y++)
+            {
+                int to = PixelEngine.getOffset (half, 0, y);
+                int yEnd2 = Math.min (2 * y + 2, ySize);
+                for (int x = 0; x < newX; x++)
+                {
+                    int xEnd2 = Math.min (2 * x + 2, xSize);
+                    long a = 0, r = 0, g = 0, b = 0;
+                    for (int y2 = 2 * y; y2 < yEnd2; y2++)
+                    {
+                        for (int x2 = 2 * x; x2 < xEnd2; x2++)
+                        {
+                            int rgb = pixels[y2 * xSize + x2];
+                            int alpha = rgb >>> 24;
+                            a += alpha;
+                            r += ((rgb >> 16) & 255) * alpha;
+                            g += ((rgb >> 8) & 255) * alpha;
+                            b += (rgb & 255) * alpha;
+                        }
+                    }
+                    if (a == 0)
+                    {
+                        out[to + x] = 0;
+                        continue;
+                    }
+                    // The colours are divided by the alpha they were multiplied by, rounding to the closest
+                    int count = (yEnd2 - 2 * y) * (xEnd2 - 2 * x);
+                    out[to + x] = (int)((a + count / 2) / count) << 24 | (int)((r + a / 2) / a) << 16
+                        | (int)((g + a / 2) / a) << 8 | (int)((b + a / 2) / a);
+                }
+            }
+        });
+        return half;
+    }
+
+    /**
+     * Returns a new TYPE_INT_ARGB image with the picture turned clockwise by
+     * the given number of degrees, just big enough to hold all of it
+     */
+    public static BufferedImage rotate (BufferedImage bi, double degrees, Filter filter)
+    {
+        // Whole quarter turns get exact sines, so nothing is blended
+        double turn = degrees % 360;
+        if (turn < 0) turn += 360;
+        double cos, sin;
+        if (turn == 0) { cos = 1; sin = 0; }
+        else if (turn == 90) { cos = 0; sin = 1; }
+        else if (turn == 180) { cos = -1; sin = 0; }
+        else if (turn == 270) { cos = 0; sin = -1; }
+        else
+        {
+            cos = Math.cos (Math.toRadians (turn));
+            sin = Math.sin (Math.toRadians (turn));
+        }
+
+        int srcWidth = bi.getWidth();
+        int srcHeight = bi.getHeight();
+        // Taking a hair off before rounding up, so rounding errors don't add a column
+        int width = Math.max (1, (int)Math.ceil (Math.abs (srcWidth * cos) + Math.abs (srcHeight * sin) - 1e-9));
+        int height = Math.max (1, (int)Math.ceil (Math.abs (srcWidth * sin) + Math.abs (srcHeight * cos) - 1e-9));
+        int[] pixels = PixelEngine.getPixels (bi, null);
+
+        BufferedImage newBi = new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] out = PixelEngine.getData (newBi);
+        int[][] phases = filter == Filter.NEAREST ? null : filter.getPhases();
+        int reach = filter.getReach();
+        ParallelExecutor.forEachRowBand (width, height, (yStart, yEnd) -> {
+            long[] rowSums = new long[4];
+            for (int y = yStart; y < yEnd; y++)
+            {
+                int to = PixelEngine.getOffset (newBi, 0, y);
+                double dy = y + 0.5 - height / 2.0;
+                for (int x = 0; x < width; x++)
+                {
+                    // Turning the middle of the new pixel back the other way finds where it came from
+                    double dx = x + 0.5 - width / 2.0;
+                    double sx = dx * cos + dy * sin + srcWidth / 2.0 - 0.5;
+                    double sy = -dx * sin + dy * cos + srcHeight / 2.0 - 0.5;
+                    if (filter == Filter.NEAREST)
+                    {
+                        int nx = (int)Math.floor (sx + 0.5), ny = (int)Math.floor (sy + 0.5);
+                        boolean inside = nx >= 0 && nx < srcWidth && ny >= 0 && ny < srcHeight;
+                        out[to + x] = inside ? pixels[ny * srcWidth + nx] : 0;
+                        continue;
+                    }
+                    out[to + x] = sample (pixels, srcWidth, srcHeight, sx, sy, phases, reach, rowSums);
+                }
+            }
+        });
+        return newBi;
+    }
+
+    /**
+     * Mixes the pixels around point (sx, sy) of the old image, counting the
+     * ones past its edges as see-through
+     */
+    private static int sample (int[] pixels, int width, int height, double sx, double sy, int[][] phases, int reach, long[] sums)
+    {
+        int x0 = (int)Math.floor (sx), y0 = (int)Math.floor (sy);
+        int phaseX = (int)((sx - x0) * PHASES + 0.5), phaseY = (int)((sy - y0) * PHASES + 0.5);
+        if (phaseX == PHASES) { x0++; phaseX = 0; }
+        if (phaseY == PHASES) { y0++; phaseY = 0; }
+        int left = x0 - reach + 1, top = y0 - reach + 1;
+        if (left >= width || top >= height || left + 2 * reach <= 0 || top + 2 * reach <= 0) return 0;
+
+        int[] weightsX = phases[phaseX], weightsY = phases[phaseY];
+        long a = 0, r = 0, g = 0, b = 0;
+        for (int j = 0; j < weightsY.length; j++)
+        {
+            int y = top + j;
+            if (y < 0 || y >= height || weightsY[j] == 0) continue;
+            long rowA = 0, rowR = 0, rowG = 0, rowB = 0;
+            for (int i = 0; i < weightsX.length; i++)
+            {
+                int x = left + i;
+                if (x < 0 || x >= width) continue;
+                int rgb = pixels[y * width + x];
+                int alpha = rgb >>> 24;
+                long weight = weightsX[i];
+                rowA += weight * alpha;
+                rowR += weight * (((rgb >> 16) & 255) * alpha);
+                rowG += weight * (((rgb >> 8) & 255) * alpha);
+                rowB += weight * ((rgb & 255) * alpha);
+            }
+            long weight = weightsY[j];
+            a += weight * rowA;
+            r += weight * rowR;
+            g += weight * rowG;
+            b += weight * rowB;
+        }
+        return unpremultiply (round (round (a * 255)), round (round (r)), round (round (g)), round (round (b)));
+    }
+
+    /**
+     * Picks the closest old pixel for every new one, without any mixing
+     */
+    private static BufferedImage resizeNearest (BufferedImage bi, int width, int height)
+    {
+        int srcWidth = bi.getWidth();
+        int srcHeight = bi.getHeight();
+        int[] pixels = PixelEngine.getPixels (bi, null);
+        int[] columns = new int[width];
+        for (int x = 0; x < width; x++)
+        {
+            columns[x] = (int)Math.min (srcWidth - 1, ((2L * x + 1) * srcWidth) / (2L * width));
+        }
+
+        BufferedImage newBi = new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] out = PixelEngine.getData (newBi);
+        ParallelExecutor.forEachRowBand (width, height, (yStart, yEnd) -> {
+            for (int y = yStart; y < yEnd; y++)
+            {
+                int from = (int)Math.min (srcHeight - 1, ((2L * y + 1) * srcHeight) / (2L * height)) * srcWidth;
+                int to = PixelEngine.getOffset (newBi, 0, y);
+                for (int x = 0; x < width; x++)
+                {
+                    out[to + x] = pixels[from + columns[x]];
+                }
+            }
+        });
+        return newBi;
+    }
+
+    /**
+     * Turns premultiplied channels, out of 255 * 255, back into a packed pixel
+     */
+    private static int unpremultiply (long a, long r, long g, long b)
+    {
+        if (a <= 0) return 0;
+        // Bicubic and Lanczos can overshoot past opaque, and the colours are still divided by the full amount
+        int alpha = (int)Math.min (255, (a + 127) / 255);
+        return alpha << 24 | channel (r, a) << 16 | channel (g, a) << 8 | channel (b, a);
+    }
+
+    private static int channel (long value, long alpha)
+    {
+        if (value <= 0) return 0;
+        long c = (value * 255 + alpha / 2) / alpha;
+        return c > 255 ? 255 : (int)c;
+    }
+
+    /**
+     * Divides by ONE, rounding to the closest whole number
+     */
+    private static long round (long value)
+    {
+        return (value + (ONE >> 1)) >> WEIGHT_BITS;
+    }
+
+    private static boolean isOpaque (int[] pixels)
+    {
+        for (int rgb : pixels)
+        {
+            if ((rgb >>> 24) != 255) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Turns weights into whole numbers out of ONE that add up to exactly ONE,
+     * giving the rounding left over to the biggest weight
+     */
+    private static int[] toFixed (double[] weights, int count)
+    {
+        double total = 0;
+        for (int i = 0; i < count; i++) total += weights[i];
+
+        int[] fixed = new int[count];
+        int sum = 0, biggest = 0;
+        for (int i = 0; i < count; i++)
+        {
+            fixed[i] = (int)Math.round (weights[i] / total * ONE);
+            sum += fixed[i];
+            if (weights[i] > weights[biggest]) biggest = i;
+        }
+        fixed[biggest] += ONE - sum;
+        return fixed;
+    }
+
+    /**
+     * The weights for one direction of a resize: for each new column (or
+     * row), the first old one it reads, how many it reads and their weights
+     */
+    private static class Weights
+    {
+        final int[] starts;
+        final int[] counts;
+        // taps weights for each new column, only the first counts[i] of which are used
+        final int[] weights;
+        final int taps;
+
+        Weights (int srcSize, int size, Filter filter)
+        {
+            double scale = (double)size / srcSize;
+            // Shrinking widens the filter, so it covers every old pixel under the new one
+            double stretch = Math.max (1, 1 / scale);
+            double support = filter.support * stretch;
+            taps = (int)Math.ceil (support) * 2 + 1;
+            starts = new int[size];
+            counts = new int[size];
+            weights = new int[size * taps];
+
+            double[] raw = new double[taps];
+            for (int i = 0; i < size; i++)
+            {
+                double centre = (i + 0.5) / scale;
+                // The filter stops at the edges of the image, and what is left is made to add up to 1
+                int first = Math.max (0, (int)Math.floor (centre - support));
+                int end = Math.min (srcSize, (int)Math.ceil (centre + support));
+                int count = Math.min (taps, end - first);
+                double total = 0;
+                for (int k = 0; k < count; k++)
+                {
+                    raw[k] = filter.weight ((first + k + 0.5 - centre) / stretch);
+                    total += raw[k];
+                }
+                if (total == 0)
+                {
+                    // Only when the filter falls between pixels, so the closest one is used
+                    first = Math.min (srcSize - 1, (int)centre);
+                    count = 1;
+                    raw[0] = 1;
+                }
+                starts[i] = first;
+                counts[i] = count;
+                System.arraycopy (toFixed (raw, count), 0, weights, i * taps, count);
+            }
+        }
+    }
+}
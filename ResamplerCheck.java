@@ -0,0 +1,91 @@
+/**
+ * Checks that shrinking an image a lot doesn't let the colour of see-through
+ * pixels leak into the edges of the picture next to them.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot:
+ * <pre>java ResamplerCheck</pre>
+ * The picture is a solid red disc on pixels that are fully see-through but
+ * green underneath, which is what a PNG with a cut out background often
+ * holds. It is shrunk by each amount in FACTORS with every filter. Colours are
+ * meant to be mixed premultiplied by their alpha, so the green counts for
+ * nothing and every pixel that isn't fully see-through must come out pure red,
+ * with only its alpha changing along the edge. The check exits with 1 if any
+ * pixel doesn't.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+
+public class ResamplerCheck
+{
+    private static final int SIZE = 1200;
+    // Big enough that resize() halves the image first, more than once for the larger ones
+    private static final int[] FACTORS = {2, 3, 4, 5, 8, 13, 16, 37};
+    private static final int RED = 0xFF0000, SEE_THROUGH_GREEN = 0x0000FF00;
+
+    public static void main (String[] args)
+    {
+        BufferedImage disc = disc();
+        boolean failed = false;
+        for (Resampler.Filter filter : Resampler.Filter.values())
+        {
+            for (int factor : FACTORS)
+            {
+                int width = SIZE / factor, height = SIZE / factor + 1;
+                BufferedImage small = Resampler.resize (disc, width, height, filter);
+                String wrong = findWrongPixel (small);
+                failed |= wrong != null;
+                System.out.printf ("%-9s 1/%-3d %s%n", filter, factor, wrong == null ? "ok" : "FAILED, " + wrong);
+            }
+        }
+        if (failed)
+        {
+            System.out.println ("See-through pixels leak into the edges of shrunk images");
+            System.exit (1);
+        }
+        System.out.println ("No see-through colour leaks into the edges");
+    }
+
+    /**
+     * Returns a red disc a little smaller than the image, with the corners
+     * see-through and its edge soft, on see-through green
+     */
+    private static BufferedImage disc ()
+    {
+        BufferedImage bi = new BufferedImage (SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        double centre = SIZE / 2.0, radius = SIZE * 0.4;
+        for (int y = 0; y < SIZE; y++)
+        {
+            for (int x = 0; x < SIZE; x++)
+            {
+                double distance = Math.hypot (x + 0.5 - centre, y + 0.5 - centre);
+                // A soft edge a few pixels wide, so there are translucent pixels too
+                int alpha = (int)Math.round (255 * Math.max (0, Math.min (1, (radius - distance) / 6)));
+                bi.setRGB (x, y, alpha == 0 ? SEE_THROUGH_GREEN : alpha << 24 | RED);
+            }
+        }
+        return bi;
+    }
+
+    /**
+     * Returns where the first pixel that isn't fully see-through or pure red
+     * is, or null if there isn't one
+     */
+    private static String findWrongPixel (BufferedImage bi)
+    {
+        for (int y = 0; y < bi.getHeight(); y++)
+        {
+            for (int x = 0; x < bi.getWidth(); x++)
+            {
+                int argb = bi.getRGB (x, y);
+                if ((argb >>> 24) != 0 && (argb & 0xFFFFFF) != RED)
+                {
+                    return String.format ("pixel %d,%d is %08x", x, y, argb);
+                }
+            }
+        }
+        return null;
+    }
+}
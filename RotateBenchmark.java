@@ -0,0 +1,98 @@
+/**
+ * Times the blocked 90 degree rotations in Processor against the simple
+ * column-by-column rotation they replaced, on 1, 12 and 50 megapixel images.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot:
+ * <pre>java -Xmx3g RotateBenchmark [blockSize] [threads]</pre>
+ * The 50 megapixel run needs about 1 GB of heap for its three images.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+public class RotateBenchmark
+{
+    private static final int[][] SIZES = {{1000, 1000}, {4000, 3000}, {8660, 5774}};
+    private static final int WARMUP = 3, MIN_RUNS = 5, MAX_RUNS = 201;
+    private static final long MIN_NANOS = 500_000_000L;
+
+    public static void main (String[] args)
+    {
+        if (args.length > 0) Processor.setRotateBlockSize (Integer.parseInt (args[0]));
+        if (args.length > 1) ParallelExecutor.setParallelism (Integer.parseInt (args[1]));
+        System.out.println ("block size " + Processor.getRotateBlockSize()
+            + ", threads " + ParallelExecutor.getParallelism());
+
+        for (int[] size : SIZES)
+        {
+            int xSize = size[0], ySize = size[1];
+            BufferedImage bi = randomImage (xSize, ySize);
+            BufferedImage newBi = new BufferedImage (ySize, xSize, BufferedImage.TYPE_INT_ARGB);
+
+            double simpleCw = time (() -> simpleRotate (bi, newBi, true));
+            double blockedCw = time (() -> Processor.rotateCw90 (bi, newBi));
+            double simpleCcw = time (() -> simpleRotate (bi, newBi, false));
+            double blockedCcw = time (() -> Processor.rotateCcw90 (bi, newBi));
+
+            System.out.printf ("%5.1f MP  cw: simple %8.2f ms  blocked %8.2f ms  (%.1fx)   ccw: simple %8.2f ms  blocked %8.2f ms  (%.1fx)%n",
+                xSize * (double)ySize / 1e6, simpleCw, blockedCw, simpleCw / blockedCw,
+                simpleCcw, blockedCcw, simpleCcw / blockedCcw);
+        }
+    }
+
+    /**
+     * Returns the middle time of the runs, in milliseconds. Small images are run
+     * until about half a second has passed, since a rotation of only a couple of
+     * milliseconds is easily thrown off by the odd slow or fast run.
+     */
+    private static double time (Runnable run)
+    {
+        for (int i = 0; i < WARMUP; i++) run.run();
+        long[] times = new long[MAX_RUNS];
+        long total = 0;
+        int runs = 0;
+        while (runs < MIN_RUNS || (runs < MAX_RUNS && total < MIN_NANOS))
+        {
+            long start = System.nanoTime();
+            run.run();
+            times[runs] = System.nanoTime() - start;
+            total += times[runs++];
+        }
+        Arrays.sort (times, 0, runs);
+        return times[runs / 2] / 1e6;
+    }
+
+    /**
+     * The rotation as it was before blocking: every old column is read from top
+     * to bottom, so each read lands on a different row of the image
+     */
+    private static void simpleRotate (BufferedImage bi, BufferedImage newBi, boolean clockwise)
+    {
+        int xSize = bi.getWidth();
+        int ySize = bi.getHeight();
+        int[] src = PixelEngine.getData (bi);
+        int[] dst = PixelEngine.getData (newBi);
+
+        for (int i = 0; i < xSize; i++)
+        {
+            for (int j = 0; j < ySize; j++)
+            {
+                if (clockwise) dst[i * ySize + ySize - j - 1] = src[j * xSize + i];
+                else dst[(xSize - i - 1) * ySize + j] = src[j * xSize + i];
+            }
+        }
+    }
+
+    private static BufferedImage randomImage (int xSize, int ySize)
+    {
+        BufferedImage bi = new BufferedImage (xSize, ySize, BufferedImage.TYPE_INT_ARGB);
+        int[] data = PixelEngine.getData (bi);
+        Random random = new Random (42);
+        for (int i = 0; i < data.length; i++) data[i] = random.nextInt();
+        return bi;
+    }
+}
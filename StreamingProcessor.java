@@ -0,0 +1,551 @@
+/**
+ * Runs a chain of filters over an image that is too big to load all at once.
+ * <pre>
+ * java StreamingProcessor --ops greyscale,flipV,pixalate:16 [--strip rows] input output.png
+ * </pre>
+ * The chain is built as a line of stages, each of which can hand out any
+ * rectangle of its own output. The PNG writer asks the last stage for the
+ * output one row at a time, and the stages answer it a strip of rows at a time:
+ * <ul>
+ * <li>the file stage reads just that rectangle with ImageReadParam.setSourceRegion()</li>
+ * <li>colour filters change the rectangle they got from the stage before</li>
+ * <li>flips and rotations work out which rectangle of the stage before ends up
+ *     there, read that, and turn it around</li>
+ * <li>pixalate widens the rectangle out to whole blocks, so every block is
+ *     averaged over all of its pixels, and then crops the result</li>
+ * <li>blurs, sharpening and edge finding read the rectangle with a border of
+ *     the pixels they reach around it, so there are no seams between strips,
+ *     and then crop the border off</li>
+ * </ul>
+ * At most a few strips are in memory at once, however big the image is, so
+ * the heap it needs grows with the width times --strip rather than with the
+ * whole image (a 12000 pixel wide image with 256 row strips fits in 96 MB). The
+ * PNG and JPEG readers still have to decode every row above a strip to reach
+ * it, so taller strips mean less decoding. The output has to be PNG, since
+ * the JPEG writer asks for the whole image in one piece.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class StreamingProcessor
+{
+    private static final ColorModel ARGB = ColorModel.getRGBdefault();
+
+    public static void main (String[] args) throws IOException
+    {
+        String chain = "";
+        int strip = 256;
+        String in = null, out = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals ("--ops")) chain = args[++i];
+            else if (args[i].equals ("--strip")) strip = Integer.parseInt (args[++i]);
+            else if (in == null) in = args[i];
+            else out = args[i];
+        }
+        if (in == null || out == null)
+        {
+            System.err.println ("usage: java StreamingProcessor --ops greyscale,flipV,pixalate:16 [--strip rows] input output.png");
+            System.exit (2);
+        }
+
+        long start = System.nanoTime();
+        process (new File (in), new File (out), chain, strip);
+        System.out.printf ("done in %.2f s%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Reads the input a strip at a time, runs the filters and writes a PNG
+     *
+     * @param chain     Filters to run in order, e.g. "greyscale,flipV,pixalate:16"
+     * @param strip     How many rows to work on at a time
+     */
+    public static void process (File in, File out, String chain, int strip) throws IOException
+    {
+        if (strip < 1) throw new IllegalArgumentException ("strip must be at least 1 row: " + strip);
+
+        try (ImageInputStream input = ImageIO.createImageInputStream (in))
+        {
+            if (input == null) throw new IOException ("can't open " + in);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders (input);
+            if (!readers.hasNext()) throw new IOException ("not an image this Java can read: " + in);
+            ImageReader reader = readers.next();
+
+            try
+            {
+                reader.setInput (input, true, true);
+                Stage stage = new FileStage (reader);
+                for (String name : chain.split (","))
+                {
+                    if (!name.trim().isEmpty()) stage = stage (name, stage);
+                }
+                if (!ImageIO.write (new StripImage (stage, strip), "png", out))
+                {
+                    throw new IOException ("no PNG writer");
+                }
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Puts the filter with the given name after the stage before it
+     */
+    static Stage stage (String name, Stage before)
+    {
+        EditOp op = EditOps.parse (name);
+        if (op == EditOps.FLIP_HORIZONTAL) return new FlipStage (before, true, false);
+        if (op == EditOps.FLIP_VERTICAL) return new FlipStage (before, false, true);
+        if (op == EditOps.ROTATE_180) return new FlipStage (before, true, true);
+        if (op == EditOps.ROTATE_CW_90) return new RotateStage (before, true);
+        if (op == EditOps.ROTATE_CCW_90) return new RotateStage (before, false);
+
+        String[] parts = name.trim().split (":", 2);
+        if (op == EditOps.AUTO_LEVELS || op == EditOps.EQUALIZE)
+        {
+            // Each strip would be stretched by its own histogram instead of the whole image's
+            throw new IllegalArgumentException (name + " can't be run a strip at a time, use BatchProcessor for it");
+        }
+        if (parts[0].equalsIgnoreCase ("resize") || parts[0].equalsIgnoreCase ("rotate"))
+        {
+            // Every strip of the output would need its own slanted or stretched part of the input
+            throw new IllegalArgumentException (name + " can't be run a strip at a time, use BatchProcessor for it");
+        }
+        if (parts[0].equalsIgnoreCase ("pixalate") || parts[0].equalsIgnoreCase ("pixelate"))
+        {
+            return new PixalateStage (before, parts.length > 1 ? Integer.parseInt (parts[1].trim()) : 2);
+        }
+        if (op.getHalo() > 0) return new NeighbourhoodStage (before, op);
+        if (op.getColorPipeline() != null && before instanceof PointStage)
+        {
+            // Join it with the colour filter before it, so each tile gets one pass for both
+            PointStage point = (PointStage)before;
+            if (point.op.getColorPipeline() != null)
+            {
+                return new PointStage (point.before, EditOps.join (List.of (point.op, op)));
+            }
+        }
+        return new PointStage (before, op);
+    }
+
+    /**
+     * One step of the chain, which can hand out any part of its output
+     */
+    interface Stage
+    {
+        int getWidth ();
+
+        int getHeight ();
+
+        /**
+         * Returns the part of this stage's output inside r as a new TYPE_INT_ARGB image
+         */
+        BufferedImage read (Rectangle r) throws IOException;
+    }
+
+    /**
+     * Reads rectangles straight out of the image file
+     */
+    private static class FileStage implements Stage
+    {
+        private final ImageReader reader;
+        private final int width, height;
+
+        FileStage (ImageReader reader) throws IOException
+        {
+            this.reader = reader;
+            width = reader.getWidth (0);
+            height = reader.getHeight (0);
+        }
+
+        public int getWidth ()
+        {
+            return width;
+        }
+
+        public int getHeight ()
+        {
+            return height;
+        }
+
+        public BufferedImage read (Rectangle r) throws IOException
+        {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion (r);
+            BufferedImage decoded = reader.read (0, param);
+
+            // Copying straight into the new image's own array, so the strip is only held twice
+            BufferedImage bi = new BufferedImage (r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+            PixelEngine.getPixels (decoded, PixelEngine.getData (bi));
+            return bi;
+        }
+    }
+
+    /**
+     * Runs a colour filter, which only needs the pixels it changes
+     */
+    private static class PointStage implements Stage
+    {
+        private final Stage before;
+        private final EditOp op;
+
+        PointStage (Stage before, EditOp op)
+        {
+            this.before = before;
+            this.op = op;
+        }
+
+        public int getWidth ()
+        {
+            return before.getWidth();
+        }
+
+        public int getHeight ()
+        {
+            return before.getHeight();
+        }
+
+        public BufferedImage read (Rectangle r) throws IOException
+        {
+            return op.apply (before.read (r));
+        }
+    }
+
+    /**
+     * Flips left to right, top to bottom, or both for a 180 degree rotation
+     */
+    private static class FlipStage implements Stage
+    {
+        private final Stage before;
+        private final boolean horizontal, vertical;
+
+        FlipStage (Stage before, boolean horizontal, boolean vertical)
+        {
+            this.before = before;
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+
+        public int getWidth ()
+        {
+            return before.getWidth();
+        }
+
+        public int getHeight ()
+        {
+            return before.getHeight();
+        }
+
+        public BufferedImage read (Rectangle r) throws IOException
+        {
+            // The mirror image of r is what lands in r once it is flipped
+            int x = horizontal ? getWidth() - r.x - r.width : r.x;
+            int y = vertical ? getHeight() - r.y - r.height : r.y;
+            BufferedImage bi = before.read (new Rectangle (x, y, r.width, r.height));
+
+            if (horizontal && vertical) Processor.rotate180 (bi);
+            else if (horizontal) Processor.flipHorizontal (bi);
+            else Processor.flipVertical (bi);
+            return bi;
+        }
+    }
+
+    /**
+     * Rotates by 90 degrees, so every strip of output rows is a band of input columns
+     */
+    private static class RotateStage implements Stage
+    {
+        private final Stage before;
+        private final boolean clockwise;
+
+        RotateStage (Stage before, boolean clockwise)
+        {
+            this.before = before;
+            this.clockwise = clockwise;
+        }
+
+        public int getWidth ()
+        {
+            return before.getHeight();
+        }
+
+        public int getHeight ()
+        {
+            return before.getWidth();
+        }
+
+        public BufferedImage read (Rectangle r) throws IOException
+        {
+            // Clockwise, new pixel (x, y) comes from old pixel (y, height - x - 1);
+            // counter-clockwise, it comes from old pixel (width - y - 1, x)
+            Rectangle source = clockwise
+                ? new Rectangle (r.y, before.getHeight() - r.x - r.width, r.height, r.width)
+                : new Rectangle (before.getWidth() - r.y - r.height, r.x, r.height, r.width);
+            BufferedImage bi = before.read (source);
+
+            BufferedImage rotated = new BufferedImage (r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+            if (clockwise) Processor.rotateCw90 (bi, rotated);
+            else Processor.rotateCcw90 (bi, rotated);
+            return rotated;
+        }
+    }
+
+    /**
+     * Pixalates, reading whole blocks so each block is averaged over all of its pixels
+     */
+    private static class PixalateStage implements Stage
+    {
+        private final Stage before;
+        private final int factor;
+
+        PixalateStage (Stage before, int factor)
+        {
+            if (factor < 1) throw new IllegalArgumentException ("factor must be at least 1: " + factor);
+            this.before = before;
+            this.factor = factor;
+        }
+
+        public int getWidth ()
+        {
+            return before.getWidth();
+        }
+
+        public int getHeight ()
+        {
+            return before.getHeight();
+        }
+
+        public BufferedImage read (Rectangle r) throws IOException
+        {
+            // Widening r out to the block grid, which starts at the top left of the image
+            int x0 = r.x / factor * factor, y0 = r.y / factor * factor;
+            int x1 = Math.min (getWidth(), (r.x + r.width + factor - 1) / factor * factor);
+            int y1 = Math.min (getHeight(), (r.y + r.height + factor - 1) / factor * factor);
+
+            BufferedImage bi = before.read (new Rectangle (x0, y0, x1 - x0, y1 - y0));
+            Processor.pixalate (bi, factor);
+            if (x0 == r.x && y0 == r.y && bi.getWidth() == r.width && bi.getHeight() == r.height) return bi;
+
+            BufferedImage cropped = new BufferedImage (r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+            cropped.setData (bi.getRaster().createChild (r.x - x0, r.y - y0, r.width, r.height, 0, 0, null));
+            return cropped;
+        }
+    }
+
+    /**
+     * Runs a filter that reads the pixels around each pixel, like a blur
+     */
+    private static class NeighbourhoodStage implements Stage
+    {
+        private final Stage before;
+        private final EditOp op;
+
+        NeighbourhoodStage (Stage before, EditOp op)
+        {
+            this.before = before;
+            this.op = op;
+        }
+
+        public int getWidth ()
+        {
+            return before.getWidth();
+        }
+
+        public int getHeight ()
+        {
+            return before.getHeight();
+        }
+
+        public BufferedImage read (Rectangle r) throws IOException
+        {
+            // The border only stops at the edges of the image, where the filter's edge mode takes over
+            int halo = op.getHalo();
+            int x0 = Math.max (0, r.x - halo), y0 = Math.max (0, r.y - halo);
+            int x1 = Math.min (getWidth(), r.x + r.width + halo);
+            int y1 = Math.min (getHeight(), r.y + r.height + halo);
+
+            BufferedImage bi = op.apply (before.read (new Rectangle (x0, y0, x1 - x0, y1 - y0)));
+            if (x0 == r.x && y0 == r.y && bi.getWidth() == r.width && bi.getHeight() == r.height) return bi;
+
+            BufferedImage cropped = new BufferedImage (r.width, r.height, BufferedImage.TYPE_INT_ARGB);
+            cropped.setData (bi.getRaster().createChild (r.x - x0, r.y - y0, r.width, r.height, 0, 0, null));
+            return cropped;
+        }
+    }
+
+    /**
+     * Shows the last stage to the PNG writer as an image made of strips, keeping
+     * only the most recent strip in memory
+     */
+    private static class StripImage implements RenderedImage
+    {
+        private final Stage stage;
+        private final int strip;
+        private final SampleModel sampleModel;
+        private int cachedStrip = -1;
+        private Raster cached;
+
+        StripImage (Stage stage, int strip)
+        {
+            this.stage = stage;
+            this.strip = strip;
+            sampleModel = ARGB.createCompatibleSampleModel (stage.getWidth(), strip);
+        }
+
+        /**
+         * Returns strip number ty, placed at its position in the image
+         */
+        public synchronized Raster getTile (int tileX, int tileY)
+        {
+            if (tileY != cachedStrip)
+            {
+                int y = tileY * strip;
+                int height = Math.min (strip, stage.getHeight() - y);
+                try
+                {
+                    BufferedImage bi = stage.read (new Rectangle (0, y, stage.getWidth(), height));
+                    cached = bi.getRaster().createTranslatedChild (0, y);
+                    cachedStrip = tileY;
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException ("couldn't read strip at row " + y, e);
+                }
+            }
+            return cached;
+        }
+
+        public Raster getData (Rectangle rect)
+        {
+            WritableRaster out = ARGB.createCompatibleWritableRaster (rect.width, rect.height)
+                .createWritableTranslatedChild (rect.x, rect.y);
+            return copyData (out);
+        }
+
+        public Raster getData ()
+        {
+            return getData (new Rectangle (0, 0, getWidth(), getHeight()));
+        }
+
+        public WritableRaster copyData (WritableRaster raster)
+        {
+            if (raster == null) return (WritableRaster)getData();
+
+            Rectangle bounds = raster.getBounds().intersection (new Rectangle (0, 0, getWidth(), getHeight()));
+            for (int ty = bounds.y / strip; ty * strip < bounds.y + bounds.height; ty++)
+            {
+                Raster tile = getTile (0, ty);
+                Rectangle part = bounds.intersection (tile.getBounds());
+                raster.setRect (tile.createChild (part.x, part.y, part.width, part.height, part.x, part.y, null));
+            }
+            return raster;
+        }
+
+        public Vector<RenderedImage> getSources ()
+        {
+            return null;
+        }
+
+        public Object getProperty (String name)
+        {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        public String[] getPropertyNames ()
+        {
+            return null;
+        }
+
+        public ColorModel getColorModel ()
+        {
+            return ARGB;
+        }
+
+        public SampleModel getSampleModel ()
+        {
+            return sampleModel;
+        }
+
+        public int getWidth ()
+        {
+            return stage.getWidth();
+        }
+
+        public int getHeight ()
+        {
+            return stage.getHeight();
+        }
+
+        public int getMinX ()
+        {
+            return 0;
+        }
+
+        public int getMinY ()
+        {
+            return 0;
+        }
+
+        public int getNumXTiles ()
+        {
+            return 1;
+        }
+
+        public int getNumYTiles ()
+        {
+            return (getHeight() + strip - 1) / strip;
+        }
+
+        public int getMinTileX ()
+        {
+            return 0;
+        }
+
+        public int getMinTileY ()
+        {
+            return 0;
+        }
+
+        public int getTileWidth ()
+        {
+            return getWidth();
+        }
+
+        public int getTileHeight ()
+        {
+            return strip;
+        }
+
+        public int getTileGridXOffset ()
+        {
+            return 0;
+        }
+
+        public int getTileGridYOffset ()
+        {
+            return 0;
+        }
+    }
+}
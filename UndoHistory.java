@@ -0,0 +1,568 @@
+/**
+ * Keeps saved copies of the image without keeping a full copy of the image
+ * for each one. The EditGraph saves the results of its steps here, so undoing
+ * or changing a step can start from the nearest saved copy.
+ * <p>
+ * Each copy is saved under a key and cut into square tiles. A tile that is the
+ * same in the copy saved or restored just before is shared with that copy
+ * instead of being saved again, so a change to one corner of the image only
+ * costs the tiles in that corner. A tile that did change is saved compressed:
+ * every channel is stored as the difference from the pixel to its left and
+ * then deflated.
+ * <p>
+ * The compressed tiles are counted against a byte budget. When the history
+ * goes over budget, the copies used longest ago are thrown away until it fits
+ * again. The newest copy is always kept, even when it alone is over budget. On
+ * top of the budget the history keeps one uncompressed copy of the image last
+ * saved or restored, which is what new copies are compared against.
+ * <p>
+ * A history can also be given a smaller heap budget and a folder to spill to.
+ * Once the tiles in the heap go over that budget, the tiles of the copies
+ * used longest ago are written to a scratch file and only read back when they
+ * are restored, which leaves keeping them around to the operating system's
+ * file cache instead of the Java heap. Once most of the file is thrown away
+ * tiles, the live ones are moved down over them and the file is cut short.
+ * The history keeps the one file until the program ends.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class UndoHistory
+{
+    public static final int TILE_SIZE = 64;
+
+    // One Deflater, Inflater and work buffer per thread, since tiles are packed in parallel
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial (() -> new Deflater (Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial (Inflater::new);
+    private static final ThreadLocal<byte[]> PLANES = ThreadLocal.withInitial (() -> new byte[TILE_SIZE * TILE_SIZE * 4]);
+    private static final ThreadLocal<byte[]> OUTPUT = ThreadLocal.withInitial (() -> new byte[TILE_SIZE * TILE_SIZE * 4 + 64]);
+
+    // Spill files smaller than this are never compacted
+    private static final long MIN_COMPACT_BYTES = 16L * 1024 * 1024;
+
+    private final long budget;
+    private long bytes = 0;
+
+    // Tiles over the heap budget are moved to the spill file, if there is a folder to put it in
+    private final long heapBudget;
+    private final File spillFolder;
+    private final boolean spills;
+    private long heapBytes = 0;
+    private FileChannel spill;
+    private long spillEnd = 0;
+    private long spilledBytes = 0;
+    // The saved copies by key, the one used longest ago first
+    private final LinkedHashMap<Object, Snapshot> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // The copy most recently saved or restored, and its pixels, to compare new copies against
+    private Snapshot last;
+    private int[] lastPixels;
+    private int[] spare;
+
+    /**
+     * Creates an empty history
+     *
+     * @param budgetBytes   The most bytes of compressed tiles to keep
+     */
+    public UndoHistory (long budgetBytes)
+    {
+        if (budgetBytes <= 0) throw new IllegalArgumentException ("budget must be positive: " + budgetBytes);
+        budget = budgetBytes;
+        heapBudget = budgetBytes;
+        spillFolder = null;
+        spills = false;
+    }
+
+    /**
+     * Creates an empty history that spills the tiles used longest ago to a scratch file
+     *
+     * @param budgetBytes   The most bytes of compressed tiles to keep, in the heap and on disk
+     * @param heapBytes     The most bytes of compressed tiles to keep in the heap
+     * @param spillFolder   Where to put the scratch file, or null for the temporary folder
+     */
+    public UndoHistory (long budgetBytes, long heapBytes, File spillFolder)
+    {
+        if (budgetBytes <= 0) throw new IllegalArgumentException ("budget must be positive: " + budgetBytes);
+        if (heapBytes < 0) throw new IllegalArgumentException ("heap budget can't be negative: " + heapBytes);
+        budget = budgetBytes;
+        heapBudget = heapBytes;
+        this.spillFolder = spillFolder;
+        spills = true;
+    }
+
+    /**
+     * Saves a copy of the image under the key, in place of any copy already
+     * saved under it
+     */
+    public synchronized void put (Object key, BufferedImage bi)
+    {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int[] pixels = PixelEngine.getPixels (bi, spare);
+
+        Snapshot snap = new Snapshot (width, height);
+        Snapshot previous = (last != null && last.width == width && last.height == height) ? last : null;
+        int[] previousPixels = lastPixels;
+
+        ParallelExecutor.forEachRowBand (width * TILE_SIZE, snap.tilesY, (tyStart, tyEnd) -> {
+            for (int ty = tyStart; ty < tyEnd; ty++)
+            {
+                for (int tx = 0; tx < snap.tilesX; tx++)
+                {
+                    int t = ty * snap.tilesX + tx;
+                    if (previous != null && sameTile (pixels, previousPixels, width, height, tx, ty))
+                    {
+                        snap.tiles[t] = previous.tiles[t];
+                    }
+                    else
+                    {
+                        snap.tiles[t] = encode (pixels, width, height, tx, ty);
+                    }
+                }
+            }
+        });
+
+        for (Tile tile : snap.tiles) retain (tile);
+        Snapshot replaced = entries.put (key, snap);
+        if (replaced != null) release (replaced);
+
+        spare = lastPixels;
+        lastPixels = pixels;
+        last = snap;
+
+        // Throw away the copies used longest ago until the history fits in its budget again
+        Iterator<Snapshot> oldest = entries.values().iterator();
+        while (bytes > budget && entries.size() > 1)
+        {
+            release (oldest.next());
+            oldest.remove();
+        }
+        if (spills && heapBytes > heapBudget) spillOldest();
+    }
+
+    /**
+     * Checks if a copy is saved under the key
+     */
+    public synchronized boolean contains (Object key)
+    {
+        return entries.containsKey (key);
+    }
+
+    /**
+     * Returns the size of the image saved under the key, or null if there is none
+     */
+    public synchronized Dimension getSize (Object key)
+    {
+        Snapshot snap = entries.get (key);
+        return snap == null ? null : new Dimension (snap.width, snap.height);
+    }
+
+    /**
+     * Copies the image saved under the key into an image of the same size
+     *
+     * @return boolean  True if there was a copy to restore
+     */
+    public synchronized boolean restore (Object key, BufferedImage bi)
+    {
+        Snapshot snap = entries.get (key);
+        if (snap == null) return false;
+        if (bi.getWidth() != snap.width || bi.getHeight() != snap.height)
+        {
+            throw new IllegalArgumentException ("image must be " + snap.width + "x" + snap.height);
+        }
+
+        int[] pixels = (spare != null && spare.length >= snap.width * snap.height) ? spare : new int[snap.width * snap.height];
+        decode (spill, snap, pixels);
+        PixelEngine.setPixels (bi, pixels);
+
+        // The restored copy is what the next one saved is most likely to share tiles with
+        spare = lastPixels;
+        lastPixels = pixels;
+        last = snap;
+        return true;
+    }
+
+    /**
+     * Throws away the copy saved under the key, if there is one
+     */
+    public synchronized void remove (Object key)
+    {
+        // The tiles of the copy stay usable after release, so last can still share them
+        Snapshot snap = entries.remove (key);
+        if (snap != null) release (snap);
+    }
+
+    /**
+     * Throws away every saved copy
+     */
+    public synchronized void clear ()
+    {
+        for (Snapshot snap : entries.values()) release (snap);
+        entries.clear();
+        last = null;
+        lastPixels = null;
+        spare = null;
+        emptySpill();
+    }
+
+    public synchronized boolean isEmpty ()
+    {
+        return entries.isEmpty();
+    }
+
+    public synchronized int size ()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns how many bytes of compressed tiles the history is holding
+     */
+    public synchronized long getBytes ()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns how many of those bytes are in the heap rather than spilled to disk
+     */
+    public synchronized long getHeapBytes ()
+    {
+        return heapBytes;
+    }
+
+    public long getBudget ()
+    {
+        return budget;
+    }
+
+    private void retain (Tile tile)
+    {
+        if (tile.refs++ == 0)
+        {
+            bytes += tile.length;
+            if (tile.data != null) heapBytes += tile.length;
+            else spilledBytes += tile.length;
+        }
+    }
+
+    private void release (Snapshot snap)
+    {
+        for (Tile tile : snap.tiles)
+        {
+            if (--tile.refs == 0)
+            {
+                bytes -= tile.length;
+                if (tile.data != null) heapBytes -= tile.length;
+                else spilledBytes -= tile.length;
+            }
+        }
+    }
+
+    /**
+     * Writes the tiles of the copies used longest ago to the spill file until
+     * the tiles left in the heap fit in the heap budget. If the file can't be
+     * written the tiles just stay in the heap.
+     */
+    private void spillOldest ()
+    {
+        try
+        {
+            if (spill == null)
+            {
+                File file = File.createTempFile ("undo", ".tiles", spillFolder);
+                // The history never makes another file, so this is only asked for once
+                file.deleteOnExit();
+                spill = new RandomAccessFile (file, "rw").getChannel();
+            }
+            for (Snapshot snap : entries.values())
+            {
+                for (Tile tile : snap.tiles)
+                {
+                    if (heapBytes <= heapBudget) return;
+                    if (tile.data == null) continue;
+
+                    writeFully (spill, tile.data, spillEnd);
+                    tile.offset = spillEnd;
+                    tile.data = null;
+                    spillEnd += tile.length;
+                    heapBytes -= tile.length;
+                    spilledBytes += tile.length;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println ("Couldn't spill undo history to disk: " + e);
+        }
+        finally
+        {
+            if (spill != null && spillEnd > MIN_COMPACT_BYTES && spillEnd > 2 * spilledBytes) compactSpill();
+        }
+    }
+
+    /**
+     * Moves the tiles still in use down over the space of the ones thrown
+     * away, in the order they are in the file, and cuts the file short. A
+     * tile is only ever moved towards the start, so it never lands on one
+     * that hasn't been moved yet.
+     */
+    private void compactSpill ()
+    {
+        // The last copy's tiles may be shared by the next one, so they are kept too
+        IdentityHashMap<Tile, Boolean> seen = new IdentityHashMap<>();
+        ArrayList<Tile> live = new ArrayList<>();
+        ArrayList<Snapshot> snaps = new ArrayList<>(entries.values());
+        if (last != null) snaps.add (last);
+        for (Snapshot snap : snaps)
+        {
+            for (Tile tile : snap.tiles)
+            {
+                if (tile.data == null && seen.put (tile, Boolean.TRUE) == null) live.add (tile);
+            }
+        }
+        live.sort (Comparator.comparingLong (tile -> tile.offset));
+
+        try
+        {
+            long end = 0;
+            for (Tile tile : live)
+            {
+                if (tile.offset != end) writeFully (spill, readTile (spill, tile), end);
+                tile.offset = end;
+                end += tile.length;
+            }
+            spill.truncate (end);
+            spillEnd = end;
+        }
+        catch (IOException e)
+        {
+            // Tiles moved so far have their new offsets, and the rest are where they were
+            System.err.println ("Couldn't compact undo spill file: " + e);
+        }
+    }
+
+    /**
+     * Empties the spill file, keeping it for the next tiles to spill
+     */
+    private void emptySpill ()
+    {
+        spilledBytes = 0;
+        if (spill == null) return;
+        try
+        {
+            spill.truncate (0);
+        }
+        catch (IOException e)
+        {
+            System.err.println ("Couldn't empty undo spill file: " + e);
+        }
+        spillEnd = 0;
+    }
+
+    private static void writeFully (FileChannel channel, byte[] data, long position) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap (data);
+        while (buffer.hasRemaining())
+        {
+            position += channel.write (buffer, position);
+        }
+    }
+
+    /**
+     * Returns the compressed bytes of a tile, reading them back from the spill
+     * file if they were spilled. Reads at a position are safe from many threads.
+     */
+    private static byte[] readTile (FileChannel channel, Tile tile) throws IOException
+    {
+        byte[] data = tile.data;
+        if (data != null) return data;
+
+        data = new byte[tile.length];
+        ByteBuffer buffer = ByteBuffer.wrap (data);
+        long position = tile.offset;
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read (buffer, position);
+            if (read < 0) throw new IOException ("undo spill file is too short");
+            position += read;
+        }
+        return data;
+    }
+
+    /**
+     * Checks if a tile holds the same pixels in both images
+     */
+    private static boolean sameTile (int[] a, int[] b, int width, int height, int tx, int ty)
+    {
+        int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+        int xEnd = Math.min (x0 + TILE_SIZE, width), yEnd = Math.min (y0 + TILE_SIZE, height);
+        for (int y = y0; y < yEnd; y++)
+        {
+            int from = y * width + x0, to = y * width + xEnd;
+            if (!Arrays.equals (a, from, to, b, from, to)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compresses one tile of the image
+     */
+    private static Tile encode (int[] pixels, int width, int height, int tx, int ty)
+    {
+        int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+        int tileWidth = Math.min (TILE_SIZE, width - x0), tileHeight = Math.min (TILE_SIZE, height - y0);
+        int n = tileWidth * tileHeight;
+        byte[] planes = PLANES.get();
+
+        // Storing each channel on its own, as the difference from the pixel to the left
+        for (int y = 0; y < tileHeight; y++)
+        {
+            int previous = 0;
+            int row = (y0 + y) * width + x0;
+            for (int x = 0; x < tileWidth; x++)
+            {
+                int rgb = pixels[row + x];
+                int i = y * tileWidth + x;
+                planes[i] = (byte)((rgb >>> 24) - (previous >>> 24));
+                planes[n + i] = (byte)((rgb >> 16) - (previous >> 16));
+                planes[2 * n + i] = (byte)((rgb >> 8) - (previous >> 8));
+                planes[3 * n + i] = (byte)(rgb - previous);
+                previous = rgb;
+            }
+        }
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput (planes, 0, 4 * n);
+        deflater.finish();
+        byte[] out = OUTPUT.get();
+        int length = 0;
+        while (!deflater.finished())
+        {
+            if (length == out.length)
+            {
+                out = Arrays.copyOf (out, out.length * 2);
+                OUTPUT.set (out);
+            }
+            length += deflater.deflate (out, length, out.length - length);
+        }
+        return new Tile (Arrays.copyOf (out, length));
+    }
+
+    /**
+     * Unpacks every tile of a saved copy into an array of packed pixels, row by row
+     */
+    private static void decode (FileChannel spill, Snapshot snap, int[] pixels)
+    {
+        ParallelExecutor.forEachRowBand (snap.width * TILE_SIZE, snap.tilesY, (tyStart, tyEnd) -> {
+            for (int ty = tyStart; ty < tyEnd; ty++)
+            {
+                for (int tx = 0; tx < snap.tilesX; tx++)
+                {
+                    decodeTile (spill, snap.tiles[ty * snap.tilesX + tx], pixels, snap.width, snap.height, tx, ty);
+                }
+            }
+        });
+    }
+
+    private static void decodeTile (FileChannel spill, Tile tile, int[] pixels, int width, int height, int tx, int ty)
+    {
+        int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+        int tileWidth = Math.min (TILE_SIZE, width - x0), tileHeight = Math.min (TILE_SIZE, height - y0);
+        int n = tileWidth * tileHeight;
+        byte[] planes = PLANES.get();
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        try
+        {
+            inflater.setInput (readTile (spill, tile));
+            int length = 0;
+            while (length < 4 * n && !inflater.finished())
+            {
+                length += inflater.inflate (planes, length, 4 * n - length);
+            }
+        }
+        catch (DataFormatException e)
+        {
+            // The tiles are only ever written by encode(), so this can't happen
+            throw new IllegalStateException ("undo tile is corrupt", e);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException ("couldn't read undo tile back from disk", e);
+        }
+
+        for (int y = 0; y < tileHeight; y++)
+        {
+            int alpha = 0, red = 0, green = 0, blue = 0;
+            int row = (y0 + y) * width + x0;
+            for (int x = 0; x < tileWidth; x++)
+            {
+                int i = y * tileWidth + x;
+                alpha = (alpha + planes[i]) & 0xFF;
+                red = (red + planes[n + i]) & 0xFF;
+                green = (green + planes[2 * n + i]) & 0xFF;
+                blue = (blue + planes[3 * n + i]) & 0xFF;
+                pixels[row + x] = Processor.packagePixel (red, green, blue, alpha);
+            }
+        }
+    }
+
+    /**
+     * One saved copy of the image, made of tiles in rows from the top left
+     */
+    private static class Snapshot
+    {
+        final int width, height, tilesX, tilesY;
+        final Tile[] tiles;
+
+        Snapshot (int width, int height)
+        {
+            this.width = width;
+            this.height = height;
+            tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            tiles = new Tile[tilesX * tilesY];
+        }
+    }
+
+    /**
+     * The compressed pixels of one tile, with a count of the copies using it.
+     * Once a tile is spilled its data is null and offset says where it is in
+     * the spill file.
+     */
+    private static class Tile
+    {
+        final int length;
+        byte[] data;
+        long offset = -1;
+        int refs;
+
+        Tile (byte[] data)
+        {
+            this.data = data;
+            length = data.length;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Checks that every vector filter in VectorPixelOps gives exactly the same
+ * pixels as its one pixel at a time version in Processor.
+ * <p>
+ * This runs on its own from the command line, without Greenfoot, and needs the
+ * Vector API:
+ * <pre>java --add-modules jdk.incubator.vector VectorCheck [filter ...]</pre>
+ * Each filter is checked three ways:
+ * <ul>
+ * <li>on every one of the 2^24 colours at each of the alphas in ALPHAS,
+ *     handed over in runs whose length isn't a whole number of vectors, so
+ *     the leftover pixels at the end of every run are checked too</li>
+ * <li>on every run length up to a few vectors, starting at every offset
+ *     within a vector</li>
+ * <li>through PixelEngine.apply() on images cut out of a bigger one, so the
+ *     rows aren't packed one after another and the pixels between them must
+ *     be left alone</li>
+ * </ul>
+ * The first pixel that comes out different is printed, and the check exits
+ * with 1 if any filter failed.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class VectorCheck
+{
+    private static final int COLOURS = 1 << 24;
+    private static final int[] ALPHAS = {0, 1, 2, 127, 128, 129, 253, 254, 255};
+    // Not a multiple of any vector length, so every run ends part way through a vector
+    private static final int RUN = 4099;
+
+    private static final Map<String, PixelOp> SCALAR = new LinkedHashMap<>();
+    private static final Map<String, VectorPixelOps.RowOp> VECTOR = new LinkedHashMap<>();
+    static
+    {
+        add ("blueify", Processor::blueifyPixel, VectorPixelOps.BLUEIFY);
+        add ("redify", Processor::redifyPixel, VectorPixelOps.REDIFY);
+        add ("invert", Processor::invertPixel, VectorPixelOps.INVERT);
+        add ("tglNegative", Processor::negativePixel, VectorPixelOps.NEGATIVE);
+        add ("greyscale", Processor::greyscalePixel, VectorPixelOps.GREYSCALE);
+        add ("sepia", Processor::sepiaPixel, VectorPixelOps.SEPIA);
+        add ("increaseOpacity", Processor::increaseOpacityPixel, VectorPixelOps.INCREASE_OPACITY);
+        add ("decreaseOpacity", Processor::decreaseOpacityPixel, VectorPixelOps.DECREASE_OPACITY);
+    }
+
+    private static void add (String name, PixelOp scalar, VectorPixelOps.RowOp vector)
+    {
+        SCALAR.put (name, scalar);
+        VECTOR.put (name, vector);
+    }
+
+    public static void main (String[] args)
+    {
+        if (!VectorPixelOps.isAvailable())
+        {
+            System.err.println ("The Vector API isn't there, run this with java --add-modules jdk.incubator.vector");
+            System.exit (2);
+        }
+        System.out.println ("Vectors of " + VectorPixelOps.getLength() + " pixels");
+
+        List<String> names = args.length > 0 ? Arrays.asList (args) : List.copyOf (SCALAR.keySet());
+        boolean failed = false;
+        for (String name : names)
+        {
+            PixelOp scalar = SCALAR.get (name);
+            if (scalar == null)
+            {
+                System.err.println ("No filter called " + name + ", try one of " + SCALAR.keySet());
+                System.exit (2);
+            }
+            VectorPixelOps.RowOp vector = VECTOR.get (name);
+            boolean ok = checkEveryColour (name, scalar, vector)
+                && checkRunLengths (name, scalar, vector)
+                && checkStridedImages (name, scalar, vector);
+            failed |= !ok;
+            System.out.printf ("%-16s %s%n", name, ok ? "ok" : "FAILED");
+        }
+        if (failed)
+        {
+            System.out.println ("Some vector filters don't match Processor");
+            System.exit (1);
+        }
+        System.out.println ("Every vector filter matches Processor");
+    }
+
+    /**
+     * Runs the filter on every colour at each alpha, in runs of RUN pixels
+     */
+    private static boolean checkEveryColour (String name, PixelOp scalar, VectorPixelOps.RowOp vector)
+    {
+        int[] data = new int[COLOURS];
+        for (int alpha : ALPHAS)
+        {
+            for (int i = 0; i < COLOURS; i++) data[i] = alpha << 24 | i;
+            for (int from = 0; from < COLOURS; from += RUN)
+            {
+                vector.apply (data, from, Math.min (COLOURS, from + RUN));
+            }
+            for (int i = 0; i < COLOURS; i++)
+            {
+                int original = alpha << 24 | i;
+                if (data[i] != scalar.apply (original))
+                {
+                    report (name, "colour " + hex (original), scalar.apply (original), data[i]);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the filter on every run length up to three vectors and a bit,
+     * starting at every offset in a vector, and checks the pixels on either
+     * side of the run are left alone
+     */
+    private static boolean checkRunLengths (String name, PixelOp scalar, VectorPixelOps.RowOp vector)
+    {
+        int length = VectorPixelOps.getLength();
+        Random random = new Random (21);
+        int[] original = new int[8 * length + 8];
+        for (int i = 0; i < original.length; i++) original[i] = random.nextInt();
+
+        for (int start = 0; start <= length; start++)
+        {
+            for (int size = 0; size <= 3 * length + 3; size++)
+            {
+                int[] data = original.clone();
+                vector.apply (data, start, start + size);
+                for (int i = 0; i < data.length; i++)
+                {
+                    int expected = i >= start && i < start + size ? scalar.apply (original[i]) : original[i];
+                    if (data[i] != expected)
+                    {
+                        report (name, "run of " + size + " from " + start + ", index " + i, expected, data[i]);
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the filter through PixelEngine on parts cut out of bigger images,
+     * including ones narrower than a vector, and checks nothing around them changed
+     */
+    private static boolean checkStridedImages (String name, PixelOp scalar, VectorPixelOps.RowOp vector)
+    {
+        int length = VectorPixelOps.getLength();
+        int[] widths = {1, length - 1, length, length + 1, 3 * length + 5, 1001};
+        Random random = new Random (42);
+        for (int width : widths)
+        {
+            if (width < 1) continue;
+            int height = 37;
+            BufferedImage parent = new BufferedImage (width + 11, height + 6, BufferedImage.TYPE_INT_ARGB);
+            int[] before = new int[parent.getWidth() * parent.getHeight()];
+            for (int i = 0; i < before.length; i++) before[i] = random.nextInt();
+            PixelEngine.setPixels (parent, before);
+
+            BufferedImage part = parent.getSubimage (7, 3, width, height);
+            if (!PixelEngine.isDirect (part))
+            {
+                System.out.println (name + ": PixelEngine wouldn't use the vector filter on a " + width + " wide part");
+                return false;
+            }
+            PixelEngine.apply (part, scalar, vector);
+
+            int[] after = PixelEngine.getPixels (parent, null);
+            for (int y = 0; y < parent.getHeight(); y++)
+            {
+                for (int x = 0; x < parent.getWidth(); x++)
+                {
+                    int i = y * parent.getWidth() + x;
+                    boolean inside = x >= 7 && x < 7 + width && y >= 3 && y < 3 + height;
+                    int expected = inside ? scalar.apply (before[i]) : before[i];
+                    if (after[i] != expected)
+                    {
+                        report (name, width + " wide part, pixel " + x + "," + y + (inside ? "" : " outside it"), expected, after[i]);
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void report (String name, String where, int expected, int actual)
+    {
+        System.out.println (name + ": " + where + " should be " + hex (expected) + " but the vector filter gave " + hex (actual));
+    }
+
+    private static String hex (int argb)
+    {
+        return String.format ("%08x", argb);
+    }
+}
@@ -0,0 +1,473 @@
+/**
+ * Vector versions of the Processor colour filters, which work on a whole
+ * vector of pixels at a time (16 on a CPU with 512 bit registers) with the
+ * Java Vector API in jdk.incubator.vector.
+ * <p>
+ * The Vector API is an incubator module, so code that names its classes only
+ * compiles with --add-modules jdk.incubator.vector, which Greenfoot doesn't
+ * pass. Instead the few IntVector methods the filters need are looked up once
+ * as MethodHandles. They are kept in static final fields, so the JIT compiler
+ * treats them as constants, inlines them and turns them into the same vector
+ * instructions as code written against the Vector API directly.
+ * <p>
+ * The module is only there when Java is started with
+ * <pre>java --add-modules jdk.incubator.vector ...</pre>
+ * Otherwise isAvailable() is false and PixelEngine runs the one pixel at a
+ * time versions in Processor, which stay the reference. Every vector filter
+ * gives exactly the same pixels as its Processor version: the leftover pixels
+ * at the end of a row are done with the Processor version, and greyscale and
+ * sepia hand any vector with a sum too close to a whole number to trust over
+ * to the exact ColorMatrixOp, the same way ColorMatrixOp itself falls back to
+ * doubles. For greyscale, where nearly every grey pixel is such a close call,
+ * a block that starts with a grey pixel goes to the ColorMatrixOp straight
+ * away, since it looks greys up whole.
+ * <p>
+ * Only TYPE_INT_ARGB images are done this way, since every image in the editor
+ * is one. They can be turned off with setEnabled(false) to compare the two,
+ * and VectorCheck compares them on every colour.
+ *
+ * @author Owen Zhu and Larry Wu
+ * @version June 2020
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+public class VectorPixelOps
+{
+    private static final MethodHandle LOAD, STORE, WITH_INT, WITH_VECTOR, REDUCE;
+    private static final Object AND, OR, XOR, ADD, SUB, MUL, MIN, MAX, ASHR, LSHR, LSHL;
+    // How many pixels one vector holds, or 0 when the Vector API isn't there
+    private static final int LENGTH;
+
+    // Fixed point weights for greyscale and sepia, with more fraction bits than
+    // ColorMatrixOp uses since there is no table of exact products
+    private static final int FRACTION_BITS = 22;
+    private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+    // Each of the three terms is off by at most 255 halves of a step
+    private static final int MARGIN = 3 * 128 + 2;
+    // How many pixels greyscale and sepia work on per pass
+    private static final int BLOCK = 1024;
+
+    private static volatile boolean enabled = true;
+
+    static
+    {
+        MethodHandle load = null, store = null, withInt = null, withVector = null, reduce = null;
+        Object[] ops = new Object[11];
+        int length = 0;
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> intVector = Class.forName ("jdk.incubator.vector.IntVector");
+            Class<?> vector = Class.forName ("jdk.incubator.vector.Vector");
+            Class<?> species = Class.forName ("jdk.incubator.vector.VectorSpecies");
+            Class<?> operators = Class.forName ("jdk.incubator.vector.VectorOperators");
+            Class<?> binary = Class.forName ("jdk.incubator.vector.VectorOperators$Binary");
+            Class<?> associative = Class.forName ("jdk.incubator.vector.VectorOperators$Associative");
+
+            Object preferred = intVector.getField ("SPECIES_PREFERRED").get (null);
+            length = (Integer)species.getMethod ("length").invoke (preferred);
+            String[] names = {"AND", "OR", "XOR", "ADD", "SUB", "MUL", "MIN", "MAX", "ASHR", "LSHR", "LSHL"};
+            for (int i = 0; i < names.length; i++)
+            {
+                ops[i] = operators.getField (names[i]).get (null);
+            }
+
+            // Every vector is passed around as an Object, since IntVector can't be named here
+            load = MethodHandles.insertArguments (lookup.findStatic (intVector, "fromArray",
+                MethodType.methodType (intVector, species, int[].class, int.class)), 0, preferred)
+                .asType (MethodType.methodType (Object.class, int[].class, int.class));
+            store = lookup.findVirtual (intVector, "intoArray", MethodType.methodType (void.class, int[].class, int.class))
+                .asType (MethodType.methodType (void.class, Object.class, int[].class, int.class));
+            withInt = lookup.findVirtual (intVector, "lanewise", MethodType.methodType (intVector, binary, int.class))
+                .asType (MethodType.methodType (Object.class, Object.class, Object.class, int.class));
+            withVector = lookup.findVirtual (intVector, "lanewise", MethodType.methodType (intVector, binary, vector))
+                .asType (MethodType.methodType (Object.class, Object.class, Object.class, Object.class));
+            reduce = lookup.findVirtual (intVector, "reduceLanes", MethodType.methodType (int.class, associative))
+                .asType (MethodType.methodType (int.class, Object.class, Object.class));
+        }
+        catch (ReflectiveOperationException | LinkageError | RuntimeException e)
+        {
+            // Java wasn't started with the module, or it is too old to have it
+            length = 0;
+        }
+        LOAD = load;
+        STORE = store;
+        WITH_INT = withInt;
+        WITH_VECTOR = withVector;
+        REDUCE = reduce;
+        AND = ops[0];
+        OR = ops[1];
+        XOR = ops[2];
+        ADD = ops[3];
+        SUB = ops[4];
+        MUL = ops[5];
+        MIN = ops[6];
+        MAX = ops[7];
+        ASHR = ops[8];
+        LSHR = ops[9];
+        LSHL = ops[10];
+        LENGTH = length;
+    }
+
+    /**
+     * Changes the pixels from index from up to, but not including, index to of
+     * a TYPE_INT_ARGB image's int array
+     */
+    public interface RowOp
+    {
+        void apply (int[] data, int from, int to);
+    }
+
+    public static final RowOp BLUEIFY = VectorPixelOps::blueify;
+    public static final RowOp REDIFY = VectorPixelOps::redify;
+    public static final RowOp INVERT = VectorPixelOps::invert;
+    public static final RowOp NEGATIVE = VectorPixelOps::negative;
+    public static final RowOp INCREASE_OPACITY = VectorPixelOps::increaseOpacity;
+    public static final RowOp DECREASE_OPACITY = VectorPixelOps::decreaseOpacity;
+    public static final RowOp GREYSCALE = matrix (Processor.GREYSCALE_WEIGHTS, Processor::greyscalePixel);
+    public static final RowOp SEPIA = matrix (Processor.SEPIA_WEIGHTS, Processor::sepiaPixel);
+
+    /**
+     * Checks if Java was started with the Vector API
+     */
+    public static boolean isAvailable ()
+    {
+        return LENGTH > 0;
+    }
+
+    /**
+     * Checks if PixelEngine should use the vector filters, which is when the
+     * Vector API is there and they haven't been turned off
+     */
+    public static boolean isEnabled ()
+    {
+        return enabled && isAvailable();
+    }
+
+    /**
+     * Turns the vector filters on or off, for example to time them against the
+     * Processor versions
+     */
+    public static void setEnabled (boolean on)
+    {
+        enabled = on;
+    }
+
+    /**
+     * Returns how many pixels one vector holds, or 0 without the Vector API
+     */
+    public static int getLength ()
+    {
+        return LENGTH;
+    }
+
+    private static void blueify (int[] data, int from, int to)
+    {
+        int i = from;
+        try
+        {
+            for (; i + LENGTH <= to; i += LENGTH)
+            {
+                Object p = load (data, i);
+                Object red = with (with (p, ASHR, 16), AND, 0xFF);
+                Object green = with (with (p, ASHR, 8), AND, 0xFF);
+                Object blue = with (p, AND, 0xFF);
+
+                // (blue - 254) >>> 31 is 1 when blue < 254 and 0 when it isn't,
+                // which adds the 2 without a branch. The same for red and green >= 50.
+                blue = with (blue, ADD, with (with (with (blue, SUB, 254), LSHR, 31), LSHL, 1));
+                red = with (red, SUB, with (with (with (red, SUB, 50), XOR, -1), LSHR, 31));
+                green = with (green, SUB, with (with (with (green, SUB, 50), XOR, -1), LSHR, 31));
+                store (pack (p, red, green, blue), data, i);
+            }
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException (e);
+        }
+        for (; i < to; i++) data[i] = Processor.blueifyPixel (data[i]);
+    }
+
+    private static void redify (int[] data, int from, int to)
+    {
+        int i = from;
+        try
+        {
+            for (; i + LENGTH <= to; i += LENGTH)
+            {
+                Object p = load (data, i);
+                Object red = with (with (p, ASHR, 16), AND, 0xFF);
+                Object green = with (with (p, ASHR, 8), AND, 0xFF);
+                Object blue = with (p, AND, 0xFF);
+
+                red = with (red, ADD, with (with (with (red, SUB, 254), LSHR, 31), LSHL, 1));
+                blue = with (blue, SUB, with (with (with (blue, SUB, 50), XOR, -1), LSHR, 31));
+                green = with (green, SUB, with (with (with (green, SUB, 50), XOR, -1), LSHR, 31));
+                store (pack (p, red, green, blue), data, i);
+            }
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException (e);
+        }
+        for (; i < to; i++) data[i] = Processor.redifyPixel (data[i]);
+    }
+
+    private static void invert (int[] data, int from, int to)
+    {
+        int i = from;
+        try
+        {
+            for (; i + LENGTH <= to; i += LENGTH)
+            {
+                // Green and blue move up one channel, and red comes down to blue
+                Object p = load (data, i);
+                Object moved = with (with (with (p, LSHL, 8), AND, 0x00FFFF00), OR, with (with (p, ASHR, 16), AND, 0xFF));
+                store (with (with (p, AND, 0xFF000000), OR, moved), data, i);
+            }
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException (e);
+        }
+        for (; i < to; i++) data[i] = Processor.invertPixel (data[i]);
+    }
+
+    private static void negative (int[] data, int from, int to)
+    {
+        int i = from;
+        try
+        {
+            for (; i + LENGTH <= to; i += LENGTH)
+            {
+                // 255 - value flips every bit of a channel
+                store (with (load (data, i), XOR, 0x00FFFFFF), data, i);
+            }
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException (e);
+        }
+        for (; i < to; i++) data[i] = Processor.negativePixel (data[i]);
+    }
+
+    private static void increaseOpacity (int[] data, int from, int to)
+    {
+        int i = from;
+        try
+        {
+            for (; i + LENGTH <= to; i += LENGTH)
+            {
+                Object p = load (data, i);
+                Object alpha = with (with (with (p, LSHR, 24), ADD, 5), MIN, 255);
+                store (with (with (p, AND, 0x00FFFFFF), OR, with (alpha, LSHL, 24)), data, i);
+            }
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException (e);
+        }
+        for (; i < to; i++) data[i] = Processor.increaseOpacityPixel (data[i]);
+    }
+
+    private static void decreaseOpacity (int[] data, int from, int to)
+    {
+        int i = from;
+        try
+        {
+            for (; i + LENGTH <= to; i += LENGTH)
+            {
+                Object p = load (data, i);
+                Object alpha = with (with (with (p, LSHR, 24), SUB, 5), MAX, 0);
+                store (with (with (p, AND, 0x00FFFFFF), OR, with (alpha, LSHL, 24)), data, i);
+            }
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException (e);
+        }
+        for (; i < to; i++) data[i] = Processor.decreaseOpacityPixel (data[i]);
+    }
+
+    /**
+     * Makes the vector version of a colour matrix with the same weights as a
+     * ColorMatrixOp. Whole numbers add up the same in any order, so unlike the
+     * ColorMatrixOp it doesn't need the order of the terms.
+     */
+    private static RowOp matrix (double[][] weights, PixelOp exact)
+    {
+        int[] fixed = new int[9];
+        for (int c = 0; c < 3; c++)
+        {
+            // Each lane holds a whole fixed point sum, so it has to fit in an int
+            double largest = (weights[c][0] + weights[c][1] + weights[c][2]) * 255 * (1 << FRACTION_BITS) + MARGIN;
+            if (!(largest < Integer.MAX_VALUE)) throw new IllegalArgumentException ("weights too big for a vector colour matrix");
+            for (int in = 0; in < 3; in++)
+            {
+                // A negative weight could push a sum below 0, which channel() doesn't clamp
+                if (weights[c][in] < 0) throw new IllegalArgumentException ("weights can't be negative");
+                fixed[c * 3 + in] = (int)Math.round (weights[c][in] * (1 << FRACTION_BITS));
+            }
+        }
+        // When the weights add up to a whole number, like greyscale's, most grey
+        // pixels are close calls that would all be handed over to exact
+        int close = 0;
+        for (int v = 0; v < 256; v++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                int sum = v * (fixed[c * 3] + fixed[c * 3 + 1] + fixed[c * 3 + 2]);
+                if (((sum + MARGIN) & FRACTION_MASK) < 2 * MARGIN)
+                {
+                    close++;
+                    break;
+                }
+            }
+        }
+        boolean greysToExact = close > 128;
+        return (data, from, to) -> matrix (data, from, to, fixed, exact, greysToExact);
+    }
+
+    private static void matrix (int[] data, int from, int to, int[] fixed, PixelOp exact, boolean greysToExact)
+    {
+        int[] out = new int[BLOCK];
+        int[] unsure = new int[BLOCK / LENGTH];
+        int i = from;
+        try
+        {
+            while (i + LENGTH <= to)
+            {
+                int n = Math.min (BLOCK, (to - i) / LENGTH * LENGTH);
+                if (greysToExact && isGrey (data[i]))
+                {
+                    // The exact version looks greys up whole, so a block that starts grey goes there
+                    for (int j = i; j < i + n; j++) data[j] = exact.apply (data[j]);
+                }
+                else
+                {
+                    block (data, i, n, out, unsure, fixed, exact);
+                }
+                i += n;
+            }
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException (e);
+        }
+        for (; i < to; i++) data[i] = exact.apply (data[i]);
+    }
+
+    /**
+     * Checks if a pixel is grey, with the same red, green and blue
+     */
+    private static boolean isGrey (int rgb)
+    {
+        // Shifting a grey pixel by one channel leaves its red, green and blue bits the same
+        return ((rgb >>> 8 ^ rgb) & 0xFFFF) == 0;
+    }
+
+    /**
+     * Runs the colour matrix on n pixels of data starting at index start
+     */
+    private static void block (int[] data, int start, int n, int[] out, int[] unsure,
+                               int[] fixed, PixelOp exact) throws Throwable
+    {
+        // All three channels at once is more vector code than the JIT compiler
+        // will inline, so each channel is a pass over a block of pixels small
+        // enough to stay in the CPU cache. The passes share one call, so only
+        // one copy of channel() is inlined.
+        Arrays.fill (out, 0);
+        Arrays.fill (unsure, 0);
+        for (int c = 0; c < 3; c++)
+        {
+            channel (data, start, n, out, unsure, fixed, c);
+        }
+
+        for (int k = 0; k < n; k += LENGTH)
+        {
+            if (unsure[k / LENGTH] < 0)
+            {
+                // Rare, so these few pixels are just done the exact way
+                for (int j = start + k; j < start + k + LENGTH; j++) data[j] = exact.apply (data[j]);
+            }
+            else
+            {
+                store (with (with (load (data, start + k), AND, 0xFF000000), OR, load (out, k)), data, start + k);
+            }
+        }
+    }
+
+    /**
+     * Works out output channel c (0 red, 1 green, 2 blue) of n pixels of data
+     * starting at index start, and ORs it into out. unsure gets a negative
+     * number for each vector with a sum too close to a whole number to trust.
+     */
+    private static void channel (int[] data, int start, int n, int[] out, int[] unsure,
+                                 int[] fixed, int c) throws Throwable
+    {
+        int wr = fixed[c * 3], wg = fixed[c * 3 + 1], wb = fixed[c * 3 + 2];
+        int shift = 16 - 8 * c;
+        for (int k = 0; k < n; k += LENGTH)
+        {
+            Object p = load (data, start + k);
+            Object sum = with (with (with (with (p, ASHR, 16), AND, 0xFF), MUL, wr),
+                ADD, with (with (with (p, ASHR, 8), AND, 0xFF), MUL, wg));
+            sum = with (sum, ADD, with (with (p, AND, 0xFF), MUL, wb));
+
+            // Moving the range within MARGIN of a whole number to the bottom of
+            // the fraction sets the top bit of a lane that is in it
+            Object close = with (with (with (sum, ADD, MARGIN), AND, FRACTION_MASK), SUB, 2 * MARGIN);
+            unsure[k / LENGTH] |= reduce (close, OR);
+
+            // The weights are never negative, so neither is the sum
+            Object value = with (with (with (sum, ASHR, FRACTION_BITS), MIN, 255), LSHL, shift);
+            store (with (load (out, k), OR, value), out, k);
+        }
+    }
+
+    /**
+     * Puts the new red, green and blue back together with the alpha of p
+     */
+    private static Object pack (Object p, Object red, Object green, Object blue) throws Throwable
+    {
+        Object out = with (p, AND, 0xFF000000);
+        out = with (out, OR, with (red, LSHL, 16));
+        out = with (out, OR, with (green, LSHL, 8));
+        return with (out, OR, blue);
+    }
+
+    private static Object load (int[] data, int i) throws Throwable
+    {
+        return (Object)LOAD.invokeExact (data, i);
+    }
+
+    private static void store (Object v, int[] data, int i) throws Throwable
+    {
+        STORE.invokeExact (v, data, i);
+    }
+
+    /**
+     * Applies op to every lane of v and the number n, like v.lanewise(op, n)
+     */
+    private static Object with (Object v, Object op, int n) throws Throwable
+    {
+        return (Object)WITH_INT.invokeExact (v, op, n);
+    }
+
+    /**
+     * Applies op to every lane of v and the same lane of w, like v.lanewise(op, w)
+     */
+    private static Object with (Object v, Object op, Object w) throws Throwable
+    {
+        return (Object)WITH_VECTOR.invokeExact (v, op, w);
+    }
+
+    private static int reduce (Object v, Object op) throws Throwable
+    {
+        return (int)REDUCE.invokeExact (v, op);
+    }
+}
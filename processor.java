@@ -6,15 +6,19 @@
  * you don't have to. These methods are unpackPixel() and packagePixel() and do
  * exactly what they say - extract red, green, blue and alpha values out of an
  * int, and put the same four integers back into a special packed integer. 
+ * <p>
+ * unpackPixel() creates a new array every time it is called, so the filters
+ * use getAlpha(), getRed(), getGreen() and getBlue() instead, which read a
+ * single value straight out of the packed integer.
  * 
  * @author Owen Zhu and Larry Wu
  * @version June 2020
  */
 
 import greenfoot.*;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Processor  
 {
@@ -27,46 +31,64 @@ public class Processor
      * @param bi    The BufferedImage (passed by reference) to change.
      */
     
-    // A class variable used to define the magnitude of pixalization of the image
-    private static int factor = 2;
+    // The size of the square blocks copied at a time by the 90 degree rotations
+    private static int rotateBlockSize = 64;
+    
+    //Using the rgb values of a pixel to map a new rgb value in the form of a greyscale color
+    //gray = blue*0.11 + red*0.3 + green*0.59, added up in that order. Source: https://bit.ly/2Y8Cfek
+    static final double[][] GREYSCALE_WEIGHTS = {{0.3, 0.59, 0.11}, {0.3, 0.59, 0.11}, {0.3, 0.59, 0.11}};
+    private static final ColorMatrixOp GREYSCALE = new ColorMatrixOp (GREYSCALE_WEIGHTS,
+        new int[][] {{2, 0, 1}, {2, 0, 1}, {2, 0, 1}});
+    
+    //Similar to the greyscale algorithm, the rgb values of the current image is used
+    //to map the values of the new sepia image. Source: https://bit.ly/2ChYbLK
+    static final double[][] SEPIA_WEIGHTS = {
+        {.393, .769, .189},
+        {.349, .686, .168},
+        {.272, .534, .131}};
+    private static final ColorMatrixOp SEPIA = new ColorMatrixOp (SEPIA_WEIGHTS);
+    
+    //The blur, sharpen and edge filters repeat the pixels on the edge of the image past it
+    static final Convolution.Edge EDGE = Convolution.Edge.CLAMP;
+    
+    //Resizing uses the sharpest filter, and rotating one that doesn't ring around hard edges as much
+    static final Resampler.Filter RESIZE_FILTER = Resampler.Filter.LANCZOS;
+    static final Resampler.Filter ROTATE_FILTER = Resampler.Filter.BICUBIC;
+    
+    //Auto levels ignores the darkest and brightest half a percent, so a few stray pixels don't stop the stretch
+    static final double LEVELS_CLIP = 0.005;
     
     /**
      * Allows the user to increase the blue-ness of the image
      */
     public static void blueify (BufferedImage bi)
     {
-        // Get image size to use in for loops
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        // Using array size as limit
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("blueify", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                // Calls method in BufferedImage that returns R G B and alpha values
-                // encoded together in an integer
-                int rgb = bi.getRGB(x, y);
-
-                // Call the unpackPixel method to retrieve the four integers for
-                // R, G, B and alpha and assign them each to their own integer
-                int[] rgbValues = unpackPixel (rgb);
-                
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                // make the pic BLUE-er
-                if (blue < 254) blue += 2;
-                if (red >= 50) red--;
-                if (green >= 50) green--;
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
+            PixelEngine.apply (bi, Processor::blueifyPixel, VectorPixelOps.BLUEIFY);
         }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    static int blueifyPixel (int rgb)
+    {
+        // Call the channel methods to retrieve the four integers for
+        // R, G, B and alpha without creating an array for every pixel
+        int alpha = getAlpha (rgb);
+        int red = getRed (rgb);
+        int green = getGreen (rgb);
+        int blue = getBlue (rgb);
+
+        // make the pic BLUE-er
+        if (blue < 254) blue += 2;
+        if (red >= 50) red--;
+        if (green >= 50) green--;
 
+        return packagePixel (red, green, blue, alpha);
     }
     
     /**
@@ -74,32 +96,31 @@ public class Processor
      */
     public static void redify (BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("redify", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                int[] rgbValues = unpackPixel (rgb);
-                
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                // make the pic RED-er
-                if (red < 254) red += 2;
-                if (blue >= 50) blue--;
-                if (green >= 50) green--;
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
+            PixelEngine.apply (bi, Processor::redifyPixel, VectorPixelOps.REDIFY);
+        }
+        finally
+        {
+            timer.stop();
         }
+    }
+    
+    static int redifyPixel (int rgb)
+    {
+        int alpha = getAlpha (rgb);
+        int red = getRed (rgb);
+        int green = getGreen (rgb);
+        int blue = getBlue (rgb);
+
+        // make the pic RED-er
+        if (red < 254) red += 2;
+        if (blue >= 50) blue--;
+        if (green >= 50) green--;
 
-    }  
+        return packagePixel (red, green, blue, alpha);
+    }
     
     /**
      * Inverts the colors of the image around 
@@ -107,28 +128,27 @@ public class Processor
      */
     public static void invert (BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("invert", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                int[] rgbValues = unpackPixel (rgb);
-               
-                // Switch the array orders so that red becomes green, green becomes blue, blue becomes red
-                int alpha = rgbValues[0];
-                int red = rgbValues[2];
-                int green = rgbValues[3];
-                int blue = rgbValues[1];
-                
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
+            PixelEngine.apply (bi, Processor::invertPixel, VectorPixelOps.INVERT);
         }
-
-    }  
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    static int invertPixel (int rgb)
+    {
+        // Switch the channels so that red becomes green, green becomes blue, blue becomes red
+        int alpha = getAlpha (rgb);
+        int red = getGreen (rgb);
+        int green = getBlue (rgb);
+        int blue = getRed (rgb);
+        
+        return packagePixel (red, green, blue, alpha);
+    }
     
     /**
      * Allows the user to flip the image about the y-axis
@@ -138,26 +158,35 @@ public class Processor
         int xSize = bi.getWidth();
         int ySize = bi.getHeight();
 
-        //Using a temporary image to transfer the rgb pixels from the old to the new image
-        BufferedImage newBi = new BufferedImage (xSize, ySize, 3);
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("flipHorizontal", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                //Flips the rgb pixels from one end of the image to the opposite side of the image
-                newBi.setRGB(xSize - x - 1, y, rgb);
-            }
+            //Reversing every row in place, so no temporary image is needed
+            ParallelExecutor.forEachRowBand (xSize, ySize, (yStart, yEnd) -> {
+                if (PixelEngine.isDirect (bi))
+                {
+                    int[] data = PixelEngine.getData (bi);
+                    for (int y = yStart; y < yEnd; y++)
+                    {
+                        int start = PixelEngine.getOffset (bi, 0, y);
+                        reverse (data, start, start + xSize - 1);
+                    }
+                }
+                else
+                {
+                    int[] row = new int[xSize];
+                    for (int y = yStart; y < yEnd; y++)
+                    {
+                        bi.getRGB (0, y, xSize, 1, row, 0, xSize);
+                        reverse (row, 0, xSize - 1);
+                        bi.setRGB (0, y, xSize, 1, row, 0, xSize);
+                    }
+                }
+            });
         }
-        
-        //Copies the flipped image to the new image
-        for (int x = 0; x < xSize; x++)
+        finally
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = newBi.getRGB(x, y);
-                bi.setRGB(x,y, rgb);
-            }
+            timer.stop();
         }
     }
     
@@ -166,61 +195,136 @@ public class Processor
      */
     public static void flipVertical (BufferedImage bi)
     {
-        //This method does exactly the same as the flipHorizontal() method, but for the y-values
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        BufferedImage newBi = new BufferedImage (xSize, ySize, 3);
-
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("flipVertical", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                newBi.setRGB(x, ySize - y - 1, rgb);
-            }
+            //Swapping each row in the top half with the matching row in the bottom half
+            swapRows (bi, false);
         }
-        
-        for (int x = 0; x < xSize; x++)
+        finally
         {
-            for (int y = 0; y < ySize; y++)
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Rotates the image by 180 degrees in a single pass, which is the same as
+     * flipping it both ways
+     */
+    public static void rotate180 (BufferedImage bi)
+    {
+        Metrics.Timer timer = Metrics.start ("rotate180", bi);
+        try
+        {
+            //Each row in the top half swaps with the matching bottom row, reversed on the way
+            swapRows (bi, true);
+        
+            //An odd number of rows leaves a middle row that only needs to be reversed
+            int ySize = bi.getHeight();
+            if (ySize % 2 == 1)
             {
-                int rgb = newBi.getRGB(x, y);
-                bi.setRGB(x,y, rgb);
+                int xSize = bi.getWidth();
+                int[] row = new int[xSize];
+                bi.getRGB (0, ySize / 2, xSize, 1, row, 0, xSize);
+                reverse (row, 0, xSize - 1);
+                bi.setRGB (0, ySize / 2, xSize, 1, row, 0, xSize);
             }
         }
+        finally
+        {
+            timer.stop();
+        }
     }
     
     /**
-     * Allows the user to apply a negative image effect
+     * Swaps row y with row ySize - y - 1 for every row in the top half,
+     * reversing both rows as well if asked to
      */
-    public static void tglNegative(BufferedImage bi)
+    private static void swapRows (BufferedImage bi, boolean reverseRows)
     {
         int xSize = bi.getWidth();
         int ySize = bi.getHeight();
         
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
+        ParallelExecutor.forEachRowBand (xSize, ySize / 2, (yStart, yEnd) -> {
+            int[] top = new int[xSize];
+            int[] bottom = new int[xSize];
+            boolean direct = PixelEngine.isDirect (bi);
+            int[] data = direct ? PixelEngine.getData (bi) : null;
+            for (int y = yStart; y < yEnd; y++)
             {
-                int rgb = bi.getRGB(x, y);
-                int[] rgbValues = unpackPixel (rgb);
-                
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                //Flips the values by subtracting the current rgb values from 255
-                blue=255-blue;
-                red=255-red;
-                green=255-green;
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
+                int y2 = ySize - y - 1;
+                if (direct)
+                {
+                    int a = PixelEngine.getOffset (bi, 0, y);
+                    int b = PixelEngine.getOffset (bi, 0, y2);
+                    System.arraycopy (data, a, top, 0, xSize);
+                    System.arraycopy (data, b, bottom, 0, xSize);
+                    if (reverseRows)
+                    {
+                        reverse (top, 0, xSize - 1);
+                        reverse (bottom, 0, xSize - 1);
+                    }
+                    System.arraycopy (bottom, 0, data, a, xSize);
+                    System.arraycopy (top, 0, data, b, xSize);
+                }
+                else
+                {
+                    bi.getRGB (0, y, xSize, 1, top, 0, xSize);
+                    bi.getRGB (0, y2, xSize, 1, bottom, 0, xSize);
+                    if (reverseRows)
+                    {
+                        reverse (top, 0, xSize - 1);
+                        reverse (bottom, 0, xSize - 1);
+                    }
+                    bi.setRGB (0, y, xSize, 1, bottom, 0, xSize);
+                    bi.setRGB (0, y2, xSize, 1, top, 0, xSize);
+                }
             }
+        });
+    }
+    
+    /**
+     * Reverses the order of the values from index first to index last
+     */
+    private static void reverse (int[] values, int first, int last)
+    {
+        while (first < last)
+        {
+            int temp = values[first];
+            values[first++] = values[last];
+            values[last--] = temp;
+        }
+    }
+    
+    /**
+     * Allows the user to apply a negative image effect
+     */
+    public static void tglNegative(BufferedImage bi)
+    {
+        Metrics.Timer timer = Metrics.start ("tglNegative", bi);
+        try
+        {
+            PixelEngine.apply (bi, Processor::negativePixel, VectorPixelOps.NEGATIVE);
+        }
+        finally
+        {
+            timer.stop();
         }
+    }
+    
+    static int negativePixel (int rgb)
+    {
+        int alpha = getAlpha (rgb);
+        int red = getRed (rgb);
+        int green = getGreen (rgb);
+        int blue = getBlue (rgb);
 
+        //Flips the values by subtracting the current rgb values from 255
+        blue=255-blue;
+        red=255-red;
+        green=255-green;
+
+        return packagePixel (red, green, blue, alpha);
     }
     
     /**
@@ -228,29 +332,20 @@ public class Processor
      */
     public static void greyscale(BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("greyscale", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                int[] rgbValues = unpackPixel (rgb);
-                
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-               
-                //Using the rgb values of a pixel to map a new rgb value in the form of a greyscale color
-                //Source: https://bit.ly/2Y8Cfek
-                int gray = (int)(((double)blue*0.11) + ((double)red*0.3) + ((double)green*0.59));
-                
-                int newColour = packagePixel (gray, gray, gray, alpha);
-                bi.setRGB (x, y, newColour);
-            }
-        }    
+            PixelEngine.apply (bi, Processor::greyscalePixel, VectorPixelOps.GREYSCALE);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    static int greyscalePixel (int rgb)
+    {
+        return GREYSCALE.apply (rgb);
     }
     
     /**
@@ -258,36 +353,20 @@ public class Processor
      */
     public static void sepia(BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-        
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("sepia", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                int[] rgbValues = unpackPixel (rgb);
-                
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                //Similar to the greyscale algorithm, the rgb values of the current image is used
-                //to map the values of the new sepia image. Source: https://bit.ly/2ChYbLK
-                int outRed = (int)(((double)red * .393) + ((double)green *.769) + ((double)blue * .189));
-                int outGreen = (int)(((double)red * .349) + ((double)green *.686) + ((double)blue * .168));
-                int outBlue = (int)(((double)red * .272) + ((double)green *.534) + ((double)blue * .131));
-                
-                //Insuring that the rgb values don't overflow
-                outRed = Math.min(255,outRed);
-                outGreen = Math.min(255,outGreen);
-                outBlue = Math.min(255,outBlue);
-                
-                int newColour = packagePixel (outRed, outGreen, outBlue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
-        }    
+            PixelEngine.apply (bi, Processor::sepiaPixel, VectorPixelOps.SEPIA);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    static int sepiaPixel (int rgb)
+    {
+        return SEPIA.apply (rgb);
     }
     
     /**
@@ -295,181 +374,585 @@ public class Processor
      * thus pixalating the image but not changing the resolution of the image
      * 
      * This was an original method made by Owen and Larry
+     * <p>
+     * Each row of blocks keeps a summed-area table of its column sums, so the total
+     * of any block is the difference of two entries no matter how big the block is.
+     * Nothing is kept between calls, so any number of images can be pixalated at once.
+     * 
+     * @param bi        The image to pixalate
+     * @param factor    The width and height of each block, in pixels
      */
-    public static void pixalate(BufferedImage bi)
+    public static void pixalate(BufferedImage bi, int factor)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        BufferedImage newBi = new BufferedImage (xSize, ySize, 3);
-        for (int x = 0; x < xSize; x++)
+        if (factor < 1) throw new IllegalArgumentException ("factor must be at least 1: " + factor);
+        Metrics.Timer timer = Metrics.start ("pixalate", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                newBi.setRGB(x,y,rgb);
-            }
-        }
+            int xSize = bi.getWidth();
+            int ySize = bi.getHeight();
+            int blocks = (xSize + factor - 1) / factor;
         
-        //Using 2 forloops and the factor variable to determine the magnitude of the pixalization
-        for (int x = 0; x < xSize; x+=factor)
-        {
-            for (int y = 0; y < ySize; y+=factor)
-            {
-                //Creating a 2d array to save the rgb values of the current quadrant
-                int[] rgbList = new int[4];
+            //Each row of blocks is worked on by one thread, reading and writing its rows one at a time
+            int blockRows = (ySize + factor - 1) / factor;
+            ParallelExecutor.forEachRowBand (xSize * factor, blockRows, (rowStart, rowEnd) -> {
+                int[] row = new int[xSize];
+                int[] samples = PixelEngine.newRowSamples (bi, xSize);
+                BufferedImage rowBi = new BufferedImage (xSize, 1, BufferedImage.TYPE_INT_ARGB_PRE);
+                int[] colours = new int[blocks];
+                int[] alphaCols = new int[xSize], redCols = new int[xSize], greenCols = new int[xSize], blueCols = new int[xSize];
+                long[] alphaSums = new long[xSize + 1], redSums = new long[xSize + 1], greenSums = new long[xSize + 1], blueSums = new long[xSize + 1];
+            
+                for (int blockRow = rowStart; blockRow < rowEnd; blockRow++)
+                {
+                    int y = blockRow * factor;
+                    int yEnd = Math.min(y+factor, ySize);
                 
-                int alphaSum = 0, redSum = 0, greenSum = 0, blueSum = 0,idx = 0;
-                
-                //Saving the pixels of the current quadrant into rgbList
-                for(int x2 = x; x2 < x+factor && x2 < xSize; x2++){
-                    for(int y2 = y; y2 < y+factor && y2 < ySize; y2++){
-                        rgbList = unpackPixel(newBi.getRGB(x2, y2));
-                        alphaSum+=rgbList[0];
-                        redSum+=rgbList[1];
-                        greenSum+=rgbList[2];
-                        blueSum+=rgbList[3];
-                        idx++;
+                    //Adding up each column of this row of blocks
+                    Arrays.fill (alphaCols, 0);
+                    Arrays.fill (redCols, 0);
+                    Arrays.fill (greenCols, 0);
+                    Arrays.fill (blueCols, 0);
+                    for (int y2 = y; y2 < yEnd; y2++)
+                    {
+                        PixelEngine.getRow (bi, 0, y2, xSize, row, samples);
+                        roundTripPremultiplied (row, rowBi);
+                        for (int x = 0; x < xSize; x++)
+                        {
+                            int rgb = row[x];
+                            alphaCols[x] += getAlpha(rgb);
+                            redCols[x] += getRed(rgb);
+                            greenCols[x] += getGreen(rgb);
+                            blueCols[x] += getBlue(rgb);
+                        }
                     }
-                }
                 
+                    //Running totals of the column sums, so sums[x] is everything left of column x
+                    for (int x = 0; x < xSize; x++)
+                    {
+                        alphaSums[x+1] = alphaSums[x] + alphaCols[x];
+                        redSums[x+1] = redSums[x] + redCols[x];
+                        greenSums[x+1] = greenSums[x] + greenCols[x];
+                        blueSums[x+1] = blueSums[x] + blueCols[x];
+                    }
                 
-                int newColour = packagePixel (redSum/idx, greenSum/idx, blueSum/idx, alphaSum/idx);
+                    for (int x = 0; x < xSize; x+=factor)
+                    {
+                        int xEnd = Math.min(x+factor, xSize);
+                        long idx = (long)(xEnd - x) * (yEnd - y);
+                        colours[x / factor] = packagePixel ((int)((redSums[xEnd] - redSums[x]) / idx),
+                                                            (int)((greenSums[xEnd] - greenSums[x]) / idx),
+                                                            (int)((blueSums[xEnd] - blueSums[x]) / idx),
+                                                            (int)((alphaSums[xEnd] - alphaSums[x]) / idx));
+                    }
                 
-                for(int x2 = x; x2 < x+factor && x2 < xSize; x2++){
-                    for(int y2 = y; y2 < y+factor && y2 < ySize; y2++){
-                        bi.setRGB (x2, y2, newColour);
+                    //Every row of the blocks is the same, so it is filled once and written over each of them
+                    for (int x = 0; x < xSize; x+=factor)
+                    {
+                        Arrays.fill (row, x, Math.min(x+factor, xSize), colours[x / factor]);
+                    }
+                    for (int y2 = y; y2 < yEnd; y2++)
+                    {
+                        PixelEngine.setRow (bi, 0, y2, xSize, row, samples);
                     }
                 }
-            }
+            });
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * The pixalate effect used to average a copy kept in a premultiplied image, which
+     * rounds the colours of see-through pixels. This passes a row with those pixels
+     * through the same kind of image, one row tall, so the averages stay exactly the same.
+     * Rows that are fully opaque come back unchanged, so they are skipped.
+     */
+    private static void roundTripPremultiplied (int[] row, BufferedImage rowBi)
+    {
+        int xSize = rowBi.getWidth();
+        boolean opaque = true;
+        for (int i = 0; i < xSize && opaque; i++)
+        {
+            opaque = (row[i] >>> 24) == 255;
         }
+        if (opaque) return;
         
-        //Preventing integer overflow
-        factor=Math.min(Math.max(xSize,ySize),factor);
-        factor*=2;
+        rowBi.setRGB (0, 0, xSize, 1, row, 0, xSize);
+        rowBi.getRGB (0, 0, xSize, 1, row, 0, xSize);
     }
     
-    public static GreenfootImage rotateCw90 (BufferedImage bi)
+    /**
+     * Blurs the image like a Gaussian blur, made of three box blurs so that it takes
+     * the same time however wide it is. The edges repeat their outside pixels.
+     * 
+     * @param sigma     How far the blur spreads, in pixels
+     */
+    public static void blur (BufferedImage bi, double sigma)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight(); 
+        Metrics.Timer timer = Metrics.start ("blur", bi);
+        try
+        {
+            Convolution.gaussianBlur (bi, sigma, EDGE);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Makes the edges in the image stand out with the 3x3 sharpen kernel
+     */
+    public static void sharpen (BufferedImage bi)
+    {
+        Metrics.Timer timer = Metrics.start ("sharpen", bi);
+        try
+        {
+            Convolution.sharpen (bi, EDGE);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Sharpens the image by pushing each pixel away from a blurred copy of the image
+     * 
+     * @param sigma     How wide the blurred copy is blurred, in pixels
+     * @param amount    How far each pixel is pushed, where 1 doubles its difference
+     * @param threshold The smallest difference, out of 255, that gets pushed
+     */
+    public static void unsharpMask (BufferedImage bi, double sigma, double amount, int threshold)
+    {
+        Metrics.Timer timer = Metrics.start ("unsharpMask", bi);
+        try
+        {
+            Convolution.unsharpMask (bi, sigma, amount, threshold, EDGE);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Turns the image into a grey picture of its edges using the Sobel operator
+     */
+    public static void findEdges (BufferedImage bi)
+    {
+        Metrics.Timer timer = Metrics.start ("findEdges", bi);
+        try
+        {
+            Convolution.sobel (bi, EDGE);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Shrinks the image by a whole number, averaging each factor by factor block
+     * of pixels into one pixel of a new image. Blocks on the right and bottom
+     * edges may be smaller, like they are for pixalate.
+     *
+     * @return BufferedImage    A new TYPE_INT_ARGB image, rounded up to
+     *                          width / factor by height / factor
+     */
+    public static BufferedImage shrink (BufferedImage bi, int factor)
+    {
+        if (factor < 1) throw new IllegalArgumentException ("factor must be at least 1: " + factor);
+        Metrics.Timer timer = Metrics.start ("shrink", bi);
+        try
+        {
+            int xSize = bi.getWidth();
+            int ySize = bi.getHeight();
+            int newX = (xSize + factor - 1) / factor;
+            int newY = (ySize + factor - 1) / factor;
+            BufferedImage small = new BufferedImage (newX, newY, BufferedImage.TYPE_INT_ARGB);
+            int[] smallData = PixelEngine.getData (small);
+            boolean direct = PixelEngine.isDirect (bi);
+            boolean hasAlpha = bi.getType() == BufferedImage.TYPE_INT_ARGB;
+
+            //Each output row is one row of blocks, so the bands never share a block
+            ParallelExecutor.forEachRowBand (xSize * factor, newY, (rowStart, rowEnd) -> {
+                int[] row = new int[xSize];
+                long[] alphaSums = new long[newX], redSums = new long[newX], greenSums = new long[newX], blueSums = new long[newX];
+
+                for (int row2 = rowStart; row2 < rowEnd; row2++)
+                {
+                    int y = row2 * factor;
+                    int yEnd = Math.min(y+factor, ySize);
+                    Arrays.fill (alphaSums, 0);
+                    Arrays.fill (redSums, 0);
+                    Arrays.fill (greenSums, 0);
+                    Arrays.fill (blueSums, 0);
+
+                    for (int y2 = y; y2 < yEnd; y2++)
+                    {
+                        if (direct)
+                        {
+                            System.arraycopy (PixelEngine.getData (bi), PixelEngine.getOffset (bi, 0, y2), row, 0, xSize);
+                            //An RGB image has no alpha in its array, but reads back as fully opaque
+                            if (!hasAlpha) for (int x = 0; x < xSize; x++) row[x] |= 0xFF000000;
+                        }
+                        else
+                        {
+                            bi.getRGB (0, y2, xSize, 1, row, 0, xSize);
+                        }
 
-        BufferedImage newBi = new BufferedImage (ySize, xSize, 3);
+                        for (int block = 0; block < newX; block++)
+                        {
+                            int alpha = 0, red = 0, green = 0, blue = 0;
+                            for (int x = block * factor, xEnd = Math.min(x+factor, xSize); x < xEnd; x++)
+                            {
+                                int rgb = row[x];
+                                alpha += getAlpha(rgb);
+                                red += getRed(rgb);
+                                green += getGreen(rgb);
+                                blue += getBlue(rgb);
+                            }
+                            alphaSums[block] += alpha;
+                            redSums[block] += red;
+                            greenSums[block] += green;
+                            blueSums[block] += blue;
+                        }
+                    }
 
-        for (int i = 0; i < xSize; i++)
+                    for (int block = 0; block < newX; block++)
+                    {
+                        int x = block * factor;
+                        long count = (long)(Math.min(x+factor, xSize) - x) * (yEnd - y);
+                        smallData[row2 * newX + block] = packagePixel ((int)(redSums[block] / count),
+                                                                       (int)(greenSums[block] / count),
+                                                                       (int)(blueSums[block] / count),
+                                                                       (int)(alphaSums[block] / count));
+                    }
+                }
+            });
+            return small;
+        }
+        finally
         {
-            for (int j = ySize-1; j >= 0; j--)
-            {
-                newBi.setRGB(ySize - j - 1, i, bi.getRGB(i, j));
-            }
+            timer.stop();
         }
-        GreenfootImage rotated = createGreenfootImageFromBI (newBi);
+    }
+
+    /**
+     * Stretches a small image into a bigger one by repeating each pixel as a
+     * factor by factor block, the opposite of shrink(). Blocks that would go
+     * past the right or bottom edge of newBi are cut off.
+     */
+    public static void enlarge (BufferedImage small, int factor, BufferedImage newBi)
+    {
+        if (factor < 1) throw new IllegalArgumentException ("factor must be at least 1: " + factor);
+        Metrics.Timer timer = Metrics.start ("enlarge", newBi);
+        try
+        {
+            int xSize = newBi.getWidth();
+            int ySize = newBi.getHeight();
+            int smallX = Math.min (small.getWidth(), (xSize + factor - 1) / factor);
+            boolean direct = PixelEngine.isDirect (newBi) && newBi.getType() == BufferedImage.TYPE_INT_ARGB;
+        
+            ParallelExecutor.forEachRowBand (xSize, ySize, (yStart, yEnd) -> {
+                int[] smallRow = new int[smallX];
+                int[] row = direct ? PixelEngine.getData (newBi) : new int[xSize];
+                for (int y = yStart; y < yEnd; y++)
+                {
+                    int start = direct ? PixelEngine.getOffset (newBi, 0, y) : 0;
+                    if (direct && y > yStart && y % factor != 0)
+                    {
+                        //The same as the row above, which is already filled in
+                        System.arraycopy (row, start - PixelEngine.getScanlineStride (newBi), row, start, xSize);
+                        continue;
+                    }
+                
+                    //Rows past the bottom of the small image repeat its last row
+                    small.getRGB (0, Math.min (y / factor, small.getHeight() - 1), smallX, 1, smallRow, 0, smallX);
+                    for (int x = 0; x < xSize; x += factor)
+                    {
+                        Arrays.fill (row, start + x, start + Math.min (x + factor, xSize), smallRow[Math.min (x / factor, smallX - 1)]);
+                    }
+                    if (!direct) newBi.setRGB (0, y, xSize, 1, row, 0, xSize);
+                }
+            });
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Rotates the image 90 degrees clockwise into a new GreenfootImage
+     */
+    public static GreenfootImage rotateCw90 (BufferedImage bi)
+    {
+        GreenfootImage rotated = new GreenfootImage (bi.getHeight(), bi.getWidth());
+        rotateCw90 (bi, rotated.getAwtImage());
         return rotated;
     }
 
+    /**
+     * Rotates the image 90 degrees counter-clockwise into a new GreenfootImage
+     */
     public static GreenfootImage rotateCcw90 (BufferedImage bi)
+    {
+        GreenfootImage rotated = new GreenfootImage (bi.getHeight(), bi.getWidth());
+        rotateCcw90 (bi, rotated.getAwtImage());
+        return rotated;
+    }
+    
+    /**
+     * Writes the image rotated 90 degrees clockwise straight into newBi, which
+     * must be as wide as bi is tall and as tall as bi is wide
+     */
+    public static void rotateCw90 (BufferedImage bi, BufferedImage newBi)
+    {
+        rotate90 (bi, newBi, true);
+    }
+    
+    /**
+     * Writes the image rotated 90 degrees counter-clockwise straight into newBi,
+     * which must be as wide as bi is tall and as tall as bi is wide
+     */
+    public static void rotateCcw90 (BufferedImage bi, BufferedImage newBi)
+    {
+        rotate90 (bi, newBi, false);
+    }
+    
+    /**
+     * Stretches the red, green and blue of the image so each one goes from 0 to 255,
+     * which fixes a dull or tinted photo
+     */
+    public static void autoLevels (BufferedImage bi)
+    {
+        Metrics.Timer timer = Metrics.start ("autoLevels", bi);
+        try
+        {
+            Histogram histogram = Histogram.of (bi);
+            PixelEngine.apply (bi, ColorPipeline.lookup (histogram.levelsTable (Histogram.RED, LEVELS_CLIP),
+                                                         histogram.levelsTable (Histogram.GREEN, LEVELS_CLIP),
+                                                         histogram.levelsTable (Histogram.BLUE, LEVELS_CLIP)));
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Spreads out the red, green and blue of the image so every value is used by
+     * about the same number of pixels, which brings out detail in flat areas
+     */
+    public static void equalize (BufferedImage bi)
+    {
+        Metrics.Timer timer = Metrics.start ("equalize", bi);
+        try
+        {
+            Histogram histogram = Histogram.of (bi);
+            PixelEngine.apply (bi, ColorPipeline.lookup (histogram.equalizeTable (Histogram.RED),
+                                                         histogram.equalizeTable (Histogram.GREEN),
+                                                         histogram.equalizeTable (Histogram.BLUE)));
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Stretches or shrinks the image to the given size, into a new image
+     * 
+     * @return BufferedImage    A new TYPE_INT_ARGB image, width by height
+     */
+    public static BufferedImage resize (BufferedImage bi, int width, int height)
+    {
+        Metrics.Timer timer = Metrics.start ("resize", bi);
+        try
+        {
+            return Resampler.resize (bi, width, height, RESIZE_FILTER);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Rotates the image clockwise by any angle, into a new image big enough to
+     * hold all of it. The corners it doesn't cover are see-through.
+     * 
+     * @param degrees           How far to turn it, negative for counter-clockwise
+     * @return BufferedImage    A new TYPE_INT_ARGB image
+     */
+    public static BufferedImage rotate (BufferedImage bi, double degrees)
+    {
+        Metrics.Timer timer = Metrics.start ("rotate", bi);
+        try
+        {
+            return Resampler.rotate (bi, degrees, ROTATE_FILTER);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Sets the size of the square blocks the 90 degree rotations copy at a time.
+     * A block of the old image and the matching block of the new one should both
+     * fit in the cache together.
+     */
+    public static void setRotateBlockSize (int size)
+    {
+        if (size < 1) throw new IllegalArgumentException ("block size must be at least 1: " + size);
+        rotateBlockSize = size;
+    }
+    
+    public static int getRotateBlockSize ()
+    {
+        return rotateBlockSize;
+    }
+    
+    private static void rotate90 (BufferedImage bi, BufferedImage newBi, boolean clockwise)
     {
         int xSize = bi.getWidth();
         int ySize = bi.getHeight(); 
-
-        BufferedImage newBi = new BufferedImage (ySize, xSize, 3);
-
-        for (int i = xSize-1; i >= 0; i--)
+        if (newBi.getWidth() != ySize || newBi.getHeight() != xSize)
         {
-            for (int j = 0; j < ySize; j++)
-            {
-                newBi.setRGB(j, xSize - i - 1, bi.getRGB(i, j));
-            }
+            throw new IllegalArgumentException ("rotated image must be " + ySize + "x" + xSize);
+        }
+        Metrics.Timer timer = Metrics.start (clockwise ? "rotateCw90" : "rotateCcw90", bi);
+        try
+        {
+            //Reading the old image straight from its array when its pixels can be copied as they are
+            boolean directIn = PixelEngine.isDirect (bi) && bi.getType() == BufferedImage.TYPE_INT_ARGB;
+            int[] src = directIn ? PixelEngine.getData (bi) : PixelEngine.getPixels (bi, null);
+            int srcStart = directIn ? PixelEngine.getOffset (bi, 0, 0) : 0;
+            int srcStride = directIn ? PixelEngine.getScanlineStride (bi) : xSize;
+        
+            boolean directOut = PixelEngine.isDirect (newBi) && newBi.getType() == BufferedImage.TYPE_INT_ARGB;
+            int[] dst = directOut ? PixelEngine.getData (newBi) : new int[xSize * ySize];
+            int dstStart = directOut ? PixelEngine.getOffset (newBi, 0, 0) : 0;
+            int dstStride = directOut ? PixelEngine.getScanlineStride (newBi) : ySize;
+        
+            //Copying a square block at a time, so the column reads stay in the cache,
+            //and handing each row of blocks to a different thread
+            int block = rotateBlockSize;
+            int blockRows = (xSize + block - 1) / block;
+            ParallelExecutor.forEachRowBand (ySize * block, blockRows, (bStart, bEnd) -> {
+                for (int x0 = bStart * block; x0 < Math.min (bEnd * block, xSize); x0 += block)
+                {
+                    int x1 = Math.min (x0 + block, xSize);
+                    for (int y0 = 0; y0 < ySize; y0 += block)
+                    {
+                        int y1 = Math.min (y0 + block, ySize);
+                        for (int x = x0; x < x1; x++)
+                        {
+                            //Column x of the old image is row x (clockwise) or row xSize - x - 1 of the new one
+                            int row = clockwise ? x : xSize - x - 1;
+                            int out = dstStart + row * dstStride;
+                            int in = srcStart + x;
+                            if (clockwise)
+                            {
+                                //Going up the column, so old row y lands in new column ySize - y - 1
+                                for (int y = y0; y < y1; y++) dst[out + ySize - y - 1] = src[in + y * srcStride];
+                            }
+                            else
+                            {
+                                for (int y = y0; y < y1; y++) dst[out + y] = src[in + y * srcStride];
+                            }
+                        }
+                    }
+                }
+            });
+        
+            if (!directOut) PixelEngine.setPixels (newBi, dst);
+        }
+        finally
+        {
+            timer.stop();
         }
-        GreenfootImage rotated = createGreenfootImageFromBI (newBi);
-        return rotated;
     }
     
     /**
      * Takes the image and increases the alpha value
      */
     public static void increaseOpacity (BufferedImage bi){
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-        
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("increaseOpacity", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                int[] rgbValues = unpackPixel (rgb);
-                
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                if (alpha < 255) alpha +=5;
-                alpha = Math.min(255,alpha);
-                
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
+            PixelEngine.apply (bi, Processor::increaseOpacityPixel, VectorPixelOps.INCREASE_OPACITY);
+        }
+        finally
+        {
+            timer.stop();
         }
+    }
+    
+    static int increaseOpacityPixel (int rgb)
+    {
+        int alpha = getAlpha (rgb);
+        int red = getRed (rgb);
+        int green = getGreen (rgb);
+        int blue = getBlue (rgb);
+
+        if (alpha < 255) alpha +=5;
+        alpha = Math.min(255,alpha);
         
+        return packagePixel (red, green, blue, alpha);
     }
     
     /**
      * Takes the image and decreases the alpha value
      */
     public static void decreaseOpacity (BufferedImage bi){
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-        
-        for (int x = 0; x < xSize; x++)
+        Metrics.Timer timer = Metrics.start ("decreaseOpacity", bi);
+        try
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                int[] rgbValues = unpackPixel (rgb);
-                
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                if (alpha > 0) alpha -=5;
-                alpha = Math.max(0,alpha);
-                
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
+            PixelEngine.apply (bi, Processor::decreaseOpacityPixel, VectorPixelOps.DECREASE_OPACITY);
+        }
+        finally
+        {
+            timer.stop();
         }
     }
+    
+    static int decreaseOpacityPixel (int rgb)
+    {
+        int alpha = getAlpha (rgb);
+        int red = getRed (rgb);
+        int green = getGreen (rgb);
+        int blue = getBlue (rgb);
+
+        if (alpha > 0) alpha -=5;
+        alpha = Math.max(0,alpha);
+        
+        return packagePixel (red, green, blue, alpha);
+    }
 
     /**
      * Clones the original image and adds it to the list of images whenever a change is made
      */
     public static void addToList(ArrayList<BufferedImage> list, BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight(); 
-
-        BufferedImage newBi = new BufferedImage (xSize, ySize, 3);
+        Metrics.Timer timer = Metrics.start ("addToList", bi);
+        try
+        {
+            //Copying every pixel at once instead of one at a time
+            BufferedImage newBi = new BufferedImage (bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            PixelEngine.setPixels (newBi, PixelEngine.getPixels (bi, null));
         
-        for (int x = 0; x < xSize; x++)
+            list.add(newBi);
+        }
+        finally
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-                newBi.setRGB(x,y,rgb);
-            }
+            timer.stop();
         }
-        
-        list.add(newBi);
-    }
-    
-    /**
-     * Resets the factor variable whenever the reset button is clicked
-     */
-    public static void resetFactor()
-    {
-        factor = 2;
     }
     
     /**
@@ -481,11 +964,50 @@ public class Processor
     */
     public static GreenfootImage createGreenfootImageFromBI (BufferedImage newBi)
     {
-        GreenfootImage returnImage = new GreenfootImage (newBi.getWidth(), newBi.getHeight());
-        BufferedImage backingImage = returnImage.getAwtImage();
-        Graphics2D backingGraphics = (Graphics2D)backingImage.getGraphics();
-        backingGraphics.drawImage(newBi, null, 0, 0);
-        return returnImage;
+        Metrics.Timer timer = Metrics.start ("createGreenfootImageFromBI", newBi);
+        try
+        {
+            GreenfootImage returnImage = new GreenfootImage (newBi.getWidth(), newBi.getHeight());
+            //Copying the pixels straight across instead of drawing the image with Graphics2D
+            PixelEngine.setPixels (returnImage.getAwtImage(), PixelEngine.getPixels (newBi, null));
+            return returnImage;
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+    
+    /**
+     * Returns the alpha value (0-255) of a packed pixel
+     */
+    public static int getAlpha (int rgb)
+    {
+        return (rgb >>> 24);
+    }
+    
+    /**
+     * Returns the red value (0-255) of a packed pixel
+     */
+    public static int getRed (int rgb)
+    {
+        return (rgb >> 16) & 0xFF;
+    }
+    
+    /**
+     * Returns the green value (0-255) of a packed pixel
+     */
+    public static int getGreen (int rgb)
+    {
+        return (rgb >> 8) & 0xFF;
+    }
+    
+    /**
+     * Returns the blue value (0-255) of a packed pixel
+     */
+    public static int getBlue (int rgb)
+    {
+        return rgb & 0xFF;
     }
     
     /**
@@ -502,6 +1024,9 @@ public class Processor
      * @return int[4]   Array containing 4 shorter ints<br>
      *                  <pre>0       1       2       3</pre>
      *                  <pre>alpha   red     green   blue</pre>
+     * 
+     * Kept for older code - loops over a whole image should use getAlpha(),
+     * getRed(), getGreen() and getBlue() so no array is made per pixel.
      */
     public static int[] unpackPixel (int rgbaValue)
     {
@@ -1,10 +1,16 @@
 import greenfoot.*;  // (World, Actor, GreenfootImage, Greenfoot and MouseInfo)
 import java.io.File;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 /**
  * The class Processor contains all of the code to actually perform
  * transformation. The rest of the classes serve to support that
@@ -19,9 +25,27 @@ public class Background extends World
     // Constants:
     private final String STARTING_FILE = "landscape.png";
     private final int rotateXPos = 100, filtersXPos = 250, saveXPos = 400;
+    // The most room the cached results of the changes may take up once compressed, and how
+    // much of that may stay in the heap before the rest is spilled to a scratch file
+    private final long RENDER_CACHE_BUDGET = 1024L * 1024 * 1024;
+    private final long RENDER_HEAP_BUDGET = 64L * 1024 * 1024;
+    // How many passes over the image replaying up to a lossy change may take before its result is cached
+    private final double MAX_REPLAY_COST = 4;
+    // The quality jpgs are saved with, from 0 for the smallest file to 1 for the best picture
+    private final float JPEG_QUALITY = 0.9f;
+    // Images bigger than the space below the top border get a quick preview of each filter
+    private final int PREVIEW_WIDTH = 1000, PREVIEW_HEIGHT = 740;
+    // Most memory the decoded images of opened files can take up, so opening one again is instant
+    private final long DECODE_CACHE_BUDGET = 256L * 1024 * 1024;
+    // How far, in pixels, each click of the blur and unsharp mask buttons spreads
+    private final double BLUR_SIGMA = 2;
+    // The biggest image the resize button makes, so a typo can't ask for more memory than there is
+    private final long MAX_RESIZE_PIXELS = 100L * 1000 * 1000;
 
     // Objects and Variables:
     private ImageHolder image;
+    // Copies finished images into the one GreenfootImage the image holder shows
+    private ImageDisplay display;
     private TextButton blueButton;
     private TextButton hRevButton;
     private TextButton vRevButton;
@@ -33,9 +57,18 @@ public class Background extends World
     private TextButton upOpacityButton;
     private TextButton downOpacityButton;
     private TextButton sepiaButton;
+    private TextButton blurButton;
+    private TextButton sharpenButton;
+    private TextButton unsharpButton;
+    private TextButton edgesButton;
+    private TextButton levelsButton;
+    private TextButton equalizeButton;
+    private TextButton histogramButton;
     private TextButton cw90Button;
     private TextButton ccw90Button;
     private TextButton r180Button;
+    private TextButton rotateByButton;
+    private TextButton resizeButton;
     private TextButton openFile;
     private TextButton colorFiltersTab;
     private TextButton rotationsTab;
@@ -45,12 +78,37 @@ public class Background extends World
     private TextButton reset;
     private TextButton saveAsPNG;
     private TextButton saveAsJPG;
-    private String fileName;
+    private TextButton cancelButton;
+    private String cancelText;
     
     private boolean filterOn = false, rotationsOn = false, saveOn = false;     
+    // The block size the next click of the pixalate button uses
     private int pixalateFactor = 2;   
-    private ArrayList <BufferedImage> list;
-    private BufferedImage redo = null;
+    // True when the newest change is a pixalate, so the next click makes its blocks bigger instead
+    private boolean pixalateNewest = false;
+    private EditGraph edits;
+    // Runs the changes in the background, so the world keeps going while a big image is filtered
+    private FilterRunner runner;
+    // Writes saved files in the background, and the saves that haven't finished yet
+    private ImageExporter exporter = new ImageExporter();
+    private ArrayList<CompletableFuture<List<ImageExporter.Result>>> exports = new ArrayList<>();
+    private ImageLoader loader = new ImageLoader(DECODE_CACHE_BUDGET);
+    // The file being opened in the background, or null
+    private CompletableFuture<BufferedImage> opening;
+    private CompletableFuture<ImageLoader.Preview> openingPreview;
+    private String openingName;
+    private Metrics.Timer openTimer;
+    // What to put back on screen if opening fails or is cancelled, and the
+    // newest changes that finished while the file was opening
+    private GreenfootImage beforeOpen;
+    private FilterRunner.Result finishedWhileOpening;
+    // The counts of the colours in the image on screen, shown in the corner when turned on
+    private HistogramPanel histogramPanel = new HistogramPanel();
+    private boolean histogramOn = false;
+    // The counting running in the background, and the image counted last with its counts
+    private CompletableFuture<Histogram> counting;
+    private BufferedImage counted;
+    private Histogram counts;
     
     /**
      * Constructor for objects of class Background.
@@ -61,10 +119,8 @@ public class Background extends World
         super(1000, 800, 1); 
         
         // Initialize buttons and the image
-        Processor.resetFactor();
-        fileName = STARTING_FILE;
-        
         image = new ImageHolder(STARTING_FILE);
+        display = new ImageDisplay(image);
         redButton = new TextButton(" [ Red-ify ] ");
         blueButton = new TextButton(" [ Blue-ify ] ");
         hRevButton = new TextButton(" [ Flip Horizontal ] ");
@@ -78,7 +134,16 @@ public class Background extends World
         cw90Button = new TextButton(" [ CW 90 Rotate ] ");
         ccw90Button = new TextButton(" [ CCW 90 Rotate ] ");
         r180Button = new TextButton(" [ Rotate 180 ] ");
+        rotateByButton = new TextButton(" [ Rotate By... ] ");
+        resizeButton = new TextButton(" [ Resize... ] ");
         sepiaButton = new TextButton(" [ Sepia ] ");
+        blurButton = new TextButton(" [ Blur ] ");
+        sharpenButton = new TextButton(" [ Sharpen ] ");
+        unsharpButton = new TextButton(" [ Unsharp Mask ] ");
+        edgesButton = new TextButton(" [ Find Edges ] ");
+        levelsButton = new TextButton(" [ Auto Levels ] ");
+        equalizeButton = new TextButton(" [ Equalize ] ");
+        histogramButton = new TextButton(" [ Histogram ] ");
         
         colorFiltersTab = new TextButton( " [Color Effects] ");
         rotationsTab = new TextButton( " [Rotations] ");
@@ -90,6 +155,7 @@ public class Background extends World
         openFile = new TextButton(" [ Open File: " + STARTING_FILE + " ] ");
         saveAsPNG = new TextButton (" [ Save as PNG ] ");
         saveAsJPG = new TextButton (" [ Save as JPG ] ");
+        cancelButton = new TextButton (" [ Cancel ] ");
         
         //Adding drop down menus on screen
         addObject (image, 500, 400);
@@ -106,16 +172,48 @@ public class Background extends World
         bg.setColor(Color.BLACK);
         bg.fillRect(0,0,1000,60);
         
-        //Arraylist for undo function
-        list = new ArrayList<>();
+        //History of changes for the undo and redo functions
+        edits = new EditGraph(display.getImage(), new UndoHistory(RENDER_CACHE_BUDGET, RENDER_HEAP_BUDGET, null), MAX_REPLAY_COST);
+        runner = new FilterRunner(edits, PREVIEW_WIDTH, PREVIEW_HEIGHT);
     }
 
     /**
-     * Act() method just checks for mouse input
+     * Act() method just checks for mouse input, and prints how long every
+     * change has taken so far when M is pressed
      */
     public void act ()
     {
+        // Putting the newest finished changes on screen all at once
+        FilterRunner.Result finished = runner.takeFinished();
+        if (finished != null)
+        {
+            // While a file opens the preview of it stays on screen
+            if (opening == null) showFinished(finished);
+            else finishedWhileOpening = finished;
+        }
+        checkOpening();
+        checkFailure();
+        showProgress();
+        checkExports();
+        checkHistogram();
         checkMouse();
+        if ("m".equals(Greenfoot.getKey()))
+        {
+            showMetrics();
+        }
+    }
+    
+    /**
+     * Shows how often each filter and file operation ran so far and how long
+     * it took, in a table the user can scroll through
+     */
+    private void showMetrics()
+    {
+        JTextArea table = new JTextArea(Metrics.dump());
+        // greenfoot.Font would be picked up otherwise
+        table.setFont(new java.awt.Font(java.awt.Font.MONOSPACED, java.awt.Font.PLAIN, 12));
+        table.setEditable(false);
+        JOptionPane.showMessageDialog(null, new JScrollPane(table), "Timings", JOptionPane.INFORMATION_MESSAGE);
     }
     
     /**
@@ -133,6 +231,13 @@ public class Background extends World
             addObject(pixalateButton,   filtersXPos, 240);
             addObject(upOpacityButton, filtersXPos, 270);
             addObject(downOpacityButton, filtersXPos, 300);
+            addObject(blurButton, filtersXPos, 330);
+            addObject(sharpenButton, filtersXPos, 360);
+            addObject(unsharpButton, filtersXPos, 390);
+            addObject(edgesButton, filtersXPos, 420);
+            addObject(levelsButton, filtersXPos, 450);
+            addObject(equalizeButton, filtersXPos, 480);
+            addObject(histogramButton, filtersXPos, 510);
             filterOn=true;
         }
         else // When the button tab is already open, remove the objects
@@ -146,6 +251,13 @@ public class Background extends World
             removeObject(pixalateButton);
             removeObject(upOpacityButton);
             removeObject(downOpacityButton);
+            removeObject(blurButton);
+            removeObject(sharpenButton);
+            removeObject(unsharpButton);
+            removeObject(edgesButton);
+            removeObject(levelsButton);
+            removeObject(equalizeButton);
+            removeObject(histogramButton);
             filterOn=false;
         }
     }
@@ -159,6 +271,8 @@ public class Background extends World
             addObject(vRevButton, rotateXPos, 90);
             addObject(cw90Button, rotateXPos, 120);
             addObject(ccw90Button, rotateXPos, 150);
+            addObject(rotateByButton, rotateXPos, 180);
+            addObject(resizeButton, rotateXPos, 210);
             rotationsOn=true;
         }
         else
@@ -167,6 +281,8 @@ public class Background extends World
             removeObject(vRevButton);
             removeObject(cw90Button);
             removeObject(ccw90Button);
+            removeObject(rotateByButton);
+            removeObject(resizeButton);
             rotationsOn=false;
         }
     }
@@ -188,6 +304,122 @@ public class Background extends World
         }
     }
     
+    /**
+     * Shows a cancel button with how far along the changes are while they run,
+     * and takes it away when they are done
+     */
+    private void showProgress()
+    {
+        if (opening != null || runner.isBusy())
+        {
+            String text = opening != null ? " [ Cancel Open ] " : " [ Cancel " + (int)(runner.getProgress() * 100) + "% ] ";
+            if (cancelButton.getWorld() == null)
+            {
+                addObject(cancelButton, 500, 780);
+            }
+            if (!text.equals(cancelText))
+            {
+                cancelButton.update(text);
+                cancelText = text;
+            }
+        }
+        else if (cancelButton.getWorld() != null)
+        {
+            removeObject(cancelButton);
+        }
+    }
+    
+    /**
+     * Shows or hides the histogram in the bottom right corner
+     */
+    private void toggleHistogram()
+    {
+        histogramOn = !histogramOn;
+        if (histogramOn)
+        {
+            addObject(histogramPanel, 1000 - HistogramPanel.WIDTH / 2 - 10, 800 - HistogramPanel.HEIGHT / 2 - 10);
+        }
+        else
+        {
+            removeObject(histogramPanel);
+            counted = null;
+            counts = null;
+        }
+    }
+    
+    /**
+     * Counts the colours of the image on screen in the background whenever it
+     * changes, and shows the counts once they are done. Previews aren't
+     * counted, only the image once the changes have finished.
+     */
+    private void checkHistogram()
+    {
+        if (!histogramOn) return;
+        if (counting != null)
+        {
+            if (!counting.isDone()) return;
+            counts = counting.exceptionally(e -> null).join();
+            counting = null;
+            histogramPanel.show(counts);
+        }
+        BufferedImage bi = display.getImage();
+        if (bi == counted || runner.isBusy() || opening != null) return;
+        counted = bi;
+        counts = null;
+        histogramPanel.show(null);
+        counting = CompletableFuture.supplyAsync(() -> Histogram.of(bi));
+    }
+    
+    /**
+     * Tells the user if a change couldn't be made. Anything queued after it is
+     * thrown away, and the image goes back to the last one that finished.
+     */
+    private void checkFailure()
+    {
+        Throwable failure = runner.takeFailure();
+        if (failure == null) return;
+        runner.cancel();
+        // The pixalate that was newest may just have been rolled back
+        pixalateNewest = false;
+        String reason = failure instanceof OutOfMemoryError ? "The image is too big to change with the memory Java has"
+            : failure.toString();
+        JOptionPane.showMessageDialog(null, reason, "Couldn't change the image", JOptionPane.ERROR_MESSAGE);
+    }
+    
+    /**
+     * Waits for the queued changes to finish and puts the result on screen,
+     * so the image can be saved as it will look
+     */
+    private void finishChanges()
+    {
+        runner.waitUntilIdle();
+        checkFailure();
+        FilterRunner.Result finished = runner.takeFinished();
+        if (finished != null)
+        {
+            showFinished(finished);
+        }
+    }
+    
+    /**
+     * Copies the part of a finished image that changed onto the screen, and
+     * recounts just that part for the histogram if it is small enough
+     */
+    private void showFinished(FilterRunner.Result finished)
+    {
+        display.show(finished);
+        BufferedImage bi = finished.getImage();
+        Rectangle changed = finished.getChangedRegion();
+        // Updating counts the changed part twice, before and after, so a big change is counted over in the background instead
+        if (counts != null && counted == finished.getPrevious() && changed != null
+            && 2L * changed.width * changed.height < (long)bi.getWidth() * bi.getHeight())
+        {
+            counts.update(counted, bi, changed);
+            counted = bi;
+            histogramPanel.show(counts);
+        }
+    }
+    
     /**
      * Check for user clicking on a button
      */
@@ -197,7 +429,23 @@ public class Background extends World
         if (Greenfoot.mouseClicked(null))
         {
             //Checking for functions that don't manipulate the image
-            //So that it doesn't get saved into the arraylist
+            //So that they don't get added to the list of changes
+            if (Greenfoot.mouseClicked(cancelButton) && opening != null)
+            {
+                cancelOpen();
+                return;
+            }
+            //The changes were made to the image that is being replaced
+            if (opening != null)
+            {
+                return;
+            }
+            if (Greenfoot.mouseClicked(cancelButton))
+            {
+                runner.cancel();
+                pixalateNewest = false;
+                return;
+            }
             if (Greenfoot.mouseClicked(openFile))
             {
                 openFile();
@@ -226,6 +474,11 @@ public class Background extends World
                 openSave();
                 return;
             }
+            if (Greenfoot.mouseClicked(histogramButton))
+            {
+                toggleHistogram();
+                return;
+            }
             
             if (Greenfoot.mouseClicked(saveAsJPG))
             {
@@ -239,56 +492,97 @@ public class Background extends World
             }
             if (Greenfoot.mouseClicked(reset))
             {
-                image.setImage(fileName);
-                Processor.resetFactor();
+                //Going back to the image as it was opened, without loading it again
+                runner.resetChanges();
+                pixalateFactor = 2;
+                pixalateNewest = false;
                 return;
             }
             
-            //Saving a copy of the image in in the arraylist
-            Processor.addToList(list, image.getBufferedImage());
-            
+            //Finding the change that was clicked, so it can be added to the list of changes
+            EditOp op = null;
+            boolean replace = false;
             if (Greenfoot.mouseClicked(blueButton)){
-                Processor.blueify(image.getBufferedImage());
+                op = EditOps.BLUEIFY;
             }
             else if (Greenfoot.mouseClicked(hRevButton)){
-                Processor.flipHorizontal(image.getBufferedImage());
+                op = EditOps.FLIP_HORIZONTAL;
             }
             else if (Greenfoot.mouseClicked(vRevButton)){
-                Processor.flipVertical(image.getBufferedImage());
+                op = EditOps.FLIP_VERTICAL;
             }
             else if (Greenfoot.mouseClicked(nTogButton)){
-                Processor.tglNegative(image.getBufferedImage());
+                op = EditOps.NEGATIVE;
             }
             else if (Greenfoot.mouseClicked(gButton)){
-                Processor.greyscale(image.getBufferedImage());
+                op = EditOps.GREYSCALE;
             }
             else if (Greenfoot.mouseClicked(redButton)){
-                Processor.redify(image.getBufferedImage());
+                op = EditOps.REDIFY;
             }
             else if (Greenfoot.mouseClicked(invButton)){
-                Processor.invert(image.getBufferedImage());
+                op = EditOps.INVERT;
             }
             else if (Greenfoot.mouseClicked(sepiaButton)){
-                Processor.sepia(image.getBufferedImage());
+                op = EditOps.SEPIA;
             }
             else if (Greenfoot.mouseClicked(pixalateButton)){
-                Processor.pixalate(image.getBufferedImage());
+                op = EditOps.pixalate(pixalateFactor);
+                replace = pixalateNewest;
+                
+                //Each click doubles the block size, without going far past the size of the image
+                BufferedImage bi = display.getImage();
+                pixalateFactor = Math.min(Math.max(bi.getWidth(), bi.getHeight()), pixalateFactor) * 2;
             }
             else if (Greenfoot.mouseClicked(cw90Button)){
-                image.setImage(Processor.rotateCw90(image.getBufferedImage()));
+                op = EditOps.ROTATE_CW_90;
             }
             else if (Greenfoot.mouseClicked(ccw90Button)){
-                image.setImage(Processor.rotateCcw90(image.getBufferedImage()));
+                op = EditOps.ROTATE_CCW_90;
             }
             else if (Greenfoot.mouseClicked(r180Button)){
-                Processor.flipVertical(image.getBufferedImage());
-                Processor.flipHorizontal(image.getBufferedImage());
+                op = EditOps.ROTATE_180;
+            }
+            else if (Greenfoot.mouseClicked(rotateByButton)){
+                op = askRotate();
+            }
+            else if (Greenfoot.mouseClicked(resizeButton)){
+                op = askResize();
             }
             else if (Greenfoot.mouseClicked(upOpacityButton)){
-                Processor.increaseOpacity(image.getBufferedImage());
+                op = EditOps.INCREASE_OPACITY;
             }
             else if (Greenfoot.mouseClicked(downOpacityButton)){
-                Processor.decreaseOpacity(image.getBufferedImage());
+                op = EditOps.DECREASE_OPACITY;
+            }
+            else if (Greenfoot.mouseClicked(blurButton)){
+                op = EditOps.blur(BLUR_SIGMA);
+            }
+            else if (Greenfoot.mouseClicked(sharpenButton)){
+                op = EditOps.SHARPEN;
+            }
+            else if (Greenfoot.mouseClicked(unsharpButton)){
+                op = EditOps.unsharpMask(BLUR_SIGMA, 1, 0);
+            }
+            else if (Greenfoot.mouseClicked(edgesButton)){
+                op = EditOps.FIND_EDGES;
+            }
+            else if (Greenfoot.mouseClicked(levelsButton)){
+                op = EditOps.AUTO_LEVELS;
+            }
+            else if (Greenfoot.mouseClicked(equalizeButton)){
+                op = EditOps.EQUALIZE;
+            }
+            
+            if (op != null)
+            {
+                pixalateNewest = Greenfoot.mouseClicked(pixalateButton);
+                //Showing a rough preview straight away while the real change runs
+                GreenfootImage preview = replace ? runner.replaceNewest(op) : runner.apply(op);
+                if (preview != null)
+                {
+                    display.showImage(preview);
+                }
             }
         }
     } 
@@ -298,76 +592,248 @@ public class Background extends World
      */
     private void undo()
     {
-        // When the arraylist is not empty, remove the last change from the arraylist
-        if (!list.isEmpty())
-        {
-            redo = image.getBufferedImage();
-            image.setImage(Processor.createGreenfootImageFromBI(list.remove(list.size()-1)));
-        }
+        // Queued behind any changes still running, so it takes back the newest one
+        runner.undo();
+        pixalateNewest = false;
     }
     
     /**
-     * Allows the user to redo the lastest undo
+     * Allows the user to redo the lastest undo, as many times as there were undos
      */
     private void redo()
     {
-        if (redo != null)
-        {
-            image.setImage(Processor.createGreenfootImageFromBI(redo));
-            list.clear();
-            list.add(redo);
-            redo = null;
-        }
+        runner.redo();
+        pixalateNewest = false;
     }
     
     /**
-     * Allows the user to open a new image file.
+     * Allows the user to open a new image file. A file opened before comes
+     * straight from the loader's cache, and a big one shows a quick low
+     * quality copy while the rest of it is read in the background.
      */
     private void openFile ()
     {
         // Use a JOptionPane to get file name from user
         String fileName = JOptionPane.showInputDialog("Please input a file name with extension");
-        // If the file opening operation is successful, update the text in the open file button
-        if (image.openFile (fileName))
+        Metrics.Timer timer = Metrics.start("openFile", 0, 0);
+        File file = ImageLoader.find(fileName);
+        if (file == null)
         {
-            String display = " [ Open File: " + fileName + " ] ";
-            openFile.update (display);
+            // Not a file the loader can find, so the image holder tries to open it and tells the user if it can't
+            if (image.openFile (fileName))
+            {
+                display.showLoaded();
+                opened(fileName, timer);
+            }
+            // Counts the failed try too, if opened() didn't already stop it
+            timer.stop();
+            return;
+        }
+        openingName = fileName;
+        openTimer = timer;
+        beforeOpen = display.getShownImage();
+        opening = loader.load(file);
+        openingPreview = opening.isDone() ? null : loader.loadPreview(file, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        checkOpening();
+    }
+    
+    /**
+     * Shows the quick copy of the file being opened once it is read, and the
+     * real image once the whole file is
+     */
+    private void checkOpening()
+    {
+        if (opening == null) return;
+        if (openingPreview != null && openingPreview.isDone())
+        {
+            ImageLoader.Preview preview = openingPreview.join();
+            openingPreview = null;
+            if (preview != null && !opening.isDone())
+            {
+                // Stretched to the size of the whole image so nothing moves when it is done
+                GreenfootImage stretched = new GreenfootImage(preview.getWidth(), preview.getHeight());
+                Processor.enlarge(preview.getImage(), preview.getFactor(), stretched.getAwtImage());
+                display.showImage(stretched);
+            }
+        }
+        if (!opening.isDone()) return;
+        
+        BufferedImage bi;
+        try
+        {
+            bi = opening.join();
+        }
+        catch (CompletionException e)
+        {
+            bi = null;
+        }
+        String fileName = openingName;
+        opening = null;
+        openingPreview = null;
+        GreenfootImage old = beforeOpen;
+        FilterRunner.Result finished = finishedWhileOpening;
+        beforeOpen = null;
+        finishedWhileOpening = null;
+        if (bi != null)
+        {
+            // The loader keeps its copy for next time, but nothing changes it, so the display can copy from it
+            display.show(bi);
+            opened(fileName, openTimer);
+        }
+        else
+        {
+            if (finished != null) showFinished(finished);
+            else display.showImage(old);
+            if (image.openFile (fileName))
+            {
+                display.showLoaded();
+                // The image holder could read something the loader couldn't
+                opened(fileName, openTimer);
+            }
+        }
+        openTimer.stop();
+        openTimer = null;
+    }
+    
+    /**
+     * Stops waiting for the file being opened and puts the old image back.
+     * The loader still finishes reading it, so opening it again is quick.
+     */
+    private void cancelOpen()
+    {
+        opening = null;
+        openingPreview = null;
+        openTimer.stop();
+        openTimer = null;
+        if (finishedWhileOpening != null) showFinished(finishedWhileOpening);
+        else display.showImage(beforeOpen);
+        beforeOpen = null;
+        finishedWhileOpening = null;
+    }
+    
+    /**
+     * Updates the text in the open file button and starts the list of changes
+     * over once a new image is on screen
+     */
+    private void opened(String fileName, Metrics.Timer timer)
+    {
+        BufferedImage bi = display.getImage();
+        timer.stop(bi.getWidth(), bi.getHeight());
+        String label = " [ Open File: " + fileName + " ] ";
+        openFile.update (label);
+        // The changes in the list were made to the old image
+        runner.reset(bi);
+        pixalateNewest = false;
+    }
+    
+    /**
+     * Asks the user how far to rotate the image
+     * 
+     * @return EditOp   The rotation, or null if the user cancelled or didn't type a number
+     */
+    private EditOp askRotate()
+    {
+        String answer = JOptionPane.showInputDialog("Degrees to rotate clockwise (negative for counter-clockwise)");
+        if (answer == null || answer.trim().isEmpty()) return null;
+        try
+        {
+            return EditOps.rotate(Double.parseDouble(answer.trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            JOptionPane.showMessageDialog(null, "\"" + answer + "\" isn't a number of degrees", "Rotate", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+    }
+    
+    /**
+     * Asks the user what size to make the image, either as a width and height
+     * like 640x480 or as a percentage like 50%
+     * 
+     * @return EditOp   The resize, or null if the user cancelled or typed something else
+     */
+    private EditOp askResize()
+    {
+        BufferedImage bi = display.getImage();
+        String answer = JOptionPane.showInputDialog("New size, like 640x480 or 50% (now " + bi.getWidth() + "x" + bi.getHeight() + ")");
+        if (answer == null || answer.trim().isEmpty()) return null;
+        answer = answer.trim().toLowerCase();
+        try
+        {
+            int width, height;
+            if (answer.endsWith("%"))
+            {
+                double percent = Double.parseDouble(answer.substring(0, answer.length() - 1).trim());
+                width = (int)Math.round(bi.getWidth() * percent / 100);
+                height = (int)Math.round(bi.getHeight() * percent / 100);
+            }
+            else
+            {
+                String[] size = answer.split("x", 2);
+                width = Integer.parseInt(size[0].trim());
+                height = Integer.parseInt(size[1].trim());
+            }
+            if (width < 1 || height < 1 || (long)width * height > MAX_RESIZE_PIXELS) throw new NumberFormatException();
+            return EditOps.resize(width, height);
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+        {
+            JOptionPane.showMessageDialog(null, "\"" + answer + "\" isn't a size", "Resize", JOptionPane.ERROR_MESSAGE);
+            return null;
         }
-
     }
     
     /**
      * Allows the user to save the current picture as a .png file.
      */
     public void savePNG(){
+        finishChanges();
         //prompts user to input the file name
         String fileName = JOptionPane.showInputDialog("Input file name"); 
-        fileName+= ".png";
+        if (fileName == null) return;
         // creates and saves the file in the same folder as this greenfoot project
-        File f = new File (fileName);
-        try{
-            ImageIO.write(image.getImage().getAwtImage(), "png", f);
-        } catch (IOException e){}
+        export(new ImageExporter.Target(new File(fileName + ".png"), "png"));
     }
 
     /**
      * Allows the user to save the current picture as a .jpg file.
      */
     public void saveJPG(){
+        finishChanges();
         String fileName = JOptionPane.showInputDialog("Input file name"); 
-        fileName+= ".jpg";
-        //creates a new BufferedImage of a different type that has no alpha layer, since jpgs don't have them
-        BufferedImage b = new BufferedImage (image.getImage().getWidth(), image.getImage().getHeight(), BufferedImage.TYPE_INT_RGB);
-        for (int i = 0; i < b.getWidth(); i++){
-            for (int j = 0; j < b.getHeight(); j++){
-                int rgb = image.getBufferedImage().getRGB(i, j);
-                b.setRGB(i, j, rgb);
+        if (fileName == null) return;
+        //jpgs don't have an alpha layer, so the exporter writes the picture without it
+        ImageExporter.Target target = new ImageExporter.Target(new File(fileName + ".jpg"), "jpg");
+        target.setQuality(JPEG_QUALITY);
+        export(target);
+    }
+    
+    /**
+     * Writes the picture on screen in the background, so a big image doesn't
+     * freeze the world while it is encoded
+     */
+    private void export(ImageExporter.Target target)
+    {
+        exports.add(exporter.export(display.getImage(), Collections.singletonList(target)));
+    }
+    
+    /**
+     * Tells the user about any finished save that failed
+     */
+    private void checkExports()
+    {
+        for (Iterator<CompletableFuture<List<ImageExporter.Result>>> it = exports.iterator(); it.hasNext(); )
+        {
+            CompletableFuture<List<ImageExporter.Result>> export = it.next();
+            if (!export.isDone()) continue;
+            it.remove();
+            for (ImageExporter.Result result : export.join())
+            {
+                if (result.getError() != null)
+                {
+                    JOptionPane.showMessageDialog(null, result.toString(), "Save failed", JOptionPane.ERROR_MESSAGE);
+                }
             }
         }
-        //writes the file and saves it
-        File f = new File (fileName);
-        try {
-            ImageIO.write(b, "jpg", f);
-        } catch (IOException e) {}
     }
 }